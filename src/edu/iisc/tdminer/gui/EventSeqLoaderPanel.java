@@ -13,7 +13,9 @@ import edu.iisc.tdminercore.data.Episode;
 import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminer.data.StateInfo;
 import edu.iisc.tdminer.model.FreqEpisodeTableModel;
+import edu.iisc.tdminercore.reader.BinaryEventStreamReader;
 import edu.iisc.tdminercore.reader.IEventStreamReader;
+import edu.iisc.tdminercore.reader.InflatingInputStream;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
 import edu.iisc.tdminercore.util.TimeConstraint;
@@ -26,7 +28,6 @@ import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.NumberFormat;
@@ -97,21 +98,26 @@ public class EventSeqLoaderPanel extends javax.swing.JPanel implements ITaskPane
                                     " exists = " + legendFile.exists());
                         }
                         
-                        IEventStreamReader reader = null;
-                        if (legendFileName != null) {
-                            reader = new VisualCSVReader(frame, seqName, legendFileName);
-                        } else {
-                            reader = new VisualCSVReader(frame, seqName);
-                        }
                         TimeConstraint<CONSTRAINT_MODE> constraints =
                                 stateInfo.getSession().getTimeConstraints();
                         
-                        InputStream in = new BufferedInputStream(
-                                new ProgressMonitorInputStream(
-                                EventSeqLoaderPanel.this, "Reading "
-                                + seqName, new FileInputStream(seqName)));
+                        IEventDataStream seq = null;
+                        if (BinaryEventStreamReader.isBinary(seqName)) {
+                            seq = new BinaryEventStreamReader().read(seqName, constraints);
+                        } else {
+                            IEventStreamReader reader = null;
+                            if (legendFileName != null) {
+                                reader = new VisualCSVReader(frame, seqName, legendFileName);
+                            } else {
+                                reader = new VisualCSVReader(frame, seqName);
+                            }
+                            InputStream in = new BufferedInputStream(
+                                    new ProgressMonitorInputStream(
+                                    EventSeqLoaderPanel.this, "Reading "
+                                    + seqName, InflatingInputStream.open(seqName)));
                         
-                        IEventDataStream seq = reader.read(in, constraints);
+                            seq = reader.read(in, constraints);
+                        }
                         if (seq != null)
                         {
                             //System.out.println("Event stream loaded: will now check that it is sorted");
@@ -20,6 +20,7 @@ import edu.iisc.tdminercore.data.Interval;
 import edu.iisc.tdminer.data.StateInfo;
 import edu.iisc.tdminer.gui.function.DisplayEpisodeStats;
 import edu.iisc.tdminercore.miner.GenericMiner;
+import edu.iisc.tdminercore.miner.SessionSnapshot;
 import edu.iisc.tdminer.model.FreqEpisodeTableModel;
 import edu.iisc.tdminercore.counter.AbstractParallelEpisodeCounter;
 import edu.iisc.tdminercore.counter.AbstractSerialCounterInterEventConst;
@@ -1818,9 +1819,17 @@ public class FrequentEpisodeMinerPanel extends javax.swing.JPanel implements ITa
         System.out.println("Loading from to : " + file);
         try
         {
-            EpisodeSet episodes = EpisodeSet.buildEpisodeSet(file, seq.getEventFactor(),
-                    stateInfo.getSession().getIntervalsList());
-            stateInfo.getSession().setEpisodes(episodes);
+            if (SessionSnapshot.isSnapshot(file))
+            {
+                // the episodes are translated to the event types of the stream
+                SessionSnapshot.read(file, stateInfo.getSession());
+            }
+            else
+            {
+                EpisodeSet episodes = EpisodeSet.buildEpisodeSet(file, seq.getEventFactor(),
+                        stateInfo.getSession().getIntervalsList());
+                stateInfo.getSession().setEpisodes(episodes);
+            }
             t = System.currentTimeMillis();
             isSequenceMined = false;
             displayResults();
@@ -1860,9 +1869,16 @@ public class FrequentEpisodeMinerPanel extends javax.swing.JPanel implements ITa
         System.out.println("Saving to : " + file);
         try
         {
-            PrintWriter out = new PrintWriter(file);
-            out.println(episodes.toString(stateInfo.getSession()));
-            out.close();
+            if (file.getName().toLowerCase().endsWith(SessionSnapshot.EXTENSION))
+            {
+                SessionSnapshot.write(file, stateInfo.getSession());
+            }
+            else
+            {
+                PrintWriter out = new PrintWriter(file);
+                out.println(episodes.toString(stateInfo.getSession()));
+                out.close();
+            }
             JOptionPane.showMessageDialog(this.frame, "Episodes saved to " + file.getName());
         }
         catch (Exception ex)
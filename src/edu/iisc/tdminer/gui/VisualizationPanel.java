@@ -351,7 +351,7 @@ public class VisualizationPanel extends javax.swing.JPanel implements ITaskPanel
                     EpisodeInstanceSet prospect = stateInfo.getHarvest();
                     prospect.addInstance(episodeIx, eventTypes, events);
                 }
-                this.markEvents(events);
+                sequence.markEvents(events, episodeIx);
             }
         }, vsession);
     }
@@ -15,6 +15,7 @@ import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
 import edu.iisc.tdminercore.data.Interval;
 import edu.iisc.tdminercore.reader.CsvEventStreamReader;
 import edu.iisc.tdminercore.reader.IEventStreamReader;
+import edu.iisc.tdminercore.reader.InflatingInputStream;
 import edu.iisc.tdminercore.util.TimeConstraint;
 
 import java.util.List;
@@ -22,10 +23,10 @@ import java.awt.Component;
 import java.awt.Frame;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import javax.swing.ComboBoxModel;
 import javax.swing.JDialog;
@@ -194,7 +195,7 @@ public class VisualCSVReader extends javax.swing.JDialog
                 separatorChar = this.separator.charAt(0);
             }
             
-            this.reader = new CSVReader(new FileReader(f), 
+            this.reader = new CSVReader(new InputStreamReader(InflatingInputStream.open(f)), 
                     separatorChar, CSVReader.DEFAULT_QUOTE_CHARACTER, this.skiplines);
             String line = null;
             
@@ -274,7 +275,7 @@ public class VisualCSVReader extends javax.swing.JDialog
     public IEventDataStream read(TimeConstraint<CONSTRAINT_MODE> constraint) throws IOException
     {
         if (streamName != null) {
-            return read(new FileInputStream(this.streamName), constraint);
+            return read(InflatingInputStream.open(this.streamName), constraint);
         } else {
             throw new IOException("Event stream file not specified");
         }
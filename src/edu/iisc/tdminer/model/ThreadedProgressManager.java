@@ -13,6 +13,7 @@ import edu.iisc.tdminercore.util.IObserver;
 import edu.iisc.tdminercore.util.AbstractObserver;
 import edu.iisc.tdminercore.miner.SessionInfo;
 import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
 
 import java.awt.Frame;
@@ -76,6 +77,16 @@ public class ThreadedProgressManager extends AbstractObserver
     {
         this.session = session;
     }
+    
+    /**
+     * The session's current stream, which may be replaced after the
+     * session is attached, so it is looked up when the events are marked.
+     */
+    @Override
+    public IEventDataStream getMarkedSequence()
+    {
+        return (session == null) ? null : session.getSequence();
+    }
        
     public int getProgress()
     {
@@ -171,7 +182,7 @@ public class ThreadedProgressManager extends AbstractObserver
     public void handleEpisodeCompletion(int episodeIndex, int[] eventTypes, List<IEvent> t)
      throws IObserver.NotImplementedException
     {
-        this.markEvents(t);
+        this.markEvents(episodeIndex, t);
     }
     
     
@@ -23,24 +23,33 @@ import edu.iisc.tdminercore.counter.ParallelNonOverlapperEpisodeCounter;
 import edu.iisc.tdminercore.counter.SerialEpisodeCounterWithIntervals;
 import edu.iisc.tdminercore.counter.SerialIntervalCounter;
 import edu.iisc.tdminercore.counter.SerialTrueIntervalCounter;
+import edu.iisc.tdminercore.reader.BinaryEventStreamReader;
 import edu.iisc.tdminercore.reader.CsvEventStreamReader;
+import edu.iisc.tdminercore.reader.InflatingInputStream;
+import edu.iisc.tdminercore.reader.StreamingEventDataStream;
+import edu.iisc.tdminercore.reader.XmlEventStreamReader;
 
 import edu.iisc.tdminercore.writer.IWriter;
 import edu.iisc.tdminercore.writer.XMLWriter;
 
+import edu.iisc.tdminercore.data.CompressedEventStream;
 import edu.iisc.tdminercore.data.Interval;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
 import edu.iisc.tdminercore.data.IEpisodeSet;
 import edu.iisc.tdminercore.data.EpisodeSet;
 import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.PrefetchingIterable;
 import edu.iisc.tdminercore.filter.ThresholdFilterType;
 import edu.iisc.tdminercore.miner.GenericMiner;
 import edu.iisc.tdminercore.miner.SessionInfo;
+import edu.iisc.tdminercore.miner.SessionSnapshot;
+import edu.iisc.tdminercore.simulation.ISimulator;
 import edu.iisc.tdminercore.util.PassiveObserver;
 import edu.iisc.tdminercore.util.TimeConstraint;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.net.MalformedURLException;
 import java.util.Iterator;
 import java.util.List;
@@ -54,8 +63,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;  
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 
@@ -312,6 +324,22 @@ public class TDMinerMain2 {
         return str.charAt(0);
      }
     
+    /**
+     * An event stream element marked compress="true" is held in memory
+     * with its times quantized to the session time granularity.
+     */
+    private static boolean isCompressedStream(Element base)
+    {
+        NodeListIterable baseChildren =  new NodeListIterable(base.getChildNodes());
+        for( Node baseChild : baseChildren ) {
+            if (baseChild.getNodeType() != Node.ELEMENT_NODE) continue;
+            if (baseChild.getNamespaceURI() != nsContext.getNamespaceURI("v0")) continue;
+            if (!baseChild.getLocalName().equalsIgnoreCase("event-stream")) break;
+            if (((Element)baseChild).getAttribute("compress").equalsIgnoreCase("true")) return true;
+        }
+        return false;
+    }
+
     /**
      * Load the event stream from a file
      */
@@ -377,7 +405,7 @@ public class TDMinerMain2 {
                     }
                     else if (sourceFile.hasAttribute("name")) {
                       String fileName = sourceFile.getAttribute("name");
-                      eventInputStream = new FileInputStream(fileName);
+                      eventInputStream = InflatingInputStream.open(fileName);
                     }
                 } catch (FileNotFoundException ex) {
                     System.err.println("event stream file not found: " + ex.getMessage());
@@ -391,6 +419,75 @@ public class TDMinerMain2 {
                 }
 
                 String filetype = sourceFile.getAttribute("type");
+                if (filetype.equals("tdmb")) {
+                    try {
+                        if (!sourceFile.getAttribute("streaming").equalsIgnoreCase("true")) {
+                            return new BinaryEventStreamReader().read(eventInputStream,
+                                    TDMinerMain2.intervalConstraints);
+                        }
+                        if (!sourceFile.hasAttribute("name")) {
+                            System.err.println("a streamed event stream must be a named file");
+                            System.exit(5);
+                        }
+                        if (eventInputStream instanceof InflatingInputStream) {
+                            System.err.println("a streamed event stream must be an uncompressed file");
+                            System.exit(5);
+                        }
+                        eventInputStream.close();
+                        // nothing is loaded, the stream applies the load constraints to every traversal
+                        StreamingEventDataStream eventDataStream =
+                                new StreamingEventDataStream(sourceFile.getAttribute("name"));
+                        eventDataStream.setPrefetchDepth(getAttributeInteger(sourceFile, "prefetch",
+                                PrefetchingIterable.DEFAULT_DEPTH));
+                        eventDataStream.setConstraints(TDMinerMain2.intervalConstraints);
+                        return eventDataStream;
+                    } catch (IOException ex) {
+                        System.out.println("File: " + ex.getMessage());
+                    }
+                    continue;
+                }
+                if (filetype.equals("simulator")) {
+                    // a saved simulation model is run straight to a ".tdmb" file which is then streamed
+                    if (!sourceFile.hasAttribute("dump")) {
+                        System.err.println("a simulated event stream must name its dump file");
+                        System.exit(5);
+                    }
+                    File dump = new File(sourceFile.getAttribute("dump"));
+                    try {
+                        Object model;
+                        ObjectInputStream in = new ObjectInputStream(eventInputStream);
+                        try {
+                            model = in.readObject();
+                        } finally {
+                            in.close();
+                        }
+                        if (!(model instanceof ISimulator)) {
+                            System.err.println("not a simulation model: " + model);
+                            System.exit(5);
+                        }
+                        ((ISimulator)model).simulate(dump, new PassiveObserver());
+                        StreamingEventDataStream eventDataStream =
+                                new StreamingEventDataStream(dump.getPath());
+                        eventDataStream.setPrefetchDepth(getAttributeInteger(sourceFile, "prefetch",
+                                PrefetchingIterable.DEFAULT_DEPTH));
+                        eventDataStream.setConstraints(TDMinerMain2.intervalConstraints);
+                        return eventDataStream;
+                    } catch (ClassNotFoundException ex) {
+                        System.err.println("not a simulation model: " + ex.getMessage());
+                    } catch (IOException ex) {
+                        System.out.println("File: " + ex.getMessage());
+                    }
+                    continue;
+                }
+                if (filetype.equals("xml")) {
+                    try {
+                        return new XmlEventStreamReader().read(eventInputStream,
+                                TDMinerMain2.intervalConstraints);
+                    } catch (IOException ex) {
+                        System.out.println("File: " + ex.getMessage());
+                    }
+                    continue;
+                }
                 NodeListIterable nodelist = new NodeListIterable(sourceFile.getChildNodes());
                 for( Node child : nodelist) 
                 {
@@ -444,6 +541,10 @@ public class TDMinerMain2 {
                             ereader.setStartIndex(startTimeIndex);
                             ereader.setStopIndex(stopTimeIndex);
                             ereader.setStopIndex(seqKeyIndex);
+                            ereader.setParallel(csv.getAttribute("parallel").equalsIgnoreCase("true"));
+                            if (csv.getAttribute("charset").length() > 0) {
+                                ereader.setCharset(Charset.forName(csv.getAttribute("charset")));
+                            }
 
                             return ereader.read(eventInputStream, TDMinerMain2.intervalConstraints);
                         } catch (FileNotFoundException ex) {
@@ -639,7 +740,7 @@ public class TDMinerMain2 {
     private enum OrderingEnum { unknown, ordered, unordered };
     private enum OverlapEnum { unknown, none, interleaf };
     
-    private enum FileTypeEnum { unknown, csv, matlab, xml };
+    private enum FileTypeEnum { unknown, csv, matlab, xml, snapshot };
     
     /*
      * A discovery algorithm object is a finite constraint machine of sorts.
@@ -1087,8 +1188,9 @@ public class TDMinerMain2 {
     /**
      * write the output to a file
      */
-    private static boolean report(Element base, IEpisodeSet episodes) 
+    private static boolean report(Element base, SessionInfo session) 
     {
+         IEpisodeSet episodes = session.getEpisodes();
          NodeListIterable baseChildren =  new NodeListIterable(base.getChildNodes());
          for( Node baseChild : baseChildren ) {
             if (baseChild.getNodeType() != Node.ELEMENT_NODE) continue;
@@ -1114,6 +1216,7 @@ public class TDMinerMain2 {
                   filetype = 
                       fileType.equalsIgnoreCase("xml") ? FileTypeEnum.xml
                     : fileType.equalsIgnoreCase("matlab") ? FileTypeEnum.matlab
+                    : fileType.equalsIgnoreCase("snapshot") ? FileTypeEnum.snapshot
                     : FileTypeEnum.unknown; 
                 }
                 switch (filetype) {
@@ -1126,6 +1229,13 @@ public class TDMinerMain2 {
                         throw new RuntimeException("MatlabWriter no longer supported");
                        //writer = new MatlabWriter(fileName);
                        //break;     
+                    case snapshot:
+                       try {
+                           SessionSnapshot.write(new File(fileName), session);
+                       } catch (IOException ex) {
+                           System.err.println("session snapshot not written: " + ex.getMessage());
+                       }
+                       return true;
                 }
                 episodes.export(writer);
                 return true;
@@ -1134,6 +1244,42 @@ public class TDMinerMain2 {
         return false;
     }
     
+    /**
+     * An xml target file marked streaming="true" is written a level at a
+     * time while mining, the optional "buffer" attribute is the number
+     * of bytes held before they are written.
+     * @return the writer for the streamed target, null if there is none
+     */
+    private static XMLWriter streamingTarget(Element base)
+    {
+         NodeListIterable baseChildren =  new NodeListIterable(base.getChildNodes());
+         for( Node baseChild : baseChildren ) {
+            if (baseChild.getNodeType() != Node.ELEMENT_NODE) continue;
+            if (!baseChild.getNamespaceURI().equals(nsContext.getNamespaceURI("v0"))) continue;
+            if (!baseChild.getLocalName().equalsIgnoreCase("target")) continue;
+            Element target = (Element)baseChild;
+
+            NodeListIterable targetChildren =  new NodeListIterable(target.getChildNodes());
+            for( Node targetChild : targetChildren ) {
+                if (targetChild.getNodeType() != Node.ELEMENT_NODE) continue;
+                if (targetChild.getNamespaceURI() != nsContext.getNamespaceURI("v0")) continue;
+                if (!targetChild.getLocalName().equalsIgnoreCase("file")) continue;
+                Element xFile = (Element)targetChild;
+
+                if (! xFile.hasAttribute("name")) return null;
+                if (! xFile.getAttribute("type").equalsIgnoreCase("xml")) return null;
+                if (! xFile.getAttribute("streaming").equalsIgnoreCase("true")) return null;
+
+                XMLWriter xwriter = new XMLWriter(xFile.getAttribute("name"));
+                xwriter.setConfiguration(configDoc);
+                xwriter.setBufferSize(getAttributeInteger(xFile, "buffer",
+                        XMLWriter.DEFAULT_BUFFER_SIZE));
+                return xwriter;
+            }
+         }
+        return null;
+    }
+
     /**
      * Examine the action for discover elements.
      */
@@ -1163,6 +1309,30 @@ public class TDMinerMain2 {
             return;
         }
 
+        /* =================
+        * a snapshot of an earlier session is resumed rather than mined again
+        */
+        if (discover.hasAttribute("resume")) {
+            File snapshot = new File(discover.getAttribute("resume"));
+            if (!snapshot.isFile()) {
+                System.err.println("session snapshot not found: " + snapshot);
+                return;
+            }
+            if (!SessionSnapshot.isSnapshot(snapshot)) {
+                System.err.println("not a session snapshot: " + snapshot);
+                return;
+            }
+            try {
+                SessionSnapshot.read(snapshot, session);
+            } catch (IOException ex) {
+                System.err.println("session snapshot not readable: " + ex.getMessage());
+                return;
+            }
+            System.out.println("Session resumed from: " + snapshot);
+            report(discover, session);
+            return;
+        }
+
         /* =================
         * if the algorithm is supplied it overrides the deduction process
         */
@@ -1377,17 +1547,40 @@ public class TDMinerMain2 {
             session.setAllowRepeat(this.allowRepeatedEvents);
             session.setDurationSingle(this.singleInterval);
             session.setChunkLimit((int)this.candidateChunkLimit);
+            session.setCountThreads(getAttributeInteger(discover, "threads", 1));
+            session.setSharedScan(!discover.getAttribute("shared-scan").equalsIgnoreCase("false"));
 
+            XMLWriter levelWriter = streamingTarget(discover);
+            session.setLevelWriter(levelWriter);
+            boolean streamed = false;
             try {
                 miner.mineSequence(new PassiveObserver(), session);
             } catch (IEpisode.NotImplementedException ex) {
                 System.err.println("Episode method not implemented: "+ ex.getMessage());
             } catch (edu.iisc.tdminercore.util.IObserver.NotImplementedException ex) {
                 System.err.println("Observer method not implemented: "+ ex.getMessage());
+            } finally {
+                // the miner drops a level writer which fails
+                streamed = (levelWriter != null && session.getLevelWriter() == levelWriter);
+                if (streamed) {
+                    try {
+                        levelWriter.endLevels();
+                    } catch (IOException ex) {
+                        System.err.println("Problem writing XML: " + ex.getMessage());
+                    }
+                }
+                session.setLevelWriter(null);
+            }
+            if (eventDataStream instanceof StreamingEventDataStream) {
+                StreamingEventDataStream streaming = (StreamingEventDataStream)eventDataStream;
+                if (streaming.getPrefetchDepth() > 0) {
+                    System.out.println("Prefetch: " + streaming.getPrefetchStatistics());
+                }
             }
 
-            EpisodeSet result = session.getEpisodes();
-            report(discover, result);
+            // a streamed target has been written as the levels were found
+            if (streamed) return;
+            report(discover, session);
             return;
         }
         return;
@@ -1411,8 +1604,17 @@ public class TDMinerMain2 {
     public void processAction(Element action, SessionInfo session) throws IOException {
         // This little trick preserves the old seq
         IEventDataStream wseq = openEventDataStream(action);
+        if (wseq != null && isCompressedStream(action)) {
+            CompressedEventStream compressed =
+                    new CompressedEventStream(wseq, session.getTimeGranularity());
+            System.out.println("Compressed " + compressed.getSize() + " events into "
+                    + compressed.getEncodedSize() + " bytes");
+            release(wseq);
+            wseq = compressed;
+        }
         if (seq == null && wseq == null) { return; }
         if (seq == null) seq = wseq;
+        else release(wseq);
         
         // System.out.println(seq.getEventTypeCount() + "\n Event Types: \n" + seq.getEventFactor());
         // System.out.println("Sequence length = " + seq.getSize());
@@ -1424,6 +1626,19 @@ public class TDMinerMain2 {
         // EpisodeInstanceSet instances = harvest(action, seq);
     }
         
+    /**
+     * Close a stream which keeps its file open.
+     */
+    private static void release(IEventDataStream stream)
+    {
+        if (!(stream instanceof Closeable)) return;
+        try {
+            ((Closeable)stream).close();
+        } catch (IOException ex) {
+            System.err.println("event stream problem: " + ex.getMessage());
+        }
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -1434,19 +1649,23 @@ public class TDMinerMain2 {
         
         TDMinerMain2 instance = new TDMinerMain2();
         SessionInfo session = new SessionInfo();
-        instance.processAction(root, session);
-        
-        NodeListIterable rootChildren =  new NodeListIterable(root.getChildNodes());
-            
-        for( Node child : rootChildren ) {
-            if (child.getNodeType() != child.ELEMENT_NODE) continue;
-            if (child.getNamespaceURI() != nsContext.getNamespaceURI("v0")) continue;
-            if (!child.getLocalName().equalsIgnoreCase("action")) continue;
+        try {
+            instance.processAction(root, session);
 
-            Element action = (Element)child;
-       
-            instance.processAction(action, session);
-        } 
+            NodeListIterable rootChildren =  new NodeListIterable(root.getChildNodes());
+
+            for( Node child : rootChildren ) {
+                if (child.getNodeType() != child.ELEMENT_NODE) continue;
+                if (child.getNamespaceURI() != nsContext.getNamespaceURI("v0")) continue;
+                if (!child.getLocalName().equalsIgnoreCase("action")) continue;
+
+                Element action = (Element)child;
+
+                instance.processAction(action, session);
+            }
+        } finally {
+            release(instance.seq);
+        }
     }
    
 }
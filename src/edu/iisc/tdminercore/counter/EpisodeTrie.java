@@ -0,0 +1,180 @@
+/*
+ * EpisodeTrie.java
+ *
+ */
+
+package edu.iisc.tdminercore.counter;
+
+import edu.iisc.tdminercore.data.IEpisode;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serial episodes of one size arranged in a prefix trie.
+ * The episodes are placed in lexicographic order of their event types,
+ * so the episodes below a node hold a contiguous range of positions;
+ * a node at depth d is entered on its event type by the episodes of its
+ * range from the state d - 1. The last level has a leaf for each episode,
+ * even where two episodes are the same.
+ * Node 0 is the root, the children of a node are numbered consecutively.
+ */
+final class EpisodeTrie
+{
+    /** the size of the episodes */
+    final int size;
+    /** the number of event types, one more than the largest in an episode */
+    final int typeCount;
+    /** the episode index at each position */
+    final int[] order;
+    /** the position of each episode index */
+    final int[] position;
+
+    /** the number of nodes, the root included */
+    final int nodes;
+    final int[] depth;
+    /** the event type on which the node is entered */
+    final int[] type;
+    /** the range of positions below the node, from first to end exclusive */
+    final int[] first;
+    final int[] end;
+    /** the children of the node are numbered from firstChild to endChild exclusive */
+    final int[] firstChild;
+    final int[] endChild;
+    /** above[d][p] is the node at depth d above the position p */
+    final int[][] above;
+
+    private EpisodeTrie(int size, int typeCount, int[] order, int[] position, int nodes,
+            int[] depth, int[] type, int[] first, int[] end,
+            int[] firstChild, int[] endChild, int[][] above)
+    {
+        this.size = size;
+        this.typeCount = typeCount;
+        this.order = order;
+        this.position = position;
+        this.nodes = nodes;
+        this.depth = depth;
+        this.type = type;
+        this.first = first;
+        this.end = end;
+        this.firstChild = firstChild;
+        this.endChild = endChild;
+        this.above = above;
+    }
+
+    /**
+     * @return the trie of the episodes, null if they are not all serial
+     *   episodes of the same size.
+     */
+    static EpisodeTrie build(List<IEpisode> episodes, int typeCount)
+    {
+        int count = episodes.size();
+        if (count == 0) return null;
+        int size = episodes.get(0).size();
+        if (size < 1) return null;
+        final int[][] alphas = new int[count][];
+        for (int i = 0; i < count; i++)
+        {
+            IEpisode e = episodes.get(i);
+            if (e.size() != size) return null;
+            alphas[i] = new int[size];
+            for (int k = 0; k < size; k++)
+            {
+                alphas[i][k] = e.getEvent(k);
+                if (alphas[i][k] < 0) return null;
+                typeCount = Math.max(typeCount, alphas[i][k] + 1);
+            }
+        }
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++) sorted[i] = i;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int[] x = alphas[a];
+                int[] y = alphas[b];
+                for (int k = 0; k < x.length; k++)
+                {
+                    if (x[k] != y[k]) return (x[k] < y[k]) ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        int[] order = new int[count];
+        int[] position = new int[count];
+        for (int p = 0; p < count; p++)
+        {
+            order[p] = sorted[p];
+            position[sorted[p]] = p;
+        }
+
+        // the nodes are numbered level by level, so the children of
+        // a node follow those of the nodes before it on its level
+        int capacity = 1 + count * size;
+        int[] depth = new int[capacity];
+        int[] type = new int[capacity];
+        int[] first = new int[capacity];
+        int[] end = new int[capacity];
+        int[] firstChild = new int[capacity];
+        int[] endChild = new int[capacity];
+        int[][] above = new int[size + 1][count];
+        int nodes = 1;
+        first[0] = 0;
+        end[0] = count;
+        type[0] = -1;
+        int levelStart = 0;
+        int levelEnd = 1;
+        for (int d = 0; d < size; d++)
+        {
+            for (int n = levelStart; n < levelEnd; n++)
+            {
+                firstChild[n] = nodes;
+                int p = first[n];
+                while (p < end[n])
+                {
+                    int A = alphas[order[p]][d];
+                    int q = p + 1;
+                    // the last level has a leaf for each episode
+                    if (d < size - 1)
+                    {
+                        while (q < end[n] && alphas[order[q]][d] == A) q++;
+                    }
+                    depth[nodes] = d + 1;
+                    type[nodes] = A;
+                    first[nodes] = p;
+                    end[nodes] = q;
+                    for (int r = p; r < q; r++) above[d + 1][r] = nodes;
+                    nodes++;
+                    p = q;
+                }
+                endChild[n] = nodes;
+            }
+            levelStart = levelEnd;
+            levelEnd = nodes;
+        }
+        for (int n = levelStart; n < levelEnd; n++)
+        {
+            firstChild[n] = nodes;
+            endChild[n] = nodes;
+        }
+        return new EpisodeTrie(size, typeCount, order, position, nodes,
+                depth, type, first, end, firstChild, endChild, above);
+    }
+
+    boolean isLeaf(int node) { return depth[node] == size; }
+
+    /** the number of nodes which are not leaves, the root included */
+    int innerNodes() { return nodes - order.length; }
+
+    /**
+     * Whether the episodes share enough of their prefixes to be counted in
+     * the trie. An inner node moves the episodes entering it together, but
+     * each episode enters and leaves its leaf by itself, at about twice the
+     * cost of a transition of a single automaton; the trie is taken when
+     * that comes to well under a transition for each state of each episode.
+     */
+    boolean isShared()
+    {
+        long episodes = order.length;
+        return 5L * (innerNodes() + 2L * episodes) <= 3L * size * episodes;
+    }
+}
@@ -37,6 +37,19 @@ public class FastNonOverlappedEpisodeCounter extends AbstractSerialEpisodeCounte
             SessionInfo session)
         throws IObserver.NotImplementedException, IEpisode.NotImplementedException
     {
+        if (!session.isTrackEpisodes())
+        {
+            EpisodeTrie trie = EpisodeTrie.build(episodes, session.getSequence().getEventTypeCount());
+            if (trie != null && trie.isShared())
+            {
+                countEpisodesInTrie(episodes, trie, observer, session);
+            }
+            else
+            {
+                countEpisodesWithoutTracking(episodes, observer, session);
+            }
+            return;
+        }
         IEventDataStream sequence = session.getSequence();
         observer.startup();
         session.resetSegIndex();
@@ -155,6 +168,236 @@ public class FastNonOverlappedEpisodeCounter extends AbstractSerialEpisodeCounte
         
     }
     
+    /**
+     * The same algorithm with the automata held in arrays.
+     * Each episode has a single automaton, its slot is the episode's index;
+     * the state of each is held in an int array and the waits are lists
+     * threaded through the slots, so a transition allocates nothing.
+     */
+    private void countEpisodesWithoutTracking(List<IEpisode> episodes, IObserver observer,
+            SessionInfo session)
+    {
+        IEventDataStream sequence = session.getSequence();
+        observer.startup();
+        session.resetSegIndex();
+        observer.update(0);
+        int typeCount = sequence.getEventTypeCount();
+        int[][] alphas = new int[episodes.size()][];
+        for (int i = 0; i < episodes.size(); i++)
+        {
+            IEpisode e = episodes.get(i);
+            e.resetVotes();
+            int num_segs = 1;
+            if (session.isSegmented()) num_segs = session.getSegIndexLen();
+            e.initVotes(num_segs);
+            alphas[i] = new int[e.size()];
+            for (int k = 0; k < e.size(); k++)
+            {
+                alphas[i][k] = e.getEvent(k);
+                typeCount = Math.max(typeCount, alphas[i][k] + 1);
+            }
+        }
+        WaitLists waits = new WaitLists(typeCount, episodes.size());
+        int[] states = new int[episodes.size()];
+        for (int i = 0; i < episodes.size(); i++)
+        {
+            waits.link(i, alphas[i][0]);
+        }
+        int[] bag = new int[episodes.size()];
+
+        IEventIterable iterable = sequence.iterable(observer);
+        for(IEvent event : iterable)
+        {
+            int E_i = event.getEventType();
+            double t_i = event.getStartTime();
+            session.updateSegIndex(t_i);
+            if (E_i < 0 || E_i >= typeCount) continue;
+
+            int bagSize = 0;
+            for (int alphano = waits.first(E_i); alphano != WaitLists.NONE; )
+            {
+                int following = waits.next(alphano);
+                int[] alpha = alphas[alphano];
+                int j = states[alphano];
+                int j_1 = (j + 1) % alpha.length;
+                waits.unlink(alphano);
+                states[alphano] = j_1;
+                // an automaton moves at most once on an event
+                if (alpha[j_1] == E_i)
+                {
+                    bag[bagSize++] = alphano;
+                }
+                else
+                {
+                    waits.link(alphano, alpha[j_1]);
+                }
+                if (j == alpha.length - 1)
+                {
+                    episodes.get(alphano).incrVotes(session.getCurrentSegIndex());
+                }
+                alphano = following;
+            }
+            for (int k = 0; k < bagSize; k++)
+            {
+                waits.link(bag[k], E_i);
+            }
+        }
+        iterable.setSampleSize(episodes);
+
+        observer.shutdown();
+    }
+
+    /**
+     * The same algorithm with the episodes arranged in a prefix trie.
+     * The episodes which have the same first d event types and have all
+     * reached the state d wait together, on the children of their node;
+     * the state of each episode is a bit of the set of those in the state,
+     * in the order of the trie, so an event moves every episode entering
+     * a node with a few operations on the words of the node's range.
+     * An episode's own state is only touched when it enters its leaf.
+     * The waits are kept for each node, on the node's event type, one list
+     * for each state; an event walks the lists from the last state back to
+     * the first, so no episode moves twice on it, and an episode completed
+     * by it begins again after the walk.
+     */
+    private void countEpisodesInTrie(List<IEpisode> episodes, EpisodeTrie trie,
+            IObserver observer, SessionInfo session)
+    {
+        IEventDataStream sequence = session.getSequence();
+        observer.startup();
+        session.resetSegIndex();
+        observer.update(0);
+        for (int i = 0; i < episodes.size(); i++)
+        {
+            IEpisode e = episodes.get(i);
+            e.resetVotes();
+            int num_segs = 1;
+            if (session.isSegmented()) num_segs = session.getSegIndexLen();
+            e.initVotes(num_segs);
+        }
+        int N = trie.size;
+        int typeCount = trie.typeCount;
+        int count = episodes.size();
+        int words = (count + 63) >>> 6;
+        // states[d] holds the positions of the episodes in the state d
+        long[][] states = new long[N][words];
+        for (int p = 0; p < count; p++)
+        {
+            states[0][p >>> 6] |= 1L << p;
+        }
+        // the number of episodes of each node's range waiting to enter it
+        int[] waiting = new int[trie.nodes];
+        WaitLists waits = new WaitLists(N * typeCount, trie.nodes);
+        for (int c = trie.firstChild[0]; c < trie.endChild[0]; c++)
+        {
+            waiting[c] = trie.end[c] - trie.first[c];
+            waits.link(c, trie.type[c]);
+        }
+        int[] bag = new int[count];
+
+        IEventIterable iterable = sequence.iterable(observer);
+        for(IEvent event : iterable)
+        {
+            int E_i = event.getEventType();
+            double t_i = event.getStartTime();
+            session.updateSegIndex(t_i);
+            if (E_i < 0 || E_i >= typeCount) continue;
+
+            int bagSize = 0;
+            for (int j = N - 1; j >= 0; j--)
+            {
+                for (int node = waits.first(j * typeCount + E_i); node != WaitLists.NONE; )
+                {
+                    int following = waits.next(node);
+                    int moving = waiting[node];
+                    waits.unlink(node);
+                    waiting[node] = 0;
+                    if (trie.isLeaf(node))
+                    {
+                        int p = trie.first[node];
+                        states[j][p >>> 6] &= ~(1L << p);
+                        episodes.get(trie.order[p]).incrVotes(session.getCurrentSegIndex());
+                        bag[bagSize++] = p;
+                    }
+                    else if (moving < trie.endChild[node] - trie.firstChild[node])
+                    {
+                        // fewer episodes than children, each is placed by itself
+                        int[] child = trie.above[j + 2];
+                        long[] from = states[j];
+                        long[] to = states[j + 1];
+                        int end = trie.end[node];
+                        int last = (end - 1) >>> 6;
+                        for (int w = trie.first[node] >>> 6; w <= last; w++)
+                        {
+                            long bits = from[w] & mask(w, trie.first[node], end);
+                            if (bits == 0) continue;
+                            from[w] &= ~bits;
+                            to[w] |= bits;
+                            for (; bits != 0; bits &= bits - 1)
+                            {
+                                int g = child[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                                if (waiting[g] == 0) waits.link(g, (j + 1) * typeCount + trie.type[g]);
+                                waiting[g]++;
+                            }
+                        }
+                    }
+                    else
+                    {
+                        for (int g = trie.firstChild[node]; g < trie.endChild[node]; g++)
+                        {
+                            int moved = move(states[j], states[j + 1], trie.first[g], trie.end[g]);
+                            if (moved == 0) continue;
+                            if (waiting[g] == 0) waits.link(g, (j + 1) * typeCount + trie.type[g]);
+                            waiting[g] += moved;
+                        }
+                    }
+                    node = following;
+                }
+            }
+            for (int k = 0; k < bagSize; k++)
+            {
+                int p = bag[k];
+                int c = trie.above[1][p];
+                states[0][p >>> 6] |= 1L << p;
+                if (waiting[c] == 0) waits.link(c, trie.type[c]);
+                waiting[c]++;
+            }
+        }
+        iterable.setSampleSize(episodes);
+
+        observer.shutdown();
+    }
+
+    /**
+     * Move the positions from first to end exclusive from one set to the other.
+     * @return the number of positions moved.
+     */
+    private static int move(long[] from, long[] to, int first, int end)
+    {
+        int moved = 0;
+        int last = (end - 1) >>> 6;
+        for (int w = first >>> 6; w <= last; w++)
+        {
+            long bits = from[w] & mask(w, first, end);
+            if (bits == 0) continue;
+            from[w] &= ~bits;
+            to[w] |= bits;
+            moved += Long.bitCount(bits);
+        }
+        return moved;
+    }
+
+    /**
+     * @return the bits of the word w which lie from first to end exclusive.
+     */
+    private static long mask(int w, int first, int end)
+    {
+        long mask = -1L;
+        if (w == first >>> 6) mask &= -1L << first;
+        if (w == (end - 1) >>> 6) mask &= -1L >>> (63 - ((end - 1) & 63));
+        return mask;
+    }
+
     public String getName()
     {
 	return "Fast Non-overlapped count(Serial)";
@@ -34,6 +34,11 @@ public class NonOverlappedEpisodeCounter extends AbstractSerialEpisodeCounter
             SessionInfo session)
         throws IObserver.NotImplementedException, IEpisode.NotImplementedException
     {
+        if (!session.isTrackEpisodes() && !hasRepeatedEvents(episodes))
+        {
+            countEpisodesWithoutTracking(episodes, observer, session);
+            return;
+        }
         IEventDataStream sequence = session.getSequence();
 	observer.startup();
         session.resetSegIndex();
@@ -206,6 +211,122 @@ public class NonOverlappedEpisodeCounter extends AbstractSerialEpisodeCounter
         observer.update(sequence.getSize());
     }
     
+    /**
+     * @return true if an event type occurs more than once in any of the episodes.
+     */
+    static boolean hasRepeatedEvents(List<IEpisode> episodes)
+    {
+        for (IEpisode e : episodes)
+        {
+            for (int k = 1; k < e.size(); k++)
+            {
+                for (int l = 0; l < k; l++)
+                {
+                    if (e.getEvent(k) == e.getEvent(l)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The same algorithm with the automata held in arrays.
+     * There is at most one automaton of an episode in each state,
+     * each episode has a slot per state, holding the start time of the
+     * automaton in that state; the automaton in the first state is always
+     * waiting. When no event type is repeated within an episode each wait
+     * list holds at most one automaton of an episode, so a transition only
+     * moves a start time between slots and links or unlinks them, and a
+     * completion unlinks the episode's slots in place.
+     */
+    private void countEpisodesWithoutTracking(List<IEpisode> episodes, IObserver observer,
+            SessionInfo session)
+    {
+        IEventDataStream sequence = session.getSequence();
+        observer.startup();
+        session.resetSegIndex();
+        double episodeExp = session.getEpisodeExpiry();
+        observer.update(0);
+        int typeCount = sequence.getEventTypeCount();
+        int slots = 0;
+        int[][] alphas = new int[episodes.size()][];
+        for (int i = 0; i < episodes.size(); i++)
+        {
+            IEpisode e = episodes.get(i);
+            e.resetVotes();
+            int num_segs = 1;
+            if (session.isSegmented()) num_segs = session.getSegIndexLen();
+            e.initVotes(num_segs);
+            alphas[i] = new int[e.size()];
+            for (int k = 0; k < e.size(); k++)
+            {
+                alphas[i][k] = e.getEvent(k);
+                typeCount = Math.max(typeCount, alphas[i][k] + 1);
+            }
+            slots += e.size();
+        }
+        WaitLists waits = new WaitLists(typeCount, slots);
+        int[] episodeOf = new int[slots];
+        int[] stateOf = new int[slots];
+        double[] init = new double[slots];
+        int[] base = new int[episodes.size()];
+        for (int i = 0, slot = 0; i < episodes.size(); i++)
+        {
+            base[i] = slot;
+            for (int k = 0; k < alphas[i].length; k++, slot++)
+            {
+                episodeOf[slot] = i;
+                stateOf[slot] = k;
+            }
+            waits.link(base[i], alphas[i][0]);
+        }
+
+        IEventIterable iterable = sequence.iterable(observer);
+        for(IEvent event : iterable)
+        {
+            if (observer.interrupted()) break;
+
+            int E_i = event.getEventType();
+            double t_i = event.getStartTime();
+            session.updateSegIndex(t_i);
+            if (E_i < 0 || E_i >= typeCount) continue;
+
+            for (int slot = waits.first(E_i); slot != WaitLists.NONE; )
+            {
+                int following = waits.next(slot);
+                int alphano = episodeOf[slot];
+                int[] alpha = alphas[alphano];
+                int j = stateOf[slot];
+                // the automaton in the first state stays, a clone moves on
+                double start = t_i;
+                if (j > 0)
+                {
+                    start = init[slot];
+                    waits.unlink(slot);
+                }
+                if (j < alpha.length - 1)
+                {
+                    // the moving automaton replaces any already in the next state
+                    init[slot + 1] = start;
+                    if (!waits.isLinked(slot + 1)) waits.link(slot + 1, alpha[j + 1]);
+                }
+                else if ((t_i - start) < episodeExp)
+                {
+                    episodes.get(alphano).incrVotes(session.getCurrentSegIndex());
+                    for (int k = 1; k < alpha.length; k++)
+                    {
+                        if (waits.isLinked(base[alphano] + k)) waits.unlink(base[alphano] + k);
+                    }
+                }
+                slot = following;
+            }
+        }
+        iterable.setSampleSize(episodes);
+
+        observer.shutdown();
+        observer.update(sequence.getSize());
+    }
+
     public String getName()
     {
 	return "Non-overlapped count with episode expiry constraint(Serial)";
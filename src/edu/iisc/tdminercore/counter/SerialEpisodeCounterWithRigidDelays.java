@@ -7,16 +7,17 @@
 
 package edu.iisc.tdminercore.counter;
 
+import edu.iisc.tdminercore.data.EventTypeIndex;
 import edu.iisc.tdminercore.data.IEpisode;
 import edu.iisc.tdminercore.data.IEvent;
 import edu.iisc.tdminercore.data.IEventDataStream;
-import edu.iisc.tdminercore.data.IEventDataStream.IEventIterable;
 import edu.iisc.tdminercore.data.InstEvent;
 import edu.iisc.tdminercore.data.Interval;
 import edu.iisc.tdminercore.miner.SessionInfo;
 import edu.iisc.tdminercore.util.IObserver;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 
@@ -97,9 +98,20 @@ public class SerialEpisodeCounterWithRigidDelays extends AbstractSerialCounterIn
 	    }
         }
         
-        IEventIterable iterable = sequence.iterable(observer);
-        for(IEvent seqevent : iterable)
+        // only the events of the episodes' types can move an automaton,
+        // they are looked up in the type index and visited in stream order
+        EventTypeIndex index = sequence.getTypeIndex();
+        List<Interval> constraints = null;
+        if (sequence.getConstraints() != null && observer.getConstraintMode() != null)
         {
+            constraints = sequence.getConstraints().getConstraints(observer.getConstraintMode());
+        }
+        int[] visit = index.positionsOf(episodeTypes(episodes), constraints);
+        for(int vx = 0; vx < visit.length; vx++)
+        {
+            if (observer.interrupted()) break;
+            if (vx % 50 == 0) observer.update(visit[vx]);
+            IEvent seqevent = sequence.get(visit[vx]);
             int E_i = seqevent.getEventType();
             double t_i = (int)((seqevent.getStartTime())/binsize) * binsize;
             IEvent event = new InstEvent(seqevent.getSourceId(), E_i, t_i);
@@ -243,13 +255,36 @@ public class SerialEpisodeCounterWithRigidDelays extends AbstractSerialCounterIn
                 }
             }//for
         }
-        iterable.setSampleSize(episodes);
+        int sampleSize = index.count(constraints);
+        for(IEpisode e : episodes)
+        {
+            e.setSampleSize(0, sampleSize);
+        }
          
         observer.shutdown();
 //	observer.dispose();
         observer.update(sequence.getSize());
     }
     
+    /**
+     * @return the distinct event types of the episodes.
+     */
+    private static int[] episodeTypes(List<IEpisode> episodes)
+    {
+        BitSet types = new BitSet();
+        for(IEpisode e : episodes)
+        {
+            for (int k = 0; k < e.size(); k++) types.set(e.getEvent(k));
+        }
+        int[] result = new int[types.cardinality()];
+        int fill = 0;
+        for (int type = types.nextSetBit(0); type >= 0; type = types.nextSetBit(type + 1))
+        {
+            result[fill++] = type;
+        }
+        return result;
+    }
+    
     public String getName()
     {
         return "Discovery of episodes & inter-event rigid delays(Serial)";
@@ -0,0 +1,534 @@
+/*
+ * TimePartitionedCounter.java
+ *
+ */
+
+package edu.iisc.tdminercore.counter;
+
+import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventDataStream.IEventIterable;
+import edu.iisc.tdminercore.miner.SessionInfo;
+import edu.iisc.tdminercore.util.IObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Counts non-overlapped occurrences on several cores by splitting the
+ * stream in time rather than splitting the candidates, for a long stream
+ * and too few candidates to keep the cores busy.
+ *
+ * The stream is traversed once, a chunk at a time; the event types and
+ * times of a chunk are taken into arrays and the chunk is cut into
+ * consecutive blocks which are counted in parallel.
+ * Only the first block of a chunk knows the state of the automata where
+ * it begins, the others begin from a guess which is reconciled with the
+ * true state, in order, once every block has been counted:
+ * <ul>
+ * <li> {@link FastNonOverlappedEpisodeCounter}: an episode's state is that of
+ *   its single automaton, so a block runs a lane for every state the
+ *   automaton might begin in; the lanes are folded into one once they
+ *   agree, and the true state picks the lane whose count and final state
+ *   are taken.
+ * <li> {@link NonOverlappedEpisodeCounter}: an episode's state is the start
+ *   time of the automaton, if any, in each of its states. An automaton
+ *   which began an expiry or more before the block can never complete,
+ *   so a block warms up over the events within an expiry before it from
+ *   a fresh state. The guess is right for an episode when it holds the
+ *   same live automata as the true state; the episodes for which it is not
+ *   are counted again over the block from the true state.
+ * </ul>
+ * The counts are those the serial counters give.
+ * Sessions which track episodes or segment the votes are left to the
+ * counters themselves, as are episodes with a repeated event type under
+ * the expiry counter, whose automata may share a wait list.
+ */
+public class TimePartitionedCounter
+{
+    /** the fewest events in a block */
+    static final int MIN_BLOCK = 1 << 14;
+    /** the most events in a block, bounding the events held at once */
+    static final int MAX_BLOCK = 1 << 18;
+
+    private static ForkJoinPool pool = null;
+
+    private TimePartitionedCounter()
+    {
+    }
+
+    private static synchronized ForkJoinPool pool()
+    {
+        if (pool == null) pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * @return true if the episodes may be counted in time blocks by the counter.
+     */
+    public static boolean isApplicable(AbstractEpisodeCounter counter, List<IEpisode> episodes,
+            SessionInfo session)
+    {
+        if (session.getCountThreads() < 2) return false;
+        if (session.isTrackEpisodes() || session.isSegmented()) return false;
+        if (session.getSequence().getSize() < 2 * MIN_BLOCK) return false;
+        if (counter.getClass() == FastNonOverlappedEpisodeCounter.class) return true;
+        if (counter.getClass() != NonOverlappedEpisodeCounter.class) return false;
+        return !NonOverlappedEpisodeCounter.hasRepeatedEvents(episodes);
+    }
+
+    public static void countEpisodes(AbstractEpisodeCounter counter, List<IEpisode> episodes,
+            IObserver observer, SessionInfo session)
+    {
+        int blocks = session.getCountThreads();
+        int blockSize = session.getSequence().getSize() / blocks + 1;
+        blockSize = Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, blockSize));
+        countEpisodes(counter, episodes, observer, session, blocks, blockSize);
+    }
+
+    static void countEpisodes(AbstractEpisodeCounter counter, List<IEpisode> episodes,
+            IObserver observer, SessionInfo session, int blocks, int blockSize)
+    {
+        IEventDataStream sequence = session.getSequence();
+        observer.startup();
+        observer.update(0);
+        int typeCount = sequence.getEventTypeCount();
+        int[][] events = new int[episodes.size()][];
+        for (int e = 0; e < episodes.size(); e++) {
+            IEpisode alpha = episodes.get(e);
+            alpha.resetVotes();
+            alpha.initVotes(1);
+            events[e] = new int[alpha.size()];
+            for (int k = 0; k < alpha.size(); k++) {
+                events[e][k] = alpha.getEvent(k);
+                typeCount = Math.max(typeCount, events[e][k] + 1);
+            }
+        }
+        Stitcher stitcher = (counter instanceof NonOverlappedEpisodeCounter)
+                ? new ExpiringStitcher(events, typeCount, session.getEpisodeExpiry())
+                : new FastStitcher(events, typeCount);
+
+        int[] types = new int[blocks * blockSize];
+        double[] times = new double[blocks * blockSize];
+        IEventIterable iterable = sequence.iterable(observer);
+        Iterator<IEvent> iterator = iterable.iterator();
+        while (true) {
+            int size = 0;
+            while (size < types.length && iterator.hasNext()) {
+                IEvent event = iterator.next();
+                types[size] = event.getEventType();
+                times[size] = event.getStartTime();
+                size++;
+            }
+            if (size == 0) break;
+            stitcher.chunk(types, times, size, blockSize);
+            if (size < types.length) break;
+        }
+        iterable.setSampleSize(episodes);
+        for (int e = 0; e < episodes.size(); e++) {
+            episodes.get(e).setVotes(0, stitcher.counts[e]);
+        }
+        observer.shutdown();
+        observer.update(sequence.getSize());
+    }
+
+    private static <T extends Callable<Void>> void invoke(List<T> tasks)
+    {
+        try {
+            for (Future<Void> result : pool().invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while counting", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("counting failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Carries the true state of every episode from chunk to chunk.
+     */
+    private static abstract class Stitcher
+    {
+        final int[][] events;
+        final int typeCount;
+        final int[] counts;
+
+        Stitcher(int[][] events, int typeCount)
+        {
+            this.events = events;
+            this.typeCount = typeCount;
+            this.counts = new int[events.length];
+        }
+
+        abstract void chunk(int[] types, double[] times, int size, int blockSize);
+    }
+
+    private static final class Lane
+    {
+        final int episode;
+        int state;
+        int count = 0;
+
+        Lane(int episode, int state)
+        {
+            this.episode = episode;
+            this.state = state;
+        }
+    }
+
+    private static final class FastStitcher extends Stitcher
+    {
+        private final int[] states;
+
+        FastStitcher(int[][] events, int typeCount)
+        {
+            super(events, typeCount);
+            this.states = new int[events.length];
+        }
+
+        void chunk(int[] types, double[] times, int size, int blockSize)
+        {
+            List<FastBlock> blocks = new ArrayList<FastBlock>();
+            for (int from = 0; from < size; from += blockSize) {
+                blocks.add(new FastBlock(this, types, from, Math.min(size, from + blockSize),
+                        (from == 0) ? states : null));
+            }
+            invoke(blocks);
+            for (FastBlock block : blocks) {
+                for (int e = 0; e < events.length; e++) {
+                    Lane lane = block.lanes[e][states[e]];
+                    counts[e] += lane.count + block.offsets[e][states[e]];
+                    states[e] = lane.state;
+                }
+            }
+        }
+    }
+
+    /**
+     * A block of the fast counter.
+     * Each lane is an automaton begun in one of the states,
+     * the lanes of an episode are folded into one once they are all
+     * in the same state, each lane's count being kept as an offset.
+     */
+    private static final class FastBlock implements Callable<Void>
+    {
+        private final int[][] events;
+        private final int[] types;
+        private final int from;
+        private final int to;
+        /** the lane begun in each state, null where the true state is known to differ */
+        final Lane[][] lanes;
+        final int[][] offsets;
+        private final boolean[] folded;
+        private final List<List<Lane>> waits;
+
+        /**
+         * @param entry the states the block begins in, null if not known
+         */
+        FastBlock(FastStitcher stitcher, int[] types, int from, int to, int[] entry)
+        {
+            this.events = stitcher.events;
+            this.types = types;
+            this.from = from;
+            this.to = to;
+            int episodes = events.length;
+            this.lanes = new Lane[episodes][];
+            this.offsets = new int[episodes][];
+            this.folded = new boolean[episodes];
+            this.waits = new ArrayList<List<Lane>>(stitcher.typeCount);
+            for (int ix = 0; ix < stitcher.typeCount; ix++) {
+                waits.add(new ArrayList<Lane>());
+            }
+            for (int e = 0; e < episodes; e++) {
+                int size = events[e].length;
+                lanes[e] = new Lane[size];
+                offsets[e] = new int[size];
+                if (entry != null || size == 1) {
+                    int state = (entry == null) ? 0 : entry[e];
+                    lanes[e][state] = new Lane(e, state);
+                    waits.get(events[e][state]).add(lanes[e][state]);
+                    folded[e] = true;
+                    continue;
+                }
+                for (int state = 0; state < size; state++) {
+                    lanes[e][state] = new Lane(e, state);
+                    waits.get(events[e][state]).add(lanes[e][state]);
+                }
+            }
+        }
+
+        public Void call()
+        {
+            List<Lane> bag = new ArrayList<Lane>();
+            int[] moved = new int[events.length];
+            boolean[] isMoved = new boolean[events.length];
+            for (int p = from; p < to; p++) {
+                int E_i = types[p];
+                if (E_i < 0 || E_i >= waits.size()) continue;
+                List<Lane> autoList = waits.get(E_i);
+                int movedCount = 0;
+                for (int i = 0; i < autoList.size(); i++) {
+                    Lane lane = autoList.get(i);
+                    int[] alpha = events[lane.episode];
+                    int j = lane.state;
+                    if (j == alpha.length - 1) lane.count++;
+                    int j_1 = (j + 1) % alpha.length;
+                    lane.state = j_1;
+                    // the order of the lanes does not matter, the last takes this one's place
+                    int last = autoList.size() - 1;
+                    autoList.set(i, autoList.get(last));
+                    autoList.remove(last);
+                    i--;
+                    if (alpha[j_1] == E_i) {
+                        bag.add(lane);
+                    } else {
+                        waits.get(alpha[j_1]).add(lane);
+                    }
+                    if (!folded[lane.episode] && !isMoved[lane.episode]) {
+                        isMoved[lane.episode] = true;
+                        moved[movedCount++] = lane.episode;
+                    }
+                }
+                autoList.addAll(bag);
+                bag.clear();
+                for (int ix = 0; ix < movedCount; ix++) {
+                    isMoved[moved[ix]] = false;
+                    fold(moved[ix]);
+                }
+            }
+            return null;
+        }
+
+        private void fold(int e)
+        {
+            Lane[] begun = lanes[e];
+            Lane kept = begun[0];
+            for (Lane lane : begun) {
+                if (lane.state != kept.state) return;
+            }
+            List<Lane> autoList = waits.get(events[e][kept.state]);
+            for (int state = 1; state < begun.length; state++) {
+                Lane lane = begun[state];
+                offsets[e][state] = lane.count - kept.count;
+                for (int ix = autoList.size() - 1; ix >= 0; ix--) {
+                    if (autoList.get(ix) == lane) {
+                        autoList.remove(ix);
+                        break;
+                    }
+                }
+                begun[state] = kept;
+            }
+            folded[e] = true;
+        }
+    }
+
+    private static final class ExpiringStitcher extends Stitcher
+    {
+        private final double expiry;
+        /** the start time of the automaton in each state, NaN where there is none */
+        private final double[][] starts;
+        private final int[][] typeEpisodes;
+        private final int[][] typeStates;
+
+        ExpiringStitcher(int[][] events, int typeCount, double expiry)
+        {
+            super(events, typeCount);
+            this.expiry = expiry;
+            this.starts = new double[events.length][];
+            int[] occurs = new int[typeCount];
+            for (int e = 0; e < events.length; e++) {
+                starts[e] = new double[events[e].length];
+                Arrays.fill(starts[e], Double.NaN);
+                for (int type : events[e]) occurs[type]++;
+            }
+            this.typeEpisodes = new int[typeCount][];
+            this.typeStates = new int[typeCount][];
+            for (int type = 0; type < typeCount; type++) {
+                typeEpisodes[type] = new int[occurs[type]];
+                typeStates[type] = new int[occurs[type]];
+                occurs[type] = 0;
+            }
+            for (int e = 0; e < events.length; e++) {
+                for (int k = 0; k < events[e].length; k++) {
+                    int type = events[e][k];
+                    typeEpisodes[type][occurs[type]] = e;
+                    typeStates[type][occurs[type]] = k;
+                    occurs[type]++;
+                }
+            }
+        }
+
+        void chunk(int[] types, double[] times, int size, int blockSize)
+        {
+            // the reasoning about expired automata needs the times in order
+            for (int p = 1; p < size; p++) {
+                if (!(times[p] >= times[p - 1])) {
+                    blockSize = size;
+                    break;
+                }
+            }
+            List<ExpiringBlock> blocks = new ArrayList<ExpiringBlock>();
+            for (int from = 0; from < size; from += blockSize) {
+                int to = Math.min(size, from + blockSize);
+                if (from == 0) {
+                    blocks.add(new ExpiringBlock(this, null, types, times, from, from, to, starts));
+                    continue;
+                }
+                int warm = from;
+                while (warm > 0 && times[from] - times[warm - 1] < expiry) warm--;
+                blocks.add(new ExpiringBlock(this, null, types, times, warm, from, to, null));
+            }
+            invoke(blocks);
+
+            for (ExpiringBlock block : blocks) {
+                int[] recount = new int[events.length];
+                int mismatches = 0;
+                double t = times[block.from];
+                for (int e = 0; e < events.length; e++) {
+                    if (block.entry != null && !sameLive(starts[e], block.entry[e], t)) {
+                        recount[mismatches++] = e;
+                        continue;
+                    }
+                    counts[e] += block.counts[e];
+                    starts[e] = block.starts[e];
+                }
+                if (mismatches == 0) continue;
+                int[] members = Arrays.copyOf(recount, mismatches);
+                double[][] entry = new double[mismatches][];
+                for (int ix = 0; ix < mismatches; ix++) entry[ix] = starts[members[ix]];
+                ExpiringBlock again = new ExpiringBlock(this, members, types, times,
+                        block.from, block.from, block.to, entry);
+                again.call();
+                for (int ix = 0; ix < mismatches; ix++) {
+                    counts[members[ix]] += again.counts[ix];
+                    starts[members[ix]] = again.starts[ix];
+                }
+            }
+        }
+
+        /**
+         * An automaton which began an expiry or more before the time can
+         * never complete, nor can it displace one which might.
+         * @return true if the states hold the same automata which might complete.
+         */
+        private boolean sameLive(double[] a, double[] b, double t)
+        {
+            for (int k = 1; k < a.length; k++) {
+                boolean liveA = t - a[k] < expiry;
+                boolean liveB = t - b[k] < expiry;
+                if (liveA != liveB) return false;
+                if (liveA && a[k] != b[k]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A block of the expiring counter, over all the episodes or some.
+     * The events before the block's own warm up the automata and are not counted.
+     */
+    private static final class ExpiringBlock implements Callable<Void>
+    {
+        private final ExpiringStitcher stitcher;
+        /** the episode of each local index, null for all */
+        private final int[] members;
+        /** the local index of each episode, -1 for those not counted */
+        private final int[] local;
+        private final int[] types;
+        private final double[] times;
+        private final int warm;
+        final int from;
+        final int to;
+        /** the guessed state at the first event counted, null if the true state was given */
+        double[][] entry = null;
+        private final boolean guessed;
+        final double[][] starts;
+        final int[] counts;
+
+        /**
+         * @param entry the true state at the first event counted,
+         *   null if it is to be guessed by warming up from a fresh state
+         */
+        ExpiringBlock(ExpiringStitcher stitcher, int[] members, int[] types, double[] times,
+                int warm, int from, int to, double[][] entry)
+        {
+            this.stitcher = stitcher;
+            this.members = members;
+            this.types = types;
+            this.times = times;
+            this.warm = warm;
+            this.from = from;
+            this.to = to;
+            int count = (members == null) ? stitcher.events.length : members.length;
+            this.local = new int[stitcher.events.length];
+            if (members == null) {
+                for (int e = 0; e < local.length; e++) local[e] = e;
+            } else {
+                Arrays.fill(local, -1);
+                for (int ix = 0; ix < members.length; ix++) local[members[ix]] = ix;
+            }
+            this.starts = new double[count][];
+            this.counts = new int[count];
+            this.guessed = (entry == null);
+            for (int ix = 0; ix < count; ix++) {
+                if (entry != null) {
+                    starts[ix] = entry[ix].clone();
+                } else {
+                    int e = (members == null) ? ix : members[ix];
+                    starts[ix] = new double[stitcher.events[e].length];
+                    Arrays.fill(starts[ix], Double.NaN);
+                }
+            }
+        }
+
+        public Void call()
+        {
+            double expiry = stitcher.expiry;
+            for (int p = warm; p < to; p++) {
+                if (p == from && guessed) {
+                    entry = new double[starts.length][];
+                    for (int ix = 0; ix < starts.length; ix++) entry[ix] = starts[ix].clone();
+                }
+                int E_i = types[p];
+                if (E_i < 0 || E_i >= stitcher.typeEpisodes.length) continue;
+                double t_i = times[p];
+                boolean counting = p >= from;
+                int[] episodes = stitcher.typeEpisodes[E_i];
+                int[] states = stitcher.typeStates[E_i];
+                for (int ix = 0; ix < episodes.length; ix++) {
+                    int e = local[episodes[ix]];
+                    if (e < 0) continue;
+                    double[] start = starts[e];
+                    int j = states[ix];
+                    double begun;
+                    if (j == 0) {
+                        begun = t_i;
+                    } else {
+                        begun = start[j];
+                        if (Double.isNaN(begun)) continue;
+                        start[j] = Double.NaN;
+                    }
+                    if (j < start.length - 1) {
+                        start[j + 1] = begun;
+                    } else if (t_i - begun < expiry) {
+                        if (counting) counts[e]++;
+                        Arrays.fill(start, Double.NaN);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * WaitLists.java
+ *
+ */
+
+package edu.iisc.tdminercore.counter;
+
+import java.util.Arrays;
+
+/**
+ * The automata waiting on each event type, for counters which keep their
+ * automata in arrays indexed by slot rather than as objects.
+ * Each event type heads a doubly linked list threaded through the slots,
+ * so an automaton is linked or unlinked in constant time and nothing is
+ * allocated once the lists are made.
+ * A slot is on at most one list; the order of a list is not kept.
+ *
+ * An automaton may be unlinked while its list is walked,
+ * provided the walk has already taken the following slot.
+ */
+final class WaitLists
+{
+    static final int NONE = -1;
+
+    private final int[] head;
+    private final int[] next;
+    private final int[] prev;
+    /** the list each slot is on, NONE if it is on none */
+    private final int[] list;
+
+    WaitLists(int types, int slots)
+    {
+        this.head = new int[types];
+        this.next = new int[slots];
+        this.prev = new int[slots];
+        this.list = new int[slots];
+        Arrays.fill(head, NONE);
+        Arrays.fill(list, NONE);
+    }
+
+    /** the first slot waiting on the type, NONE if there is none */
+    int first(int type) { return head[type]; }
+    /** the slot after this one on its list, NONE at the end */
+    int next(int slot) { return next[slot]; }
+    boolean isLinked(int slot) { return list[slot] != NONE; }
+
+    void link(int slot, int type)
+    {
+        int first = head[type];
+        next[slot] = first;
+        prev[slot] = NONE;
+        if (first != NONE) prev[first] = slot;
+        head[type] = slot;
+        list[slot] = type;
+    }
+
+    void unlink(int slot)
+    {
+        int before = prev[slot];
+        int after = next[slot];
+        if (before == NONE) head[list[slot]] = after;
+        else next[before] = after;
+        if (after != NONE) prev[after] = before;
+        list[slot] = NONE;
+    }
+}
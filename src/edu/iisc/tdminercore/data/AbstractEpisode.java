@@ -8,7 +8,11 @@ package edu.iisc.tdminercore.data;
 
 import edu.iisc.tdminercore.data.IEpisode.EpisodeInstance;
 import edu.iisc.tdminercore.miner.SessionInfo;
+import edu.iisc.tdminercore.util.DataArrays;
 import edu.iisc.tdminercore.util.PickMatrix;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.Iterator;
 import java.util.Formatter;
@@ -1282,6 +1286,39 @@ public abstract class AbstractEpisode
         return this;
     }
 
+    /**
+     * Write what the miner has found for the episode: the interval ids,
+     * the votes, sample sizes and required votes, the strengths and betas.
+     * The event types and the lists referred to are written by the
+     * snapshot, the instances are not written.
+     * @see edu.iisc.tdminercore.miner.SessionSnapshot
+     */
+    public void writeState(DataOutput out) throws IOException
+    {
+        DataArrays.writeInts(out, this.interval);
+        DataArrays.writeInts(out, this.votes);
+        DataArrays.writeInts(out, this.samplesize);
+        DataArrays.writeDoubles(out, this.requiredVotes);
+        DataArrays.writeDoubles(out, this.Estr);
+        DataArrays.writeDoubles(out, this.beta);
+        out.writeInt(this.index);
+        out.writeBoolean(this.selected);
+        out.writeBoolean(this.deleted);
+    }
+
+    public void readState(DataInput in) throws IOException
+    {
+        this.interval = DataArrays.readInts(in);
+        this.votes = DataArrays.readInts(in);
+        this.samplesize = DataArrays.readInts(in);
+        this.requiredVotes = DataArrays.readDoubles(in);
+        this.Estr = DataArrays.readDoubles(in);
+        this.beta = DataArrays.readDoubles(in);
+        this.index = in.readInt();
+        this.selected = in.readBoolean();
+        this.deleted = in.readBoolean();
+    }
+
     public double getBeta(int index)
     {
         return beta[index];
@@ -8,14 +8,18 @@
 package edu.iisc.tdminercore.data;
 
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.util.EventSorter;
 import edu.iisc.tdminercore.util.IObserver;
 
 import edu.iisc.tdminercore.util.TimeConstraint;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Iterator;
 
@@ -34,6 +38,14 @@ public abstract class AbstractEventStream
     protected Integer index = 0; 
     protected Map<String,String> legendMap;
     protected long sourceid = 0;
+    protected EventTypeIndex typeIndex = null;
+    protected StreamStatistics statistics = null;
+    // the events before this position are known to be in time order
+    protected int sortedTo = 0;
+    // the events visited by episode instances, by position
+    protected EventMarkers markers = new EventMarkers();
+    // the position of each event, built when an unsorted stream is searched
+    private Map<IEvent, Integer> positions = null;
     
     // A null time constraint indicates that there are not time constraints.
     protected TimeConstraint<CONSTRAINT_MODE> timeConstraints;
@@ -52,6 +64,8 @@ public abstract class AbstractEventStream
     public void copy(AbstractEventStream s)
     {
         s.eventSequence = this.eventSequence;
+        s.sortedTo = this.sortedTo;
+        s.markers = this.markers;
         s.oneNodeEpisodes = this.oneNodeEpisodes;
         s.oneNodeEpisodeList = this.oneNodeEpisodeList;
         s.eventTypes = this.eventTypes;
@@ -65,6 +79,7 @@ public abstract class AbstractEventStream
      * Subset Copy Constructor 
      * The copy shares much of the same base information.
      * namely, the event type definitions and the actual events.
+     * @see #subset(int[]) for a subset which copies nothing
      */
     public AbstractEventStream(AbstractEventStream that, Integer[] indecies) 
     {
@@ -74,6 +89,7 @@ public abstract class AbstractEventStream
         for(int ix = 0; ix < indecies.length; ix++) {
             this.eventSequence.add(that.eventSequence.get(indecies[ix]));
         }
+        this.sortedTo = sortedPrefix(0);
         this.oneNodeEpisodes = new EpisodeSet();
         this.oneNodeEpisodeList = new ArrayList<IEpisode>();
         this.oneNodeEpisodes.addEpisodeList(this.oneNodeEpisodeList);
@@ -82,66 +98,67 @@ public abstract class AbstractEventStream
     
     public abstract AbstractEventStream dup();
    
+    /**
+     * A view of the events at the given positions, nothing is copied.
+     * The view is read only and is only valid until this stream is changed.
+     * @see EventStreamView
+     */
+    public IEventDataStream subset(int[] positions)
+    {
+        return new EventStreamView(this, positions, positions.length);
+    }
+   
      /** 
       * Produce two new event streams.
       * The first represents all those events which occur in the 'busy'.
       * Periods of the stream second those that occur in the 'quiet' portions.
-      * @param that the stream to split in two
+      * The streams are views over this stream, each event is marked as
+      * busy or quiet in a bit set rather than copied.
+      * The views are read only and are only valid until this stream is changed.
       * @param radius the half time span over which the count is made
       * @param threshold the rate at which the event goes to busy.
-      * @return 
+      * @return the busy and quiet views
      */
     public IEventDataStream[] burst(double radius, double threshold) 
     {
         this.sort();
         long cthreshold = (long)(threshold * 2.0 * radius);
         
-        AbstractEventStream busy = this.dup();
-        AbstractEventStream quiet = this.dup();
-        AbstractEventStream[] result = { busy, quiet };
-        
-        busy.eventSequence = new ArrayList<IEvent>(this.eventSequence.size()/2);
-        quiet.eventSequence = new ArrayList<IEvent>(this.eventSequence.size()/2);
-        
-        busy.eventTypes = this.eventTypes;
-        quiet.eventTypes = this.eventTypes;
-        
-        Iterator<IEvent> leaderIx = this.eventSequence.iterator();
-        Iterator<IEvent> trailerIx = this.eventSequence.iterator();
-        if (!leaderIx.hasNext()) {
+        int size = this.eventSequence.size();
+        if (size < 1) {
             return null;
         }
-        IEvent leader = leaderIx.next();
-        IEvent trailer = trailerIx.next();
+        BitSet busy = new BitSet(size);
+        
+        int leaderIx = 1;
+        int trailerIx = 1;
+        IEvent leader = this.eventSequence.get(0);
+        IEvent trailer = leader;
         long count = 0;
-        for(IEvent current : this.eventSequence) {
-            while (leaderIx.hasNext()) {
-                if (leader.getStartTime() > current.getStartTime() + radius) 
+        for(int ix = 0; ix < size; ix++) {
+            double start = this.eventSequence.get(ix).getStartTime();
+            while (leaderIx < size) {
+                if (leader.getStartTime() > start + radius) 
                     break;
-                leader = leaderIx.next();
+                leader = this.eventSequence.get(leaderIx++);
                 count++;
             }
-            while (trailerIx.hasNext()) {
-                if (trailer.getStartTime() > current.getStartTime() - radius) { 
+            while (trailerIx < size) {
+                if (trailer.getStartTime() > start - radius) { 
                     break;
                 }
-                trailer = trailerIx.next();
+                trailer = this.eventSequence.get(trailerIx++);
                 count--;
             }
-            if (count < cthreshold) {
-                quiet.eventSequence.add( current );
+            if (count >= cthreshold) {
+                busy.set(ix);
             }
-            else {
-                busy.eventSequence.add( current );
-            }          
         }
-  
-        busy.oneNodeEpisodes = this.oneNodeEpisodes;
-        quiet.oneNodeEpisodes = this.oneNodeEpisodes;
-        
-        busy.timeConstraints = this.timeConstraints;
-        quiet.timeConstraints = this.timeConstraints;
+        BitSet quiet = (BitSet)busy.clone();
+        quiet.flip(0, size);
         
+        IEventDataStream[] result = { 
+            new EventStreamView(this, busy), new EventStreamView(this, quiet) };
         return result;
     }
     
@@ -190,14 +207,118 @@ public abstract class AbstractEventStream
             currentEvent.setStartTime( currentEvent.getStartTime() + jits[ currentEvent.getEventType() ] );
             // negative times are not a problem, so don't worry about handling them
         }
+        this.sortedTo = 0;
+        invalidate();
     }
     
     /*
-     * Sort the event stream into time order.
+     * Sort the event stream into time order, by start and then end time.
+     * Only the events after the sorted watermark are examined; if they
+     * continue the order nothing is moved, otherwise they are sorted and
+     * merged with the events before the watermark in a linear pass.
+     * The keys are copied out to primitive arrays and sorted there,
+     * then each event is moved once.
      */
     public void sort()
     {
-        java.util.Collections.sort(eventSequence, null);
+        int size = this.eventSequence.size();
+        this.sortedTo = sortedPrefix(this.sortedTo);
+        if (this.sortedTo >= size) return;
+        
+        double[] starts = new double[size];
+        double[] ends = null;
+        for (int ix = 0; ix < size; ix++) {
+            IEvent event = this.eventSequence.get(ix);
+            starts[ix] = event.getStartTime();
+            double end = event.getEndTime();
+            if (ends == null && end != starts[ix]) {
+                ends = new double[size];
+                Arrays.fill(ends, 0, ix, Double.NaN);
+            }
+            if (ends != null) ends[ix] = end;
+        }
+        int[] order = EventSorter.order(starts, ends, this.sortedTo, size);
+        IEvent[] events = this.eventSequence.toArray(new IEvent[size]);
+        for (int ix = 0; ix < size; ix++) {
+            this.eventSequence.set(ix, events[order[ix]]);
+        }
+        this.markers.permute(order, size);
+        this.sortedTo = size;
+        invalidate();
+    }
+    
+    /**
+     * Check, in a single pass, whether the events are in time order.
+     */
+    public boolean isSorted()
+    {
+        for (int ix = 1; ix < this.eventSequence.size(); ix++) {
+            if (this.eventSequence.get(ix).getStartTime() 
+                    < this.eventSequence.get(ix - 1).getStartTime()) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @return true when every event is known to be in time order,
+     *   without examining the events.
+     */
+    public boolean isKnownSorted()
+    {
+        return this.sortedTo >= this.eventSequence.size();
+    }
+    
+    /**
+     * Extend the run of events in order which begins the stream.
+     * @param from the length of the run already known
+     * @return the length of the run
+     */
+    protected int sortedPrefix(int from)
+    {
+        int size = this.eventSequence.size();
+        for (int ix = Math.max(from, 1); ix < size; ix++) {
+            if (compareTimes(this.eventSequence.get(ix - 1), 
+                    this.eventSequence.get(ix)) > 0) return ix;
+        }
+        return size;
+    }
+    
+    private static int compareTimes(IEvent lhs, IEvent rhs)
+    {
+        if (lhs.getStartTime() < rhs.getStartTime()) return -1;
+        if (lhs.getStartTime() > rhs.getStartTime()) return 1;
+        if (lhs.getEndTime() < rhs.getEndTime()) return -1;
+        if (lhs.getEndTime() > rhs.getEndTime()) return 1;
+        return 0;
+    }
+    
+    /**
+     * Discard anything derived from the events.
+     * To be called whenever the events are changed.
+     */
+    protected void invalidate()
+    {
+        this.typeIndex = null;
+        this.statistics = null;
+        this.positions = null;
+    }
+    
+    public EventTypeIndex getTypeIndex()
+    {
+        if (this.typeIndex == null 
+                || this.typeIndex.getStreamSize() != this.eventSequence.size()) {
+            this.typeIndex = new EventTypeIndex(this);
+        }
+        return this.typeIndex;
+    }
+    
+    public StreamStatistics getStatistics()
+    {
+        if (this.statistics == null 
+                || this.statistics.getStreamSize() != this.eventSequence.size()) {
+            this.statistics = new StreamStatistics(this);
+        }
+        return this.statistics;
     }
     
     public int getSize() { return eventSequence.size(); }
@@ -254,6 +375,16 @@ public abstract class AbstractEventStream
         private boolean isEventConstrained = false;
         private List<Interval> eventTimeConstraintList = null;
         
+        /**
+         * When the stream is sorted the constraints are resolved to 
+         * [low, high) position pairs and only those positions are visited.
+         */
+        private int[] ranges = null;
+        private int rangeIx = 0;
+        private int cursor = 0;
+        private int currentPos = -1;
+        private int nextPos = -1;
+        
         public long itemsProcessed() { return itemsProcessed; }
         
         public LocalIterable(IEventDataStream.CONSTRAINT_MODE mode, IObserver observer) {
@@ -271,6 +402,11 @@ public abstract class AbstractEventStream
                 this.isEventConstrained = this.eventTimeConstraintList.size() < 1
                         ? false : true;
             }
+            if (this.isEventConstrained && AbstractEventStream.this.isKnownSorted()) {
+                this.ranges = TimeConstraint.ranges(this.eventTimeConstraintList, startTimes);
+                this.size = TimeConstraint.count(this.ranges);
+                this.cursor = (ranges.length > 0) ? ranges[0] : 0;
+            }
         }
         public LocalIterable() { 
             this(null, null); 
@@ -298,6 +434,19 @@ public abstract class AbstractEventStream
                 public boolean hasNext() {
                     if (observer != null && observer.interrupted()) return false;
                     if (current != next) return true;
+                    
+                    if (ranges != null) {
+                        while (rangeIx < ranges.length) {
+                            if (cursor < ranges[rangeIx + 1]) {
+                                nextPos = cursor++;
+                                next = eventlist.get(nextPos);
+                                return true;
+                            }
+                            rangeIx += 2;
+                            if (rangeIx < ranges.length) cursor = ranges[rangeIx];
+                        }
+                        return false;
+                    }
                     if (!iterator.hasNext()) return false;
                     
                     if (!isEventConstrained) {
@@ -306,7 +455,7 @@ public abstract class AbstractEventStream
                     }
                     while (iterator.hasNext()) {
                         next = iterator.next();
-                        if (next.rangeCheck(eventTimeConstraintList)) {
+                        if (TimeConstraint.check(eventTimeConstraintList, next.getStartTime())) {
                             return true;
                         } 
                     }
@@ -326,15 +475,33 @@ public abstract class AbstractEventStream
                         if (!hasNext()) return null;
                     }
                     current = next;
+                    currentPos = nextPos;
                     return current;
                 }
                 public void remove() {
-                    eventlist.remove(current);
+                    LocalIterable.this.remove();
                 }
                 
             }; // end new Iterator
         }
-        public void remove() { eventlist.remove(current); }
+        public void remove() { 
+            if (ranges != null) {
+                // the events are visited by position, shift everything after it
+                if (currentPos < 0) return;
+                eventlist.remove(currentPos);
+                markers.remove(currentPos);
+                if (currentPos < sortedTo) sortedTo--;
+                for (int jx = 0; jx < ranges.length; jx++) {
+                    if (ranges[jx] > currentPos) ranges[jx]--;
+                }
+                if (cursor > currentPos) cursor--;
+                if (nextPos > currentPos) nextPos--;
+                currentPos = -1;
+            } else {
+                removeEvent(current); 
+            }
+            invalidate();
+        }
         public int percentComplete() { 
             return (int)(itemsProcessed * 100.0 / size); 
         }
@@ -345,6 +512,14 @@ public abstract class AbstractEventStream
             }
         }
     }
+    
+    /**
+     * The start times of the events, for the searches of TimeConstraint.
+     */
+    private final TimeConstraint.StartTimes startTimes = new TimeConstraint.StartTimes() {
+        public int getSize() { return eventSequence.size(); }
+        public double startAt(int ix) { return eventSequence.get(ix).getStartTime(); }
+    };
    
     public IEventIterable iterable(IObserver observer) { 
         CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode(); 
@@ -375,44 +550,87 @@ public abstract class AbstractEventStream
         this.add(name,first.getStartTime());
         for( IEvent event : eventset) {
             // it may be that the event was previously removed that is ok
-            this.eventSequence.remove(event);
+            removeEvent(event);
         }
+        invalidate();
     }
     
     /**
-     * Add the content of one event stream to another
+     * Remove an event, removing an event keeps the others in order.
      */
-    public void add(IEventDataStream obj) 
+    private void removeEvent(IEvent event)
+    {
+        int ix = positionOf(event);
+        if (ix < 0) return;
+        this.eventSequence.remove(ix);
+        this.markers.remove(ix);
+        if (ix < this.sortedTo) this.sortedTo--;
+        this.positions = null;
+    }
+    
+    /**
+     * Locate an event, by a binary search on its start time 
+     * when the stream is known to be in order, otherwise through a map
+     * of the events to their positions which is kept until the stream changes.
+     * @return the position of the event, -1 if it is not in the stream.
+     */
+    protected int positionOf(IEvent event)
+    {
+        if (!isKnownSorted()) {
+            if (this.positions == null) {
+                int size = this.eventSequence.size();
+                this.positions = new IdentityHashMap<IEvent, Integer>(size);
+                // the first of an event stored twice, as indexOf
+                for (int ix = size - 1; ix >= 0; ix--) {
+                    this.positions.put(this.eventSequence.get(ix), ix);
+                }
+            }
+            Integer ix = this.positions.get(event);
+            return (ix == null) ? -1 : ix;
+        }
+        double start = event.getStartTime();
+        int size = this.eventSequence.size();
+        for (int ix = TimeConstraint.searchStart(startTimes, start, false, 0); ix < size; ix++) {
+            IEvent candidate = this.eventSequence.get(ix);
+            if (candidate.getStartTime() > start) break;
+            if (candidate.equals(event)) return ix;
+        }
+        return -1;
+    }
+    
+    /**
+     * Add the content of one event stream to another.
+     * The events are appended and then merged into place,
+     * when both streams are in order this takes a single linear pass.
+     */
+    public void add(IEventDataStream that) 
     {
-        AbstractEventStream that = (AbstractEventStream)obj;
-        
         // combine the event types
-        int size = that.eventTypes.getSize();
+        int size = that.getEventFactor().getSize();
         Map<Integer, Integer> id2id = new HashMap<Integer, Integer>(size);
-        for(EventFactor.EventType type : that.eventTypes )
+        for(EventFactor.EventType type : that.getEventFactor() )
         {
             String typename = type.name;
             id2id.put(type.id, this.eventTypes.put(typename));
         }
         
         // append the events
-        for(IEvent event :  that.eventSequence) 
+        for(IEvent event :  that.iterable(null)) 
         {
             Integer eventIndex = id2id.get(event.getEventType());
             this.eventTypes.incrById(eventIndex);
             IEvent clone = null;
             Integer sourceKey = new Integer((int)event.getSourceId());
             Double start = new Double(event.getStartTime());
-            if (event instanceof InstEvent) {
+            boolean instant = (event instanceof InstEvent)
+                    || (event instanceof ColumnarEventStream.EventView
+                        && ((ColumnarEventStream.EventView)event).isInstant());
+            if (instant) {
                 clone = new InstEvent(sourceKey, eventIndex, start);
-            } else
-            if (event instanceof GeneralEvent) {
+            } else {
                 Double end = new Double(event.getEndTime());
                 clone = new GeneralEvent(sourceKey, eventIndex, start, end);
             }
-            else {
-                continue;
-            }
             this.eventSequence.add( clone );
         }
   
@@ -441,9 +659,16 @@ public abstract class AbstractEventStream
     private void update(int eventIndex, double start, double end, int key) {
         this.eventTypes.incrById(eventIndex);
         int sourceKey = (key < 0) ? (int)this.sourceid++ : key;
-        this.eventSequence.add( (end < 0)
+        IEvent event = (end < 0)
             ? (new InstEvent(sourceKey, eventIndex, start))
-            : (new GeneralEvent(sourceKey, eventIndex, start, end)) ); 
+            : (new GeneralEvent(sourceKey, eventIndex, start, end)); 
+        int size = this.eventSequence.size();
+        if (this.sortedTo >= size && (size < 1 
+                || compareTimes(this.eventSequence.get(size - 1), event) <= 0)) {
+            this.sortedTo = size + 1;
+        }
+        this.eventSequence.add(event);
+        invalidate();
     }
     
     public void add(int typeid, double start, double end, int key)
@@ -519,6 +744,9 @@ public abstract class AbstractEventStream
     
     public void set(Integer ix, IEvent event) {
         this.eventSequence.set(ix,event);
+        this.markers.clear(ix);
+        this.sortedTo = Math.min(this.sortedTo, ix);
+        invalidate();
     }
     public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key) 
     {
@@ -527,6 +755,9 @@ public abstract class AbstractEventStream
                 (end == null || end < 0)
             ? (new InstEvent(sourceKey, eventIndex, start))
             : (new GeneralEvent(sourceKey, eventIndex, start, end)) );
+        this.markers.clear(ix);
+        this.sortedTo = Math.min(this.sortedTo, ix);
+        invalidate();
     }
     
     /**
@@ -599,23 +830,23 @@ public abstract class AbstractEventStream
         return result;
     }
     
-    public void removeMarkers() {
-        for( IEvent event : this.eventSequence ) {
-            event.removeMarker();
+    public void markEvents(List<IEvent> events, int episodeIndex) {
+        for( IEvent event : events ) {
+            int ix = positionOf(event);
+            if (ix >= 0) this.markers.mark(ix, episodeIndex);
         }
     }
     
+    public EventMarkers getMarkers() {
+        return this.markers;
+    }
+    
+    public void removeMarkers() {
+        this.markers.clear();
+    }
+    
     public double getMarkerRatio() {
-        int eventCount = 0;
-        int episodicEventCount = 0;
-        for( IEvent event : new LocalIterable() ) {
-            eventCount++;
-            if (!event.hasActiveMarker()) continue;
-            
-            Object obj = event.getMarker();
-            if (!(obj instanceof Integer)) continue;
-            episodicEventCount++;
-        }
-        return (double)episodicEventCount / (double)eventCount;
+        int size = this.eventSequence.size();
+        return (double)this.markers.count(0, size) / (double)size;
     }
 }
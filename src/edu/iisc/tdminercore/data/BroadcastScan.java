@@ -0,0 +1,381 @@
+/*
+ * BroadcastScan.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.data.IEventDataStream.IEventIterable;
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.PassiveObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One traversal of a stream shared by several consumers.
+ * A producer thread traverses the stream once, placing its events in
+ * batches in a ring of slots, and every consumer reads every batch from
+ * the ring in place; so several counters, each with its own candidates,
+ * cost one traversal of the stream rather than one each.
+ *
+ * The ring is coordinated without locks.
+ * The producer publishes a batch by advancing a sequence number once the
+ * slot is filled; each consumer advances its own sequence number as it
+ * finishes with a batch, and the producer does not fill a slot until the
+ * slowest consumer has finished with the batch the slot last held.
+ * A side which has to wait spins briefly, then yields, then parks.
+ *
+ * A consumer which stops early, or never starts, must be detached
+ * or the producer will wait for it; the consumers' traversals end
+ * when it is detached.
+ * The events handed out must not be views which the stream reuses.
+ */
+public class BroadcastScan
+{
+    public static final int DEFAULT_DEPTH = 8;
+    public static final int DEFAULT_BATCH = 4096;
+
+    /** the consumer positions are spaced a cache line apart */
+    private static final int PAD = 8;
+    private static final long DETACHED = Long.MAX_VALUE;
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long PARK_NANOS = 50000L;
+
+    private final IEventDataStream source;
+    private final CONSTRAINT_MODE mode;
+    private final int consumers;
+    private final IEvent[][] slots;
+    private final int[] lengths;
+    private final int mask;
+
+    /** the number of batches published */
+    private final AtomicLong published = new AtomicLong(0);
+    /** the number of batches each consumer has finished with */
+    private final AtomicLongArray released;
+    /** the number of batches in the traversal, once it has ended */
+    private volatile long end = Long.MAX_VALUE;
+    private volatile RuntimeException failure = null;
+    private volatile boolean closed = false;
+    private IEventIterable traversal = null;
+    private Thread producer = null;
+
+    private final AtomicLong producerStalls = new AtomicLong(0);
+    private final AtomicLong consumerStalls = new AtomicLong(0);
+
+    public BroadcastScan(IEventDataStream source, CONSTRAINT_MODE mode, int consumers)
+    {
+        this(source, mode, consumers, DEFAULT_DEPTH, DEFAULT_BATCH);
+    }
+
+    /**
+     * @param mode the constraint mode of the traversal
+     * @param consumers the number of consumers, each must be traversed or detached
+     * @param depth the number of batches in the ring, rounded up to a power of two
+     * @param batchSize the number of events in a batch
+     */
+    public BroadcastScan(IEventDataStream source, CONSTRAINT_MODE mode, int consumers,
+            int depth, int batchSize)
+    {
+        if (consumers < 1) throw new IllegalArgumentException("consumers must be positive: " + consumers);
+        if (depth < 1) throw new IllegalArgumentException("ring depth must be positive: " + depth);
+        if (batchSize < 1) throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        int size = Integer.highestOneBit(depth);
+        if (size < depth) size <<= 1;
+        this.source = source;
+        this.mode = mode;
+        this.consumers = consumers;
+        this.slots = new IEvent[size][batchSize];
+        this.lengths = new int[size];
+        this.mask = size - 1;
+        this.released = new AtomicLongArray(consumers * PAD);
+    }
+
+    public int getConsumerCount() { return consumers; }
+    /** the number of batches published so far */
+    public long getBatches() { return published.get(); }
+    /** the number of times the ring was full, the producer waiting for a consumer */
+    public long getProducerStalls() { return producerStalls.get(); }
+    /** the number of times the ring was empty, a consumer waiting for the producer */
+    public long getConsumerStalls() { return consumerStalls.get(); }
+
+    private synchronized void start()
+    {
+        if (producer != null || closed) return;
+        PassiveObserver quiet = new PassiveObserver();
+        quiet.setConstraintMode(mode);
+        traversal = source.iterable(quiet);
+        producer = new Thread("event broadcast") {
+            @Override
+            public void run() { produce(); }
+        };
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce()
+    {
+        long sequence = 0;
+        try {
+            IEvent[] batch = null;
+            int length = 0;
+            for (IEvent event : traversal) {
+                if (batch == null) {
+                    if (!awaitSlot(sequence)) return;
+                    batch = slots[(int)sequence & mask];
+                    length = 0;
+                }
+                batch[length++] = event;
+                if (length < batch.length) continue;
+                lengths[(int)sequence & mask] = length;
+                published.set(++sequence);
+                batch = null;
+            }
+            if (batch != null) {
+                lengths[(int)sequence & mask] = length;
+                published.set(++sequence);
+            }
+        } catch (RuntimeException ex) {
+            this.failure = ex;
+        } finally {
+            end = sequence;
+        }
+    }
+
+    /**
+     * Wait until every consumer has finished with the batch last held
+     * by the slot of the given sequence number.
+     * @return false if there is no one left to produce for.
+     */
+    private boolean awaitSlot(long sequence)
+    {
+        long wrap = sequence - slots.length;
+        for (int idle = 0; ; idle++) {
+            if (closed) return false;
+            long slowest = DETACHED;
+            for (int ix = 0; ix < consumers; ix++) {
+                slowest = Math.min(slowest, released.get(ix * PAD));
+            }
+            if (slowest == DETACHED) return false;
+            if (slowest > wrap) return true;
+            if (idle == 0) producerStalls.incrementAndGet();
+            idle(idle);
+        }
+    }
+
+    private static void idle(int idle)
+    {
+        if (idle < SPINS) return;
+        if (idle < SPINS + YIELDS) Thread.yield();
+        else LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    /**
+     * The consumer no longer reads the ring, the producer stops waiting for it.
+     */
+    public void detach(int consumer)
+    {
+        released.set(consumer * PAD, DETACHED);
+    }
+
+    /**
+     * Stop the traversal, every consumer's traversal ends.
+     */
+    public void close()
+    {
+        closed = true;
+        for (int ix = 0; ix < consumers; ix++) detach(ix);
+    }
+
+    /**
+     * @return the traversal of the given consumer, it reports to the observer
+     *   and follows its interruption.
+     */
+    public IEventIterable consumer(int consumer, IObserver observer)
+    {
+        if (consumer < 0 || consumer >= consumers) {
+            throw new IndexOutOfBoundsException("Consumer: " + consumer + ", Consumers: " + consumers);
+        }
+        return new Consumer(consumer, observer);
+    }
+
+    /**
+     * @return a read only view of the stream whose traversal is that of the
+     *   given consumer, for a counter which asks the stream for its traversal.
+     */
+    public IEventDataStream stream(int consumer)
+    {
+        if (consumer < 0 || consumer >= consumers) {
+            throw new IndexOutOfBoundsException("Consumer: " + consumer + ", Consumers: " + consumers);
+        }
+        return new ConsumerStream(consumer);
+    }
+
+    private class Consumer implements IEventIterable
+    {
+        private final int consumer;
+        private final IObserver observer;
+        private boolean started = false;
+        private boolean finished = false;
+        private long next = 0;
+        private IEvent[] batch = null;
+        private int length = 0;
+        private int position = 0;
+        private int itemsProcessed = 0;
+
+        Consumer(int consumer, IObserver observer)
+        {
+            this.consumer = consumer;
+            this.observer = observer;
+        }
+
+        private void finish()
+        {
+            finished = true;
+            batch = null;
+            detach(consumer);
+        }
+
+        /**
+         * @return false at the end of the traversal.
+         */
+        private boolean fill()
+        {
+            if (finished) return false;
+            if (batch != null && position < length) return true;
+            if (batch != null) {
+                // the producer may now reuse the slot
+                released.set(consumer * PAD, next);
+                batch = null;
+            }
+            for (int idle = 0; next >= published.get(); idle++) {
+                if (closed || next >= end) {
+                    finish();
+                    if (failure != null) throw failure;
+                    return false;
+                }
+                if (idle == 0) consumerStalls.incrementAndGet();
+                idle(idle);
+            }
+            int slot = (int)next & mask;
+            batch = slots[slot];
+            length = lengths[slot];
+            position = 0;
+            next++;
+            return true;
+        }
+
+        public Iterator<IEvent> iterator()
+        {
+            if (started) throw new IllegalStateException("the events have already been traversed");
+            started = true;
+            start();
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) {
+                        finish();
+                        return false;
+                    }
+                    return fill();
+                }
+                public IEvent next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    return batch[position++];
+                }
+                public void remove() {
+                    Consumer.this.remove();
+                }
+            };
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("broadcast events cannot be removed");
+        }
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        public int percentComplete()
+        {
+            int size = source.getSize();
+            if (size < 1) return 0;
+            return (int)Math.min(100L, 100L * itemsProcessed / size);
+        }
+
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+
+    /**
+     * Reads through to the stream, only the traversal is the consumer's.
+     */
+    private class ConsumerStream implements IEventDataStream
+    {
+        private final int consumer;
+
+        ConsumerStream(int consumer)
+        {
+            this.consumer = consumer;
+        }
+
+        public IEventIterable iterable(IObserver observer)
+        {
+            return consumer(consumer, observer);
+        }
+
+        public int getSize() { return source.getSize(); }
+        public int getEventTypeCount() { return source.getEventTypeCount(); }
+        public EventFactor getEventFactor() { return source.getEventFactor(); }
+        public EpisodeSet getFirstOrderEpisodeSet() { return source.getFirstOrderEpisodeSet(); }
+        public double getSequenceStart() { return source.getSequenceStart(); }
+        public double getSequenceEnd() { return source.getSequenceEnd(); }
+        public IEvent get(int ix) { return source.get(ix); }
+        public IEvent get(Integer ix) { return source.get(ix); }
+        public TimeConstraint<CONSTRAINT_MODE> getConstraints() { return source.getConstraints(); }
+        public EventTypeIndex getTypeIndex() { return source.getTypeIndex(); }
+        public StreamStatistics getStatistics() { return source.getStatistics(); }
+        public EventMarkers getMarkers() { return source.getMarkers(); }
+        public double getMarkerRatio() { return source.getMarkerRatio(); }
+
+        public void set(Integer ix, IEvent event) { readOnly(); }
+        public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key) { readOnly(); }
+        public void jitter(double wsize) { readOnly(); }
+        public void sort() { readOnly(); }
+        public void add(String event, Double start) { readOnly(); }
+        public void add(String event, Double start, Double end) { readOnly(); }
+        public void add(String event, Double start, Integer key) { readOnly(); }
+        public void add(String event, Double start, Double end, Integer key) { readOnly(); }
+        public boolean add(List<Interval> constraint, String event, Double start, Double end)
+        {
+            readOnly();
+            return false;
+        }
+        public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints) { readOnly(); }
+        public void integrate(String name, List<IEvent> eventset) { readOnly(); }
+        public void markEvents(List<IEvent> events, int episodeIndex) { readOnly(); }
+        public void removeMarkers() { readOnly(); }
+
+        @Override
+        public Object clone() { return source.clone(); }
+
+        private void readOnly()
+        {
+            throw new UnsupportedOperationException("a broadcast stream is read only");
+        }
+    }
+}
@@ -0,0 +1,955 @@
+/*
+ * ColumnarEventStream.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.util.EventSorter;
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An event stream which keeps its events in parallel primitive columns
+ * rather than as a list of event objects.
+ * The event type, start time, end time and source id of the event at
+ * position 'ix' are found at position 'ix' of the respective column.
+ * The end time column is only allocated once a general (non-instantaneous)
+ * event is added, a NaN in that column marks an instantaneous event.
+ *
+ * Callers which need an IEvent get a light weight view
+ * ({@link EventView}) onto the columns.
+ * Callers which are able to work by index (the counters) should use
+ * the direct accessors {@link #typeAt(int)}, {@link #startAt(int)}, etc.
+ * which do not allocate anything.
+ *
+ * @see AbstractEventStream
+ */
+public class ColumnarEventStream
+        implements IEventDataStream, TimeConstraint.StartTimes, Cloneable
+{
+    static final int INITIAL_CAPACITY = 1024;
+
+    java.util.Random randomizer;
+    protected int size = 0;
+    protected int[] types;
+    protected double[] starts;
+    protected double[] ends = null;
+    protected long[] sourceIds;
+    protected EventMarkers markers = new EventMarkers();
+
+    protected EventFactor eventTypes = null;
+    protected Map<String,String> legendMap;
+    protected long sourceid = 0;
+    protected EventTypeIndex typeIndex = null;
+    protected StreamStatistics statistics = null;
+    // the events before this position are known to be in time order
+    protected int sortedTo = 0;
+    // the positions in order of their keys, built when an unsorted stream is searched
+    private int[] byKey = null;
+
+    // set when the columns are shared with a clone, the next append copies them
+    private boolean sharedColumns = false;
+
+    // A null time constraint indicates that there are not time constraints.
+    protected TimeConstraint<CONSTRAINT_MODE> timeConstraints;
+
+    /** Creates a new instance of ColumnarEventStream */
+    public ColumnarEventStream()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ColumnarEventStream(int capacity)
+    {
+        if (capacity < 1) capacity = 1;
+        this.types = new int[capacity];
+        this.starts = new double[capacity];
+        this.sourceIds = new long[capacity];
+        this.eventTypes = new EventFactor();
+        this.timeConstraints = new TimeConstraint<CONSTRAINT_MODE>();
+    }
+
+    /**
+     * Conversion Constructor
+     * The new stream shares the event type definitions of the original
+     * but copies its events into columns.
+     */
+    public ColumnarEventStream(IEventDataStream that)
+    {
+        this(that.getSize());
+        this.eventTypes = that.getEventFactor();
+        this.timeConstraints = that.getConstraints();
+        for(int ix = 0; ix < that.getSize(); ix++) {
+            IEvent event = that.get(ix);
+            double end = (event instanceof InstEvent) ? -1.0 : event.getEndTime();
+            appendColumns(event.getEventType(), event.getStartTime(), end, event.getSourceId());
+        }
+    }
+
+    @Override
+    public Object clone()
+    {
+        ColumnarEventStream seq = new ColumnarEventStream(1);
+        copy(seq);
+        return seq;
+    }
+
+    /**
+     * The copy shares the columns and event types but not the constraints.
+     * Either stream copies the columns and markers before it next changes them.
+     */
+    public void copy(ColumnarEventStream s)
+    {
+        s.size = this.size;
+        s.types = this.types;
+        s.starts = this.starts;
+        s.ends = this.ends;
+        s.sourceIds = this.sourceIds;
+        s.markers = this.markers;
+        s.eventTypes = this.eventTypes;
+        s.legendMap = this.legendMap;
+        s.sourceid = this.sourceid;
+        s.timeConstraints = new TimeConstraint<CONSTRAINT_MODE>();
+        s.sortedTo = this.sortedTo;
+        s.sharedColumns = true;
+        this.sharedColumns = true;
+    }
+
+    /**
+     * The direct accessors.
+     * These are intended for the counters and other tight loops.
+     */
+    public int typeAt(int ix) { return types[ix]; }
+    public double startAt(int ix) { return starts[ix]; }
+    public double endAt(int ix)
+    {
+        if (ends == null || Double.isNaN(ends[ix])) return starts[ix];
+        return ends[ix];
+    }
+    public long sourceIdAt(int ix) { return sourceIds[ix]; }
+    public boolean isInstantAt(int ix)
+    {
+        return (ends == null || Double.isNaN(ends[ix]));
+    }
+
+    /**
+     * Grow the columns so that they can hold at least 'capacity' events.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (!sharedColumns && capacity <= types.length) return;
+
+        int newCapacity = types.length;
+        while (newCapacity < capacity) {
+            newCapacity = (newCapacity < (Integer.MAX_VALUE >> 1))
+                    ? newCapacity << 1 : Integer.MAX_VALUE - 8;
+        }
+        this.types = Arrays.copyOf(this.types, newCapacity);
+        this.starts = Arrays.copyOf(this.starts, newCapacity);
+        this.sourceIds = Arrays.copyOf(this.sourceIds, newCapacity);
+        if (this.ends != null) {
+            int oldCapacity = this.ends.length;
+            this.ends = Arrays.copyOf(this.ends, newCapacity);
+            Arrays.fill(this.ends, oldCapacity, newCapacity, Double.NaN);
+        }
+        if (this.sharedColumns) this.markers = this.markers.copy();
+        this.sharedColumns = false;
+    }
+
+    /**
+     * Copy the columns and markers if they are shared with a copy,
+     * before they are written in place.
+     */
+    private void detach()
+    {
+        if (sharedColumns) ensureCapacity(this.size);
+    }
+
+    /**
+     * Release any unused capacity in the columns.
+     */
+    public void trimToSize()
+    {
+        if (this.types.length == this.size) return;
+        int capacity = (this.size < 1) ? 1 : this.size;
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.starts = Arrays.copyOf(this.starts, capacity);
+        this.sourceIds = Arrays.copyOf(this.sourceIds, capacity);
+        if (this.ends != null) this.ends = Arrays.copyOf(this.ends, capacity);
+        if (this.sharedColumns) this.markers = this.markers.copy();
+        this.sharedColumns = false;
+    }
+
+    private void setEnd(int ix, double end)
+    {
+        detach();
+        if (this.ends == null) {
+            if (end < 0) return;
+            this.ends = new double[this.types.length];
+            Arrays.fill(this.ends, Double.NaN);
+        }
+        this.ends[ix] = (end < 0) ? Double.NaN : end;
+    }
+
+    /**
+     * Append an event to the end of the columns.
+     * A negative end time indicates an instantaneous event.
+     */
+    private void appendColumns(int eventIndex, double start, double end, long key)
+    {
+        ensureCapacity(this.size + 1);
+        int ix = this.size;
+        this.types[ix] = eventIndex;
+        this.starts[ix] = start;
+        this.sourceIds[ix] = key;
+        if (this.ends != null || end >= 0) setEnd(ix, end);
+        this.markers.clear(ix);
+        this.size++;
+        if (this.sortedTo >= ix) {
+            this.sortedTo = EventSorter.sortedPrefix(starts, ends, ix, size);
+        }
+        invalidate();
+    }
+
+    /**
+     * Called to construct an event stream by adding items to it.
+     * @param eventIndex the event type id (see {@link EventFactor})
+     * @param start the time when the event occured
+     * @param end the time when the event stopped, negative if instantaneous
+     * @param key a unique key value from the input source,
+     *      negative to have one generated.
+     */
+    private void update(int eventIndex, double start, double end, int key)
+    {
+        this.eventTypes.incrById(eventIndex);
+        long sourceKey = (key < 0) ? this.sourceid++ : key;
+        appendColumns(eventIndex, start, end, sourceKey);
+    }
+
+    /**
+     * Append an event whose type id and source key are already known.
+     * This is the path for readers of pre-indexed input, no names are
+     * looked up and nothing is boxed.
+     * The type must already be present in the event factor.
+     */
+    public void append(int eventIndex, double start, double end, long key)
+    {
+        this.eventTypes.incrById(eventIndex);
+        appendColumns(eventIndex, start, end, key);
+    }
+
+    /**
+     * Append a batch of events held in primitive columns.
+     * This is the path for the bulk readers, nothing is looked up or boxed.
+     * The event factor counts are not changed, the reader is expected
+     * to set them once it is done (see {@link EventFactor#setVotesById}).
+     * @param ends the end times, negative or NaN for an instantaneous event,
+     *      null if every event is instantaneous
+     * @param keys the source keys, null to have them generated
+     */
+    public void appendAll(int[] types, double[] starts, double[] ends, long[] keys, int count)
+    {
+        if (count < 1) return;
+        ensureCapacity(this.size + count);
+        int from = this.size;
+        System.arraycopy(types, 0, this.types, from, count);
+        System.arraycopy(starts, 0, this.starts, from, count);
+        if (ends != null) {
+            for(int ix = 0; ix < count; ix++) setEnd(from + ix, Double.isNaN(ends[ix]) ? -1.0 : ends[ix]);
+        } else if (this.ends != null) {
+            Arrays.fill(this.ends, from, from + count, Double.NaN);
+        }
+        if (keys != null) {
+            System.arraycopy(keys, 0, this.sourceIds, from, count);
+        } else {
+            for(int ix = 0; ix < count; ix++) this.sourceIds[from + ix] = this.sourceid++;
+        }
+        this.markers.clear(from, from + count);
+        this.size += count;
+        if (this.sortedTo >= from) {
+            this.sortedTo = EventSorter.sortedPrefix(this.starts, this.ends, from, this.size);
+        }
+        invalidate();
+    }
+
+    /**
+     * Add the content of one event stream to another.
+     * The event types are matched by name. The events are appended and then
+     * merged into place, when both streams are in order this takes a single
+     * linear pass (see sort()).
+     */
+    public void add(IEventDataStream that)
+    {
+        int maxId = -1;
+        for(EventFactor.EventType type : that.getEventFactor()) maxId = Math.max(maxId, type.id);
+        int[] id2id = new int[maxId + 1];
+        for(EventFactor.EventType type : that.getEventFactor()) {
+            id2id[type.id] = this.eventTypes.put(type.name);
+        }
+        int count = that.getSize();
+        ensureCapacity(this.size + count);
+        if (that instanceof ColumnarEventStream) {
+            ColumnarEventStream columns = (ColumnarEventStream)that;
+            for(int ix = 0; ix < count; ix++) {
+                append(id2id[columns.typeAt(ix)], columns.startAt(ix),
+                        columns.isInstantAt(ix) ? -1.0 : columns.endAt(ix),
+                        columns.sourceIdAt(ix));
+            }
+        } else {
+            for(IEvent event : that.iterable(null)) {
+                append(id2id[event.getEventType()], event.getStartTime(),
+                        (event instanceof InstEvent) ? -1.0 : event.getEndTime(),
+                        event.getSourceId());
+            }
+        }
+        sort();
+    }
+
+    public void add(int typeid, double start, double end, int key)
+    {
+        EventFactor.EventType eventType = this.eventTypes.get(typeid);
+        update(eventType.id, start, end, key);
+    }
+    public void add(int eventIndex, double start) { add(eventIndex, start, -1, -1); }
+    public void add(int eventIndex, double start, double end) { add(eventIndex, start, end, -1); }
+    public void add(int eventIndex, double start, int key) { add(eventIndex, start, -1, key); }
+
+    public void add(String eventName, Double start, Double end, Integer key)
+    {
+        if (legendMap != null) {
+            String tevent = legendMap.get(eventName);
+            if (tevent != null) eventName = tevent;
+        }
+        int eventIndex = this.eventTypes.put(eventName);
+        update(eventIndex, start.doubleValue(),
+                (end == null) ? -1.0 : end.doubleValue(),
+                (key == null) ? -1 : key.intValue());
+    }
+    public void add(String event, Double start) { add(event, start, null, null); }
+    public void add(String event, Double start, Double end) { add(event, start, end, null); }
+    public void add(String event, Double start, Integer key) { add(event, start, null, key); }
+
+    /**
+     * If the constraints are present then the event is allowed if
+     * it meets the constraint.  If the constraint is not present
+     * then the event is added.
+     */
+    @Deprecated
+    public boolean add(List<Interval> constraints, String event, Double start, Double end)
+    { return add(constraints, event, start, end, null); }
+
+    public boolean add(List<Interval> constraints, String event, Double start, Double end, Integer key)
+    {
+        if (event == null || start == null) {
+            if (event == null && start == null) {
+                System.err.println("bad event stream: both type and time are null");
+            } else
+            if (event == null) {
+                System.err.println("bad event stream: type is null at time: " + start.toString());
+            } else {
+                System.err.println("bad event stream: time is null when type: " + event);
+            }
+            return false;
+        }
+        if (!TimeConstraint.check(constraints, start)) { return true; }
+        this.add(event, start, end, key);
+        return true;
+    }
+
+    public int getSize() { return size; }
+    public int getEventTypeCount() { return eventTypes.getSize(); }
+    public EventFactor getEventFactor() { return eventTypes; }
+
+    public void setEventFactor(EventFactor eventTypes)
+    {
+        this.eventTypes = eventTypes;
+    }
+
+    public void setLegend(Map<String,String> legendMap)
+    {
+        this.legendMap = legendMap;
+    }
+
+    public EpisodeSet getFirstOrderEpisodeSet()
+    {
+        EpisodeSet oneNodeEpisodes = new EpisodeSet();
+        oneNodeEpisodes.addEpisodeList(this.eventTypes.getEpisodeList());
+        oneNodeEpisodes.setEventFactor(eventTypes);
+        return oneNodeEpisodes;
+    }
+
+    public double getSequenceStart()
+    {
+        if (size > 0) return starts[0];
+        return -1;
+    }
+
+    public double getSequenceEnd()
+    {
+        if (size > 0) return starts[size - 1];
+        return -1;
+    }
+
+    public IEvent get(int ix)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        return new EventView(ix);
+    }
+    public IEvent get(Integer ix) { return get(ix.intValue()); }
+
+    public void set(Integer ix, IEvent event)
+    {
+        double end = (event instanceof InstEvent) ? -1.0 : event.getEndTime();
+        set(ix.intValue(), event.getEventType(), event.getStartTime(), end, event.getSourceId());
+    }
+    public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key)
+    {
+        long sourceKey = (key == null || key < 0) ? this.sourceid++ : key;
+        set(ix.intValue(), eventIndex.intValue(), start.doubleValue(),
+                (end == null) ? -1.0 : end.doubleValue(), sourceKey);
+    }
+    private void set(int ix, int eventIndex, double start, double end, long key)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        detach();
+        this.types[ix] = eventIndex;
+        this.starts[ix] = start;
+        this.sourceIds[ix] = key;
+        if (this.ends != null || end >= 0) setEnd(ix, end);
+        this.markers.clear(ix);
+        this.sortedTo = Math.min(this.sortedTo, ix);
+        invalidate();
+    }
+
+    /**
+     * Remove the events at the given (ascending) positions,
+     * compacting the columns in a single pass.
+     */
+    protected void removeAll(int[] positions, int count)
+    {
+        if (count < 1) return;
+        ensureCapacity(this.size);
+        int target = positions[0];
+        int px = 0;
+        for(int ix = positions[0]; ix < this.size; ix++) {
+            if (px < count && positions[px] == ix) {
+                px++;
+                continue;
+            }
+            this.types[target] = this.types[ix];
+            this.starts[target] = this.starts[ix];
+            this.sourceIds[target] = this.sourceIds[ix];
+            if (this.ends != null) this.ends[target] = this.ends[ix];
+            target++;
+        }
+        this.markers.removeAll(positions, count);
+        this.size = target;
+        // removing events keeps the others in order
+        int before = 0;
+        while (before < count && positions[before] < this.sortedTo) before++;
+        this.sortedTo -= before;
+        invalidate();
+    }
+
+    /**
+     * A view of the events at the given positions, nothing is copied.
+     * The view is read only and is only valid until this stream is changed.
+     * @see EventStreamView
+     */
+    public IEventDataStream subset(int[] positions)
+    {
+        return new EventStreamView(this, positions, positions.length);
+    }
+
+    /**
+     * Produce two new event streams.
+     * The first holds the events which occur in the 'busy' periods of
+     * the stream, the second those in the 'quiet' periods.
+     * An event is busy when the events starting within the radius of it,
+     * itself included, come to the threshold rate; the count is kept over
+     * the sorted start column by a leading and a trailing position.
+     * The streams are views over this stream, each event is marked as
+     * busy or quiet in a bit set rather than copied.
+     * The views are read only and are only valid until this stream is changed.
+     * @param radius the half time span over which the count is made
+     * @param threshold the rate at which the event goes to busy.
+     * @return the busy and quiet views
+     */
+    public IEventDataStream[] burst(double radius, double threshold)
+    {
+        this.sort();
+        if (size < 1) return null;
+        long cthreshold = (long)(threshold * 2.0 * radius);
+
+        BitSet busy = new BitSet(size);
+        int leader = 0;
+        int trailer = 0;
+        for(int ix = 0; ix < size; ix++) {
+            double start = starts[ix];
+            while (leader < size && starts[leader] <= start + radius) leader++;
+            while (starts[trailer] < start - radius) trailer++;
+            if (leader - trailer >= cthreshold) busy.set(ix);
+        }
+        BitSet quiet = (BitSet)busy.clone();
+        quiet.flip(0, size);
+
+        IEventDataStream[] result = {
+            new EventStreamView(this, busy), new EventStreamView(this, quiet) };
+        return result;
+    }
+
+    /**
+     * Utility function creates a separate amount to jitter each event type by wsize.
+     */
+    private double[] jitPopulator(int n, double wsize)
+    {
+        double[] jits = new double[n];
+        for(int ix = 0; ix < n; ix++ ) {
+            jits[ix] = wsize * (this.randomizer.nextDouble() - 0.5);
+        }
+        return jits;
+    }
+
+    /* Jitters the data
+     * @param wsize -- window size to do jitters
+     * @see AbstractEventStream#jitter(double)
+     */
+    public void jitter(double wsize)
+    {
+        Date currentDate = new Date();
+        this.randomizer = new java.util.Random(currentDate.getTime());
+        if (size < 1) return;
+
+        int numtypes = this.getEventTypeCount();
+        double[] jits = jitPopulator(numtypes, wsize);
+
+        detach();
+        double wstart = starts[0];
+        for(int ix = 0; ix < size; ix++) {
+            if (starts[ix] > (wstart + wsize)) {
+                jits = jitPopulator(numtypes, wsize);
+                wstart = sourceIds[ix];
+            }
+            starts[ix] += jits[ types[ix] ];
+        }
+        this.sortedTo = 0;
+        invalidate();
+    }
+
+    /*
+     * Sort the event stream into time order, by start and then end time.
+     * The sort is stable, only the events after the sorted watermark are
+     * sorted and they are then merged with those before it.
+     * Nothing is moved if the columns are already in order.
+     */
+    public void sort()
+    {
+        this.sortedTo = EventSorter.sortedPrefix(starts, ends, sortedTo, size);
+        if (this.sortedTo >= size) return;
+        permute(EventSorter.order(starts, ends, sortedTo, size));
+        this.sortedTo = size;
+    }
+
+    /**
+     * @return true when every event is known to be in time order,
+     *   without examining the events.
+     */
+    public boolean isKnownSorted()
+    {
+        return this.sortedTo >= this.size;
+    }
+
+    /**
+     * Check, in a single pass, whether the columns are in time order.
+     */
+    public boolean isSorted()
+    {
+        return EventSorter.isSorted(starts, ends, size);
+    }
+
+    /**
+     * Rearrange the columns so that position 'ix' receives the
+     * event previously at position 'order[ix]'.
+     */
+    protected void permute(int[] order)
+    {
+        int capacity = this.types.length;
+        int[] ntypes = new int[capacity];
+        double[] nstarts = new double[capacity];
+        long[] nsourceIds = new long[capacity];
+        for(int ix = 0; ix < size; ix++) {
+            ntypes[ix] = types[order[ix]];
+            nstarts[ix] = starts[order[ix]];
+            nsourceIds[ix] = sourceIds[order[ix]];
+        }
+        if (this.ends != null) {
+            double[] nends = new double[capacity];
+            Arrays.fill(nends, size, capacity, Double.NaN);
+            for(int ix = 0; ix < size; ix++) nends[ix] = ends[order[ix]];
+            this.ends = nends;
+        }
+        if (this.sharedColumns) this.markers = this.markers.copy();
+        this.markers.permute(order, size);
+        this.types = ntypes;
+        this.starts = nstarts;
+        this.sourceIds = nsourceIds;
+        this.sharedColumns = false;
+        invalidate();
+    }
+
+    /**
+     * Discard anything derived from the events.
+     * To be called whenever the events are changed.
+     */
+    protected void invalidate()
+    {
+        this.typeIndex = null;
+        this.statistics = null;
+        this.byKey = null;
+    }
+
+    public EventTypeIndex getTypeIndex()
+    {
+        if (this.typeIndex == null || this.typeIndex.getStreamSize() != this.size) {
+            this.typeIndex = new EventTypeIndex(this);
+        }
+        return this.typeIndex;
+    }
+
+    public StreamStatistics getStatistics()
+    {
+        if (this.statistics == null || this.statistics.getStreamSize() != this.size) {
+            this.statistics = new StreamStatistics(this);
+        }
+        return this.statistics;
+    }
+
+    public TimeConstraint<CONSTRAINT_MODE> getConstraints()
+    {
+        return this.timeConstraints;
+    }
+    public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        this.timeConstraints = constraints;
+    }
+
+    /**
+     * The iterable works as the one in AbstractEventStream.
+     * The events it returns are views onto the columns.
+     */
+    public class LocalIterable implements IEventIterable
+    {
+        private int cursor = 0;
+        private int current = -1;
+        private int next = -1;
+
+        /**
+         * When the stream is sorted the constraints are resolved to
+         * [low, high) position pairs and only those positions are visited.
+         */
+        private int[] ranges = null;
+        private int rangeIx = 0;
+        private int total = size;
+
+        private int itemsProcessed = 0;
+        private IObserver observer = null;
+        private boolean isEventConstrained = false;
+        private List<Interval> eventTimeConstraintList = null;
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        public LocalIterable(IEventDataStream.CONSTRAINT_MODE mode, IObserver observer)
+        {
+            this.observer = observer;
+            if (mode == null) return;
+
+            if (ColumnarEventStream.this.timeConstraints != null)
+            {
+                this.eventTimeConstraintList
+                        = ColumnarEventStream.this.timeConstraints.getConstraints(mode);
+                this.isEventConstrained = this.eventTimeConstraintList.size() > 0;
+            }
+            if (this.isEventConstrained && ColumnarEventStream.this.isKnownSorted()) {
+                this.ranges = TimeConstraint.ranges(this.eventTimeConstraintList, ColumnarEventStream.this);
+                this.total = TimeConstraint.count(this.ranges);
+                this.cursor = (ranges.length > 0) ? ranges[0] : 0;
+            }
+        }
+        public LocalIterable() {
+            this(null, null);
+        }
+
+        public Iterator<IEvent> iterator() {
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) return false;
+                    if (current != next) return true;
+                    if (ranges != null) {
+                        while (rangeIx < ranges.length) {
+                            if (cursor < ranges[rangeIx + 1]) {
+                                next = cursor++;
+                                return true;
+                            }
+                            rangeIx += 2;
+                            if (rangeIx < ranges.length) cursor = ranges[rangeIx];
+                        }
+                        return false;
+                    }
+                    while (cursor < size) {
+                        int ix = cursor++;
+                        if (!isEventConstrained
+                          || TimeConstraint.check(eventTimeConstraintList, starts[ix])) {
+                            next = ix;
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                public IEvent next() {
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    if (current == next) {
+                        if (!hasNext()) throw new NoSuchElementException();
+                    }
+                    current = next;
+                    return new EventView(current);
+                }
+                public void remove() {
+                    LocalIterable.this.remove();
+                }
+            }; // end new Iterator
+        }
+        public void remove()
+        {
+            if (current < 0) return;
+            ColumnarEventStream.this.removeAll(new int[] { current }, 1);
+            if (ranges != null) {
+                for (int jx = 0; jx < ranges.length; jx++) {
+                    if (ranges[jx] > current) ranges[jx]--;
+                }
+            }
+            cursor--;
+            if (next != current) {
+                // the look ahead event has shifted down with the columns
+                next--;
+                current = -1;
+            } else {
+                current = next = -1;
+            }
+        }
+        public int percentComplete() {
+            return (int)(itemsProcessed * 100.0 / total);
+        }
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+
+    public IEventIterable iterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        return new LocalIterable(mode, observer);
+    }
+
+    /**
+     * Replace the constituent events with a single new event.
+     * The events are expected to be views obtained from this stream.
+     */
+    public void integrate(String name, List<IEvent> eventset)
+    {
+        IEvent first = eventset.get(0);
+        int[] positions = new int[eventset.size()];
+        int count = 0;
+        for( IEvent event : eventset ) {
+            if (!(event instanceof EventView)) continue;
+            EventView view = (EventView)event;
+            if (view.getStream() != this) continue;
+            positions[count++] = view.getIndex();
+        }
+        Arrays.sort(positions, 0, count);
+        this.add(name, first.getStartTime());
+        this.removeAll(positions, count);
+    }
+
+    /**
+     * Views of this stream carry their position,
+     * other events are located by their start time, type and key.
+     */
+    public void markEvents(List<IEvent> events, int episodeIndex)
+    {
+        detach();
+        for(IEvent event : events) {
+            int ix = positionOf(event);
+            if (ix >= 0) this.markers.mark(ix, episodeIndex);
+        }
+    }
+
+    /**
+     * @return the position of the event in the stream, -1 if absent.
+     */
+    protected int positionOf(IEvent event)
+    {
+        if (event instanceof EventView && ((EventView)event).getStream() == this) {
+            return ((EventView)event).getIndex();
+        }
+        double start = event.getStartTime();
+        if (isKnownSorted()) {
+            for(int ix = TimeConstraint.searchStart(this, start, false, 0); ix < size; ix++) {
+                if (starts[ix] > start) break;
+                if (types[ix] == event.getEventType()
+                        && sourceIds[ix] == event.getSourceId()) return ix;
+            }
+            return -1;
+        }
+        int[] order = keyOrder();
+        long key = event.getSourceId();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sourceIds[order[mid]] < key) low = mid + 1;
+            else high = mid;
+        }
+        for(; low < size && sourceIds[order[low]] == key; low++) {
+            int ix = order[low];
+            if (starts[ix] == start && types[ix] == event.getEventType()) return ix;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the positions ordered by their keys, positions with the same
+     *   key in stream order; kept until the stream changes.
+     */
+    private int[] keyOrder()
+    {
+        if (byKey == null || byKey.length != size) {
+            double[] keys = new double[size];
+            for(int ix = 0; ix < size; ix++) keys[ix] = sourceIds[ix];
+            byKey = EventSorter.order(keys, null, size);
+        }
+        return byKey;
+    }
+
+    public EventMarkers getMarkers()
+    {
+        return this.markers;
+    }
+
+    public void removeMarkers()
+    {
+        detach();
+        this.markers.clear();
+    }
+
+    public double getMarkerRatio()
+    {
+        return (double)this.markers.count(0, size) / (double)size;
+    }
+
+    /**
+     * Retrieve all the event's type ids in a single array.
+     */
+    public int[] getTypeColumn() { return Arrays.copyOf(types, size); }
+    /**
+     * Retrieve all the event's start times in a single array.
+     */
+    public double[] getStartTimeArray() { return Arrays.copyOf(starts, size); }
+    /**
+     * Retrieve all the event's durations in a single array.
+     */
+    public double[] getDurationArray()
+    {
+        double[] result = new double[size];
+        if (ends == null) return result;
+        for(int ix = 0; ix < size; ix++) {
+            result[ix] = endAt(ix) - starts[ix];
+        }
+        return result;
+    }
+    /**
+     * Retrieve all the event's source keys in a single array.
+     */
+    public long[] getKeyArray() { return Arrays.copyOf(sourceIds, size); }
+
+    /**
+     * A flyweight view of a single event in the columns.
+     * Views are only valid until the stream is sorted or events are removed.
+     */
+    public class EventView implements IEvent
+    {
+        private final int ix;
+
+        EventView(int ix) { this.ix = ix; }
+
+        public int getIndex() { return ix; }
+        ColumnarEventStream getStream() { return ColumnarEventStream.this; }
+
+        public int getEventType() { return types[ix]; }
+
+        public double getStartTime() { return starts[ix]; }
+        public void setStartTime(double time) { detach(); starts[ix] = time; sortedTo = Math.min(sortedTo, ix); invalidate(); }
+
+        public double getEndTime() { return endAt(ix); }
+        public void setEndTime(double time) { setEnd(ix, time); }
+
+        public double getDuration() { return endAt(ix) - starts[ix]; }
+        public void setDuration(double duration) { setEnd(ix, starts[ix] + duration); }
+
+        public boolean isInstant() { return isInstantAt(ix); }
+
+        public boolean rangeCheck(List<Interval> timespanList)
+        {
+            return TimeConstraint.check(timespanList, starts[ix]);
+        }
+
+        public long getSourceId() { return sourceIds[ix]; }
+
+        public int compareTo(java.lang.Object that)
+        {
+            if (!(that instanceof IEvent))
+                throw new java.lang.ClassCastException("events are not comparable");
+            IEvent thatEvent = (IEvent)that;
+            if (this.getStartTime() < thatEvent.getStartTime()) return -1;
+            if (this.getStartTime() > thatEvent.getStartTime()) return 1;
+            if (this.getEndTime() < thatEvent.getEndTime()) return -1;
+            if (this.getEndTime() > thatEvent.getEndTime()) return 1;
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof EventView)) return false;
+            EventView that = (EventView)obj;
+            return that.getStream() == this.getStream() && that.ix == this.ix;
+        }
+
+        @Override
+        public int hashCode() { return ix; }
+
+        @Override
+        public String toString()
+        {
+            if (isInstant()) return "[" + getEventType() + "," + getStartTime() + "]";
+            return "[" + getEventType() + "," + getStartTime() + "," + getEndTime() + "]";
+        }
+    }
+}
@@ -0,0 +1,974 @@
+/*
+ * CompressedEventStream.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An event stream held in a compact encoding, so that longer recordings
+ * fit in the same heap.
+ * The times are quantized to a granularity (normally the session's
+ * time granularity) and kept as a count of ticks.
+ * The events are encoded in blocks of BLOCK events, each event as
+ * variable length integers (seven bits to the byte):
+ * <pre>
+ * varint  event type id
+ * varint  zig-zag difference in ticks from the previous start time
+ * varint  zig-zag difference from one more than the previous source id
+ * varint  (only if some event has a duration) 0 if instantaneous,
+ *         otherwise one more than the zig-zag duration in ticks
+ * </pre>
+ * A seek table holds the byte offset, the start tick and the source id
+ * of the first event of each block; the differences within a block are
+ * taken from these, so a block may be decoded on its own.
+ * A sorted spike train with sequential source ids takes three or four
+ * bytes an event against twenty in the columns of a
+ * {@link ColumnarEventStream}.
+ *
+ * The traversals decode a block at a time into small arrays,
+ * random access decodes the block holding the event into a block kept
+ * by the calling thread, so visiting the events in order decodes each
+ * block once.
+ *
+ * Events are appended to the last block and a changed event has its
+ * block encoded again. Sorting, jittering and removing events move
+ * the events of every block, these decode the stream into columns
+ * and encode it again.
+ */
+public class CompressedEventStream implements IEventDataStream
+{
+    /** the number of events in a block of the seek table */
+    static final int BLOCK = 1024;
+
+    private final EventFactor eventTypes;
+    private final double granularity;
+    // when the granularity is the reciprocal of an integer the ticks are divided by it,
+    // so a time which lies on the grid is decoded exactly as it would be parsed
+    private final double ticksPerUnit;
+
+    // the encoding, shared with a clone until either of them is changed
+    private int size = 0;
+    private boolean durations = false;
+    private boolean sorted = true;
+    private Encoder out;
+    private int[] blockOffsets;
+    private long[] blockTicks;
+    private long[] blockKeys;
+    private boolean shared = false;
+    // the start tick and source id of the last event, from which the next is appended
+    private long lastTick = 0;
+    private long lastKey = 0;
+    // counts the changes, a block decoded from an earlier version is decoded again
+    private int version = 0;
+
+    private EventMarkers markers = new EventMarkers();
+    private long sourceid = 0;
+    private EventTypeIndex typeIndex = null;
+    private StreamStatistics statistics = null;
+    private TimeConstraint<CONSTRAINT_MODE> timeConstraints;
+
+    private final ThreadLocal<Block> windows = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() { return new Block(); }
+    };
+
+    /** the start times of the first events of the blocks */
+    private final TimeConstraint.StartTimes blockStarts = new TimeConstraint.StartTimes() {
+        public int getSize() { return blockCount(); }
+        public double startAt(int bx) { return time(blockTicks[bx]); }
+    };
+
+    /**
+     * Encode the events of a stream.
+     * @param granularity the resolution to which the times are kept
+     */
+    public CompressedEventStream(IEventDataStream that, double granularity)
+    {
+        if (!(granularity > 0.0)) {
+            throw new IllegalArgumentException("the time granularity must be positive: " + granularity);
+        }
+        this.eventTypes = that.getEventFactor();
+        this.timeConstraints = that.getConstraints();
+        this.granularity = granularity;
+        double reciprocal = Math.rint(1.0 / granularity);
+        this.ticksPerUnit = (reciprocal >= 1.0 && Math.abs(reciprocal * granularity - 1.0) < 1e-12)
+                ? reciprocal : 0.0;
+        encode(that);
+        this.markers = that.getMarkers().copy();
+    }
+
+    /**
+     * Replace the encoding with that of the events of the stream.
+     */
+    private void encode(IEventDataStream that)
+    {
+        int count = that.getSize();
+        ColumnarEventStream columns = (that instanceof ColumnarEventStream)
+                ? (ColumnarEventStream)that : null;
+        boolean anyDuration = false;
+        for(int ix = 0; ix < count && !anyDuration; ix++) {
+            anyDuration = (columns != null) ? !columns.isInstantAt(ix)
+                    : !(that.get(ix) instanceof InstEvent);
+        }
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        this.size = 0;
+        this.durations = anyDuration;
+        this.sorted = true;
+        this.out = new Encoder(Math.max(count * 4, 16));
+        this.blockOffsets = new int[blocks + 1];
+        this.blockTicks = new long[blocks + 1];
+        this.blockKeys = new long[blocks + 1];
+        this.shared = false;
+        for(int ix = 0; ix < count; ix++) {
+            if (columns != null) {
+                appendEncoded(columns.typeAt(ix), columns.startAt(ix),
+                        columns.isInstantAt(ix) ? Double.NaN : columns.endAt(ix),
+                        columns.sourceIdAt(ix));
+            } else {
+                IEvent event = that.get(ix);
+                appendEncoded(event.getEventType(), event.getStartTime(),
+                        (event instanceof InstEvent) ? Double.NaN : event.getEndTime(),
+                        event.getSourceId());
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Encode an event after the last one, starting a block every BLOCK events.
+     * @param end the end time, NaN if the event is instantaneous
+     */
+    private void appendEncoded(int type, double start, double end, long key)
+    {
+        long tick = tick(start);
+        if (size > 0 && tick < lastTick) sorted = false;
+        if (size % BLOCK == 0) {
+            int bx = size / BLOCK;
+            if (bx + 1 >= blockOffsets.length) {
+                int capacity = Math.max(blockOffsets.length * 2, bx + 2);
+                blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+                blockTicks = Arrays.copyOf(blockTicks, capacity);
+                blockKeys = Arrays.copyOf(blockKeys, capacity);
+            }
+            blockOffsets[bx] = out.length;
+            blockTicks[bx] = tick;
+            blockKeys[bx] = key;
+            lastTick = tick;
+            lastKey = key - 1;
+        }
+        encodeEvent(out, type, tick, end, key, lastTick, lastKey);
+        lastTick = tick;
+        lastKey = key;
+        // generated keys follow the largest so far
+        if (key >= sourceid) sourceid = key + 1;
+        size++;
+        blockOffsets[(size - 1) / BLOCK + 1] = out.length;
+    }
+
+    private void encodeEvent(Encoder target, int type, long tick, double end, long key,
+            long priorTick, long priorKey)
+    {
+        target.put(type);
+        target.put(zigzag(tick - priorTick));
+        target.put(zigzag(key - priorKey - 1));
+        if (durations) {
+            target.put(Double.isNaN(end) ? 0 : zigzag(tick(end) - tick) + 1);
+        }
+    }
+
+    /**
+     * Encode a changed block again and splice it into place.
+     */
+    private void splice(Block block)
+    {
+        int bx = block.index;
+        Encoder part = new Encoder(block.count * 4 + 16);
+        long tick = 0;
+        long key = 0;
+        for(int ix = 0; ix < block.count; ix++) {
+            long next = tick(block.starts[ix]);
+            if (ix == 0) {
+                blockTicks[bx] = next;
+                blockKeys[bx] = block.keys[0];
+                tick = next;
+                key = block.keys[0] - 1;
+            }
+            encodeEvent(part, block.types[ix], next, block.ends[ix], block.keys[ix], tick, key);
+            tick = next;
+            key = block.keys[ix];
+        }
+        int from = blockOffsets[bx];
+        int to = blockOffsets[bx + 1];
+        out.replace(from, to, part);
+        int blocks = blockCount();
+        for(int jx = bx + 1; jx <= blocks; jx++) blockOffsets[jx] += part.length - (to - from);
+        if (bx == blocks - 1) {
+            lastTick = tick;
+            lastKey = key;
+        }
+    }
+
+    /**
+     * Decode the stream into columns, which share the event factor
+     * and carry a copy of the markers.
+     */
+    private ColumnarEventStream decode()
+    {
+        ColumnarEventStream columns = new ColumnarEventStream(Math.max(size, 1));
+        columns.setEventFactor(eventTypes);
+        Block block = new Block();
+        for(int bx = 0; bx < blockCount(); bx++) {
+            block.decode(bx);
+            columns.appendAll(block.types, block.starts, durations ? block.ends : null,
+                    block.keys, block.count);
+        }
+        columns.markers = markers.copy();
+        columns.sourceid = sourceid;
+        return columns;
+    }
+
+    /**
+     * Take the events and markers of columns changed after {@link #decode()}.
+     */
+    private void rebuild(ColumnarEventStream columns)
+    {
+        encode(columns);
+        this.markers = columns.markers;
+        this.sourceid = columns.sourceid;
+    }
+
+    /**
+     * Copy the encoding before it is changed if a clone still refers to it.
+     */
+    private void unshare()
+    {
+        if (!shared) return;
+        out = out.copy();
+        blockOffsets = blockOffsets.clone();
+        blockTicks = blockTicks.clone();
+        blockKeys = blockKeys.clone();
+        shared = false;
+    }
+
+    private void changed()
+    {
+        version++;
+        typeIndex = null;
+        statistics = null;
+    }
+
+    private int blockCount() { return (size + BLOCK - 1) / BLOCK; }
+
+    private long tick(double time)
+    {
+        return Math.round((ticksPerUnit > 0.0) ? time * ticksPerUnit : time / granularity);
+    }
+
+    private double time(long tick)
+    {
+        return (ticksPerUnit > 0.0) ? tick / ticksPerUnit : tick * granularity;
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A growing byte array written as variable length integers.
+     */
+    private static class Encoder
+    {
+        byte[] bytes;
+        int length = 0;
+
+        Encoder(int capacity) { this.bytes = new byte[capacity]; }
+
+        void ensureCapacity(int capacity)
+        {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, capacity));
+            }
+        }
+
+        void put(long value)
+        {
+            ensureCapacity(length + 10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        /** Replace the bytes from 'from' to 'to' exclusive with those of the part. */
+        void replace(int from, int to, Encoder part)
+        {
+            int shift = part.length - (to - from);
+            ensureCapacity(length + shift);
+            System.arraycopy(bytes, to, bytes, to + shift, length - to);
+            System.arraycopy(part.bytes, 0, bytes, from, part.length);
+            length += shift;
+        }
+
+        Encoder copy()
+        {
+            Encoder result = new Encoder(0);
+            result.bytes = Arrays.copyOf(bytes, length);
+            result.length = length;
+            return result;
+        }
+    }
+
+    /**
+     * One block of events decoded into primitive arrays.
+     */
+    private class Block
+    {
+        final int[] types = new int[BLOCK];
+        final double[] starts = new double[BLOCK];
+        final double[] ends = new double[BLOCK];
+        final long[] keys = new long[BLOCK];
+        int index = -1;
+        int first = 0;
+        int count = 0;
+        int decoded = -1;
+
+        /**
+         * Decode the block holding the position unless it is already held.
+         * @return the index of the position within the block
+         */
+        int locate(int position)
+        {
+            int bx = position / BLOCK;
+            if (index != bx || decoded != version) decode(bx);
+            return position - first;
+        }
+
+        void decode(int blockIndex)
+        {
+            byte[] data = out.bytes;
+            int position = blockOffsets[blockIndex];
+            long tick = blockTicks[blockIndex];
+            long key = blockKeys[blockIndex] - 1;
+            this.index = blockIndex;
+            this.decoded = version;
+            this.first = blockIndex * BLOCK;
+            this.count = Math.min(BLOCK, size - first);
+            for(int ix = 0; ix < count; ix++) {
+                long value = 0;
+                int shift = 0;
+                byte b;
+                do { b = data[position++]; value |= (long)(b & 0x7F) << shift; shift += 7; } while (b < 0);
+                types[ix] = (int)value;
+
+                value = 0; shift = 0;
+                do { b = data[position++]; value |= (long)(b & 0x7F) << shift; shift += 7; } while (b < 0);
+                tick += unzigzag(value);
+                starts[ix] = time(tick);
+
+                value = 0; shift = 0;
+                do { b = data[position++]; value |= (long)(b & 0x7F) << shift; shift += 7; } while (b < 0);
+                key += unzigzag(value) + 1;
+                keys[ix] = key;
+
+                ends[ix] = Double.NaN;
+                if (!durations) continue;
+                value = 0; shift = 0;
+                do { b = data[position++]; value |= (long)(b & 0x7F) << shift; shift += 7; } while (b < 0);
+                if (value != 0) ends[ix] = time(tick + unzigzag(value - 1));
+            }
+        }
+
+        /** @return a copy of the event at the index within the block */
+        IEvent event(int ix)
+        {
+            if (Double.isNaN(ends[ix])) return new InstEvent(keys[ix], types[ix], starts[ix]);
+            return new GeneralEvent(keys[ix], types[ix], starts[ix], ends[ix]);
+        }
+    }
+
+    /**
+     * @return the start times of the events, decoded into the probe.
+     */
+    private TimeConstraint.StartTimes startTimes(final Block probe)
+    {
+        return new TimeConstraint.StartTimes() {
+            public int getSize() { return size; }
+            public double startAt(int ix) { return probe.starts[probe.locate(ix)]; }
+        };
+    }
+
+    /**
+     * @return the number of bytes holding the encoded events and the seek table.
+     */
+    public long getEncodedSize()
+    {
+        return out.length + 4L * (blockCount() + 1) + 16L * blockCount();
+    }
+
+    public double getGranularity() { return granularity; }
+
+    /**
+     * @return true if the events are in time order.
+     */
+    public boolean isSorted() { return sorted; }
+
+    public int getSize() { return size; }
+    public int getEventTypeCount() { return eventTypes.getSize(); }
+    public EventFactor getEventFactor() { return eventTypes; }
+
+    public EpisodeSet getFirstOrderEpisodeSet()
+    {
+        EpisodeSet oneNodeEpisodes = new EpisodeSet();
+        oneNodeEpisodes.addEpisodeList(this.eventTypes.getEpisodeList());
+        oneNodeEpisodes.setEventFactor(eventTypes);
+        return oneNodeEpisodes;
+    }
+
+    public double getSequenceStart()
+    {
+        if (size > 0) return time(blockTicks[0]);
+        return -1;
+    }
+
+    public double getSequenceEnd()
+    {
+        if (size < 1) return -1;
+        Block window = windows.get();
+        return window.starts[window.locate(size - 1)];
+    }
+
+    /**
+     * @return a copy of the event, changing it does not change the stream.
+     */
+    public IEvent get(int ix)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        Block window = windows.get();
+        return window.event(window.locate(ix));
+    }
+    public IEvent get(Integer ix) { return get(ix.intValue()); }
+
+    public void set(Integer ix, IEvent event)
+    {
+        double end = (event instanceof InstEvent) ? -1.0 : event.getEndTime();
+        set(ix.intValue(), event.getEventType(), event.getStartTime(), end, event.getSourceId());
+    }
+    public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key)
+    {
+        long sourceKey = (key == null || key < 0) ? this.sourceid++ : key;
+        set(ix.intValue(), eventIndex.intValue(), start.doubleValue(),
+                (end == null) ? -1.0 : end.doubleValue(), sourceKey);
+    }
+
+    /**
+     * Encode the block of the event again with the event changed.
+     * The first event with a duration has the whole stream encoded again.
+     */
+    private void set(int ix, int eventIndex, double start, double end, long key)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        if (end >= 0 && !durations) {
+            ColumnarEventStream columns = decode();
+            columns.set(ix, new GeneralEvent(key, eventIndex, start, end));
+            rebuild(columns);
+            return;
+        }
+        unshare();
+        Block block = new Block();
+        int jx = block.locate(ix);
+        block.types[jx] = eventIndex;
+        block.starts[jx] = start;
+        block.ends[jx] = (end < 0) ? Double.NaN : end;
+        block.keys[jx] = key;
+        splice(block);
+        if (sorted) {
+            long tick = tick(start);
+            if (jx > 0) {
+                sorted = tick(block.starts[jx - 1]) <= tick;
+            } else if (block.index > 0) {
+                sorted = tick(startTimes(new Block()).startAt(ix - 1)) <= tick;
+            }
+            if (jx + 1 < block.count) {
+                sorted &= tick <= tick(block.starts[jx + 1]);
+            } else if (ix + 1 < size) {
+                sorted &= tick <= blockTicks[block.index + 1];
+            }
+        }
+        markers.clear(ix);
+        changed();
+    }
+
+    /**
+     * The copy shares the encoded events until either stream is changed.
+     */
+    @Override
+    public Object clone()
+    {
+        return new CompressedEventStream(this);
+    }
+
+    private CompressedEventStream(CompressedEventStream that)
+    {
+        this.eventTypes = that.eventTypes;
+        this.granularity = that.granularity;
+        this.ticksPerUnit = that.ticksPerUnit;
+        this.size = that.size;
+        this.durations = that.durations;
+        this.sorted = that.sorted;
+        this.out = that.out;
+        this.blockOffsets = that.blockOffsets;
+        this.blockTicks = that.blockTicks;
+        this.blockKeys = that.blockKeys;
+        this.lastTick = that.lastTick;
+        this.lastKey = that.lastKey;
+        this.shared = that.shared = true;
+        this.markers = that.markers.copy();
+        this.sourceid = that.sourceid;
+        this.timeConstraints = that.timeConstraints;
+    }
+
+    public void jitter(double wsize)
+    {
+        ColumnarEventStream columns = decode();
+        columns.jitter(wsize);
+        rebuild(columns);
+    }
+
+    public void sort()
+    {
+        if (sorted) return;
+        ColumnarEventStream columns = decode();
+        columns.sort();
+        rebuild(columns);
+    }
+
+    /**
+     * Append an event to the last block.
+     * The first event with a duration has the whole stream encoded again.
+     * @param end the end time, negative if instantaneous
+     */
+    private void append(int eventIndex, double start, double end, long key)
+    {
+        this.eventTypes.incrById(eventIndex);
+        if (end >= 0 && !durations) {
+            ColumnarEventStream columns = decode();
+            columns.appendAll(new int[] { eventIndex }, new double[] { start },
+                    new double[] { end }, new long[] { key }, 1);
+            rebuild(columns);
+            return;
+        }
+        unshare();
+        appendEncoded(eventIndex, start, (end < 0) ? Double.NaN : end, key);
+        markers.clear(size - 1);
+        changed();
+    }
+
+    public void add(int typeid, double start, double end, int key)
+    {
+        EventFactor.EventType eventType = this.eventTypes.get(typeid);
+        append(eventType.id, start, end, (key < 0) ? this.sourceid++ : key);
+    }
+    public void add(int eventIndex, double start) { add(eventIndex, start, -1, -1); }
+    public void add(int eventIndex, double start, double end) { add(eventIndex, start, end, -1); }
+    public void add(int eventIndex, double start, int key) { add(eventIndex, start, -1, key); }
+
+    public void add(String eventName, Double start, Double end, Integer key)
+    {
+        int eventIndex = this.eventTypes.put(eventName);
+        append(eventIndex, start.doubleValue(),
+                (end == null) ? -1.0 : end.doubleValue(),
+                (key == null || key < 0) ? this.sourceid++ : key);
+    }
+    public void add(String event, Double start) { add(event, start, null, null); }
+    public void add(String event, Double start, Double end) { add(event, start, end, null); }
+    public void add(String event, Double start, Integer key) { add(event, start, null, key); }
+
+    /**
+     * If the constraints are present then the event is allowed if
+     * it meets the constraint.  If the constraint is not present
+     * then the event is added.
+     */
+    public boolean add(List<Interval> constraints, String event, Double start, Double end)
+    {
+        if (event == null || start == null) {
+            System.err.println("bad event stream: type " + event + " at time " + start);
+            return false;
+        }
+        if (!TimeConstraint.check(constraints, start)) { return true; }
+        this.add(event, start, end, null);
+        return true;
+    }
+
+    public TimeConstraint<CONSTRAINT_MODE> getConstraints()
+    {
+        return this.timeConstraints;
+    }
+    public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        this.timeConstraints = constraints;
+    }
+
+    public EventTypeIndex getTypeIndex()
+    {
+        if (typeIndex == null) typeIndex = new EventTypeIndex(this);
+        return typeIndex;
+    }
+
+    public StreamStatistics getStatistics()
+    {
+        if (statistics == null) statistics = new StreamStatistics(this);
+        return statistics;
+    }
+
+    /**
+     * Replace the constituent events with a single new event.
+     * The events are located by their start time, type and key.
+     */
+    public void integrate(String name, List<IEvent> eventset)
+    {
+        IEvent first = eventset.get(0);
+        int[] positions = positionsOf(eventset);
+        Arrays.sort(positions);
+        int from = 0;
+        while (from < positions.length && positions[from] < 0) from++;
+        ColumnarEventStream columns = decode();
+        columns.add(name, first.getStartTime());
+        columns.removeAll(Arrays.copyOfRange(positions, from, positions.length),
+                positions.length - from);
+        rebuild(columns);
+    }
+
+    public void markEvents(List<IEvent> events, int episodeIndex)
+    {
+        for(int ix : positionsOf(events)) {
+            if (ix >= 0) this.markers.mark(ix, episodeIndex);
+        }
+    }
+
+    /**
+     * Locate events by their start time (to the granularity), type and key.
+     * A sorted stream is searched through the seek table for each event,
+     * otherwise the stream is decoded once and each event matched on its key.
+     * @return the position of each event, -1 if absent.
+     */
+    private int[] positionsOf(List<IEvent> events)
+    {
+        int[] positions = new int[events.size()];
+        Arrays.fill(positions, -1);
+        Block probe = new Block();
+        if (sorted) {
+            for(int ex = 0; ex < positions.length; ex++) {
+                IEvent event = events.get(ex);
+                double start = time(tick(event.getStartTime()));
+                int bx = TimeConstraint.searchStart(blockStarts, start, false, 0);
+                for(int ix = Math.max(bx - 1, 0) * BLOCK; ix < size; ix++) {
+                    int jx = probe.locate(ix);
+                    if (probe.starts[jx] > start) break;
+                    if (probe.starts[jx] == start && probe.types[jx] == event.getEventType()
+                            && probe.keys[jx] == event.getSourceId()) {
+                        positions[ex] = ix;
+                        break;
+                    }
+                }
+            }
+            return positions;
+        }
+        Map<Long, List<Integer>> byKey = new HashMap<Long, List<Integer>>();
+        long[] keys = new long[positions.length];
+        for(int ex = 0; ex < positions.length; ex++) {
+            keys[ex] = events.get(ex).getSourceId();
+            List<Integer> list = byKey.get(keys[ex]);
+            if (list == null) byKey.put(keys[ex], list = new ArrayList<Integer>(1));
+            list.add(ex);
+        }
+        Arrays.sort(keys);
+        for(int ix = 0; ix < size; ix++) {
+            int jx = probe.locate(ix);
+            if (Arrays.binarySearch(keys, probe.keys[jx]) < 0) continue;
+            for(int ex : byKey.get(probe.keys[jx])) {
+                IEvent event = events.get(ex);
+                if (positions[ex] < 0 && probe.types[jx] == event.getEventType()
+                        && probe.starts[jx] == time(tick(event.getStartTime()))) {
+                    positions[ex] = ix;
+                }
+            }
+        }
+        return positions;
+    }
+
+    public EventMarkers getMarkers()
+    {
+        return this.markers;
+    }
+
+    public void removeMarkers()
+    {
+        this.markers.clear();
+    }
+
+    public double getMarkerRatio()
+    {
+        return (double)this.markers.count(0, size) / (double)size;
+    }
+
+    /**
+     * The events handed out are copies, which stay valid however the
+     * stream is changed later and may be kept by the counters.
+     */
+    public IEventIterable iterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        return new LocalIterable(mode, observer, false);
+    }
+
+    /**
+     * A traversal handing out a single event which is moved along the stream,
+     * for callers which look at each event as it is passed and keep none.
+     * The event reads the block decoded by the traversal and changing it
+     * changes the stream.
+     */
+    public IEventIterable flyweightIterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        return new LocalIterable(mode, observer, true);
+    }
+
+    /**
+     * Each traversal decodes the blocks into its own arrays.
+     * Constraints are resolved to position ranges when the stream is sorted,
+     * otherwise each event is checked as it is decoded.
+     * Removing an event encodes the stream again.
+     */
+    public class LocalIterable implements IEventIterable
+    {
+        private final Block block = new Block();
+        private final Flyweight flyweight;
+        private final IObserver observer;
+        private List<Interval> eventTimeConstraintList = null;
+        /** [low, high) position pairs to visit, null for the whole stream */
+        private int[] ranges = null;
+        private int rangeIx = 0;
+        private int cursor = 0;
+        private int current = -1;
+        private int next = -1;
+        private int total = size;
+
+        private int itemsProcessed = 0;
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        LocalIterable(CONSTRAINT_MODE mode, IObserver observer, boolean reuse)
+        {
+            this.observer = observer;
+            this.flyweight = reuse ? new Flyweight(block) : null;
+            if (mode == null || timeConstraints == null) return;
+
+            List<Interval> constraints = timeConstraints.getConstraints(mode);
+            if (constraints.size() < 1) return;
+            if (!sorted) {
+                this.eventTimeConstraintList = constraints;
+                return;
+            }
+            this.ranges = TimeConstraint.ranges(constraints, startTimes(new Block()));
+            this.total = TimeConstraint.count(ranges);
+            this.cursor = (ranges.length > 0) ? ranges[0] : 0;
+        }
+
+        public Iterator<IEvent> iterator()
+        {
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) return false;
+                    if (next >= 0) return true;
+                    if (ranges != null) {
+                        while (rangeIx < ranges.length) {
+                            if (cursor < ranges[rangeIx + 1]) {
+                                next = cursor++;
+                                return true;
+                            }
+                            rangeIx += 2;
+                            if (rangeIx < ranges.length) cursor = ranges[rangeIx];
+                        }
+                        return false;
+                    }
+                    while (cursor < size) {
+                        int ix = cursor++;
+                        if (eventTimeConstraintList == null
+                          || TimeConstraint.check(eventTimeConstraintList,
+                                  block.starts[block.locate(ix)])) {
+                            next = ix;
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                public IEvent next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    current = next;
+                    next = -1;
+                    if (flyweight != null) {
+                        flyweight.position = current;
+                        return flyweight;
+                    }
+                    return block.event(block.locate(current));
+                }
+                public void remove() {
+                    LocalIterable.this.remove();
+                }
+            };
+        }
+        public void remove()
+        {
+            if (current < 0) return;
+            ColumnarEventStream columns = decode();
+            columns.removeAll(new int[] { current }, 1);
+            rebuild(columns);
+            if (ranges != null) {
+                for (int jx = 0; jx < ranges.length; jx++) {
+                    if (ranges[jx] > current) ranges[jx]--;
+                }
+            }
+            cursor--;
+            // the look ahead event has shifted down with the others
+            if (next >= 0) next--;
+            current = -1;
+        }
+        public int percentComplete()
+        {
+            return (total < 1) ? 100 : (int)(itemsProcessed * 100.0 / total);
+        }
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+
+    /**
+     * The event handed out by a flyweight traversal, it reads
+     * the block of the traversal and writes through to the stream.
+     */
+    private class Flyweight implements IEvent
+    {
+        private final Block block;
+        int position = -1;
+
+        Flyweight(Block block) { this.block = block; }
+
+        public int getEventType() { return block.types[block.locate(position)]; }
+
+        public double getStartTime() { return block.starts[block.locate(position)]; }
+        public void setStartTime(double time) { update(time, endOrNone()); }
+
+        public double getEndTime()
+        {
+            int ix = block.locate(position);
+            return Double.isNaN(block.ends[ix]) ? block.starts[ix] : block.ends[ix];
+        }
+        public void setEndTime(double time) { update(getStartTime(), time); }
+
+        public double getDuration() { return getEndTime() - getStartTime(); }
+        public void setDuration(double duration) { update(getStartTime(), getStartTime() + duration); }
+
+        public boolean rangeCheck(List<Interval> timespanList)
+        {
+            return TimeConstraint.check(timespanList, getStartTime());
+        }
+
+        public long getSourceId() { return block.keys[block.locate(position)]; }
+
+        private double endOrNone()
+        {
+            double end = block.ends[block.locate(position)];
+            return Double.isNaN(end) ? -1.0 : end;
+        }
+
+        private void update(double start, double end)
+        {
+            set(position, getEventType(), start, end, getSourceId());
+        }
+
+        public int compareTo(java.lang.Object that)
+        {
+            if (!(that instanceof IEvent))
+                throw new java.lang.ClassCastException("events are not comparable");
+            IEvent thatEvent = (IEvent)that;
+            if (this.getStartTime() < thatEvent.getStartTime()) return -1;
+            if (this.getStartTime() > thatEvent.getStartTime()) return 1;
+            if (this.getEndTime() < thatEvent.getEndTime()) return -1;
+            if (this.getEndTime() > thatEvent.getEndTime()) return 1;
+            return 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            int ix = block.locate(position);
+            if (Double.isNaN(block.ends[ix])) return "[" + block.types[ix] + "," + block.starts[ix] + "]";
+            return "[" + block.types[ix] + "," + block.starts[ix] + "," + block.ends[ix] + "]";
+        }
+    }
+
+    /**
+     * Report the size of the encoding and the speed of a traversal.
+     * usage: CompressedEventStream [events [types [granularity]]]
+     */
+    public static void main(String[] args)
+    {
+        int events = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+        int types = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        double granularity = (args.length > 2) ? Double.parseDouble(args[2]) : 0.001;
+
+        java.util.Random random = new java.util.Random(1);
+        ColumnarEventStream columns = new ColumnarEventStream(events);
+        for (int tx = 0; tx < types; tx++) columns.getEventFactor().put("E" + tx);
+        long tick = 0;
+        for (int ix = 0; ix < events; ix++) {
+            tick += random.nextInt(20);
+            columns.append(random.nextInt(types), tick / (1.0 / granularity), -1.0, ix);
+        }
+        long t0 = System.nanoTime();
+        CompressedEventStream compressed = new CompressedEventStream(columns, granularity);
+        long t1 = System.nanoTime();
+        System.out.println(events + " events: " + compressed.getEncodedSize() + " bytes compressed"
+                + " against " + (20L * events) + " in columns"
+                + ", encoded in " + (t1 - t0) / 1000000 + " ms");
+        for (int rx = 0; rx < 3; rx++) {
+            double sum = 0.0;
+            long t2 = System.nanoTime();
+            for (IEvent event : compressed.flyweightIterable(null)) sum += event.getStartTime();
+            long t3 = System.nanoTime();
+            for (IEvent event : columns.iterable(null)) sum -= event.getStartTime();
+            long t4 = System.nanoTime();
+            System.out.println("compressed: " + (long)(events / ((t3 - t2) / 1e9)) + " events/sec"
+                    + ", columns: " + (long)(events / ((t4 - t3) / 1e9)) + " events/sec"
+                    + ", difference " + sum);
+        }
+    }
+}
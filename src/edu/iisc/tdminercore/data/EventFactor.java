@@ -225,6 +225,20 @@ public class EventFactor
         current.votes ++;
         count ++;
     }
+    public int getVotesById(int id)
+    {
+        return id2type.get(id).votes;
+    }
+    /**
+     * Set the number of occurrences of an event type directly,
+     * used when the counts are known without reading the events.
+     */
+    public void setVotesById(int id, int votes)
+    {
+        EventType current = id2type.get(id);
+        count += votes - current.votes;
+        current.votes = votes;
+    }
     /** 
      * Add a new event type to the set.
      * If the name is already present then increment its votes.
@@ -0,0 +1,181 @@
+/*
+ * EventMarkers.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Records which events of a stream were visited by an episode instance.
+ * The events are addressed by their position in the stream.
+ * A bit set records the visited events and, once an episode is named,
+ * an int array records the index of the last episode to visit each event
+ * (NONE if unknown).
+ * The stream moves the markers along with the events when it reorders
+ * or removes them.
+ */
+public class EventMarkers
+{
+    public static final int NONE = -1;
+
+    private BitSet visited = new BitSet();
+    private int[] episodes = null;
+
+    public EventMarkers()
+    {
+    }
+
+    /**
+     * @return an independent copy of the markers.
+     */
+    public EventMarkers copy()
+    {
+        EventMarkers result = new EventMarkers();
+        result.visited = (BitSet)this.visited.clone();
+        if (this.episodes != null) result.episodes = this.episodes.clone();
+        return result;
+    }
+
+    /**
+     * Mark the event at the position as visited.
+     * @param episodeIndex the episode visiting the event, NONE if not known
+     */
+    public void mark(int position, int episodeIndex)
+    {
+        visited.set(position);
+        if (episodeIndex == NONE && episodes == null) return;
+        if (episodes == null) {
+            episodes = new int[Math.max(position + 1, 64)];
+            Arrays.fill(episodes, NONE);
+        } else if (position >= episodes.length) {
+            int length = episodes.length;
+            episodes = Arrays.copyOf(episodes, Math.max(position + 1, length * 2));
+            Arrays.fill(episodes, length, episodes.length, NONE);
+        }
+        episodes[position] = episodeIndex;
+    }
+
+    public boolean isMarked(int position)
+    {
+        return visited.get(position);
+    }
+
+    /**
+     * @return the last episode to visit the event, NONE if not known.
+     */
+    public int getEpisode(int position)
+    {
+        if (!visited.get(position)) return NONE;
+        if (episodes == null || position >= episodes.length) return NONE;
+        return episodes[position];
+    }
+
+    /**
+     * @return the number of events marked.
+     */
+    public int count()
+    {
+        return visited.cardinality();
+    }
+
+    /**
+     * @return the number of events marked in the positions [from, to).
+     */
+    public int count(int from, int to)
+    {
+        if (to <= from) return 0;
+        return visited.get(from, to).cardinality();
+    }
+
+    public void clear()
+    {
+        visited.clear();
+        episodes = null;
+    }
+
+    public void clear(int position)
+    {
+        visited.clear(position);
+    }
+
+    /**
+     * Clear the positions [from, to).
+     */
+    public void clear(int from, int to)
+    {
+        if (to > from) visited.clear(from, to);
+    }
+
+    /**
+     * The marked positions, for walking with nextSetBit.
+     * The bit set must not be changed.
+     */
+    public BitSet getVisited()
+    {
+        return visited;
+    }
+
+    /**
+     * The event at the position was removed, the later events move down one.
+     */
+    public void remove(int position)
+    {
+        int[] positions = { position };
+        removeAll(positions, 1);
+    }
+
+    /**
+     * The events at the (ascending) positions were removed,
+     * the remaining events close up.
+     */
+    public void removeAll(int[] positions, int count)
+    {
+        if (count < 1) return;
+        BitSet result = visited.get(0, positions[0]);
+        int px = 0;
+        int removed = 0;
+        for(int ix = visited.nextSetBit(positions[0]); ix >= 0; ix = visited.nextSetBit(ix + 1)) {
+            while (px < count && positions[px] < ix) { px++; removed++; }
+            if (px < count && positions[px] == ix) continue;
+            result.set(ix - removed);
+        }
+        if (episodes != null && positions[0] < episodes.length) {
+            int target = positions[0];
+            px = 0;
+            for(int ix = positions[0]; ix < episodes.length; ix++) {
+                if (px < count && positions[px] == ix) {
+                    px++;
+                    continue;
+                }
+                episodes[target++] = episodes[ix];
+            }
+            Arrays.fill(episodes, target, episodes.length, NONE);
+        }
+        this.visited = result;
+    }
+
+    /**
+     * The events were reordered, position 'ix' received the event
+     * previously at position 'order[ix]'.
+     */
+    public void permute(int[] order, int size)
+    {
+        if (visited.isEmpty()) return;
+        BitSet result = new BitSet(size);
+        for(int ix = 0; ix < size; ix++) {
+            if (visited.get(order[ix])) result.set(ix);
+        }
+        if (episodes != null) {
+            int[] reordered = new int[Math.max(size, episodes.length)];
+            Arrays.fill(reordered, NONE);
+            for(int ix = 0; ix < size; ix++) {
+                if (order[ix] < episodes.length) reordered[ix] = episodes[order[ix]];
+            }
+            this.episodes = reordered;
+        }
+        this.visited = result;
+    }
+}
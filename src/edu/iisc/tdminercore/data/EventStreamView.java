@@ -0,0 +1,367 @@
+/*
+ * EventStreamView.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.util.EventSorter;
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A subset of an event stream which copies nothing.
+ * The view holds the positions of its events in the parent stream,
+ * either as an int array or as a bit set over the parent's positions,
+ * and reads the events from the parent as they are needed.
+ * The event factor is shared with the parent.
+ *
+ * The view is read only and is only valid as long as the parent
+ * is not changed.
+ *
+ * @see AbstractEventStream#burst(double, double)
+ * @see AbstractEventStream#subset(int[])
+ * @see ColumnarEventStream#burst(double, double)
+ * @see ColumnarEventStream#subset(int[])
+ */
+public class EventStreamView implements IEventDataStream
+{
+    /** every SAMPLE-th member position of a bit set is recorded */
+    static final int SAMPLE = 64;
+
+    private final IEventDataStream parent;
+    private int[] positions;
+    private final BitSet members;
+    private int[] samples;
+    private final int size;
+
+    private EventTypeIndex typeIndex = null;
+    private StreamStatistics statistics = null;
+    private TimeConstraint<CONSTRAINT_MODE> timeConstraints;
+
+    /**
+     * A view of the events at the given positions of the parent.
+     * The positions are used as given, not copied.
+     */
+    public EventStreamView(IEventDataStream parent, int[] positions, int count)
+    {
+        this.parent = parent;
+        this.positions = positions;
+        this.members = null;
+        this.size = count;
+        this.timeConstraints = parent.getConstraints();
+    }
+
+    /**
+     * A view of the events whose positions in the parent are set.
+     * The bit set is used as given, not copied.
+     */
+    public EventStreamView(IEventDataStream parent, BitSet members)
+    {
+        this.parent = parent;
+        this.positions = null;
+        this.members = members;
+        this.size = members.cardinality();
+        this.samples = new int[(size + SAMPLE - 1) / SAMPLE];
+        int rank = 0;
+        for(int pos = members.nextSetBit(0); pos >= 0; pos = members.nextSetBit(pos + 1)) {
+            if (rank % SAMPLE == 0) samples[rank / SAMPLE] = pos;
+            rank++;
+        }
+        this.timeConstraints = parent.getConstraints();
+    }
+
+    private EventStreamView(EventStreamView that)
+    {
+        this.parent = that.parent;
+        this.positions = that.positions;
+        this.members = that.members;
+        this.samples = that.samples;
+        this.size = that.size;
+        this.typeIndex = that.typeIndex;
+        this.statistics = that.statistics;
+        this.timeConstraints = that.timeConstraints;
+    }
+
+    public IEventDataStream getParent() { return parent; }
+
+    /**
+     * @return the position in the parent of the view's ix-th event.
+     */
+    public int positionAt(int ix)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        if (positions != null) return positions[ix];
+        int pos = samples[ix / SAMPLE];
+        for(int skip = ix % SAMPLE; skip > 0; skip--) {
+            pos = members.nextSetBit(pos + 1);
+        }
+        return pos;
+    }
+
+    public int getSize() { return size; }
+    public int getEventTypeCount() { return parent.getEventTypeCount(); }
+    public EventFactor getEventFactor() { return parent.getEventFactor(); }
+
+    public EpisodeSet getFirstOrderEpisodeSet()
+    {
+        EventFactor eventTypes = parent.getEventFactor();
+        EpisodeSet oneNodeEpisodes = new EpisodeSet();
+        oneNodeEpisodes.addEpisodeList(eventTypes.getEpisodeList());
+        oneNodeEpisodes.setEventFactor(eventTypes);
+        return oneNodeEpisodes;
+    }
+
+    public double getSequenceStart()
+    {
+        if (size > 0) return get(0).getStartTime();
+        return -1;
+    }
+
+    public double getSequenceEnd()
+    {
+        if (size > 0) return get(size - 1).getStartTime();
+        return -1;
+    }
+
+    public IEvent get(int ix) { return parent.get(positionAt(ix)); }
+    public IEvent get(Integer ix) { return get(ix.intValue()); }
+
+    public void set(Integer ix, IEvent event)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+    public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+
+    @Override
+    public Object clone()
+    {
+        return new EventStreamView(this);
+    }
+
+    public void jitter(double wsize)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+
+    /**
+     * Only the view's positions are reordered, the parent is untouched.
+     * A view of a sorted parent is already in order.
+     */
+    public void sort()
+    {
+        double[] starts = new double[size];
+        double[] ends = null;
+        int ix = 0;
+        for(IEvent event : new LocalIterable(null, null)) {
+            starts[ix] = event.getStartTime();
+            double end = event.getEndTime();
+            if (ends == null && end != starts[ix]) {
+                ends = new double[size];
+                Arrays.fill(ends, 0, ix, Double.NaN);
+            }
+            if (ends != null) ends[ix] = end;
+            ix++;
+        }
+        if (EventSorter.isSorted(starts, ends, size)) return;
+
+        int[] current = positions;
+        if (current == null) {
+            current = new int[size];
+            ix = 0;
+            for(int pos = members.nextSetBit(0); pos >= 0; pos = members.nextSetBit(pos + 1)) {
+                current[ix++] = pos;
+            }
+        }
+        int[] order = EventSorter.order(starts, ends, size);
+        int[] sorted = new int[size];
+        for(ix = 0; ix < size; ix++) sorted[ix] = current[order[ix]];
+        this.positions = sorted;
+        this.samples = null;
+        this.typeIndex = null;
+        this.statistics = null;
+    }
+
+    public void add(String event, Double start)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+    public void add(String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+    public void add(String event, Double start, Integer key)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+    public void add(String event, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+    public boolean add(List<Interval> constraint, String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+
+    public TimeConstraint<CONSTRAINT_MODE> getConstraints()
+    {
+        return this.timeConstraints;
+    }
+    public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        this.timeConstraints = constraints;
+    }
+
+    public EventTypeIndex getTypeIndex()
+    {
+        if (this.typeIndex == null) this.typeIndex = new EventTypeIndex(this);
+        return this.typeIndex;
+    }
+
+    public StreamStatistics getStatistics()
+    {
+        if (this.statistics == null) this.statistics = new StreamStatistics(this);
+        return this.statistics;
+    }
+
+    public void integrate(String name, List<IEvent> eventset)
+    {
+        throw new UnsupportedOperationException("event stream views are read only");
+    }
+
+    /**
+     * The markers are those of the parent, the events are marked there.
+     */
+    public void markEvents(List<IEvent> events, int episodeIndex)
+    {
+        parent.markEvents(events, episodeIndex);
+    }
+
+    public EventMarkers getMarkers()
+    {
+        return parent.getMarkers();
+    }
+
+    /**
+     * Only the markers on the view's events are removed.
+     */
+    public void removeMarkers()
+    {
+        EventMarkers markers = parent.getMarkers();
+        if (positions != null) {
+            for(int ix = 0; ix < size; ix++) markers.clear(positions[ix]);
+            return;
+        }
+        for(int pos = members.nextSetBit(0); pos >= 0; pos = members.nextSetBit(pos + 1)) {
+            markers.clear(pos);
+        }
+    }
+
+    public double getMarkerRatio()
+    {
+        EventMarkers markers = parent.getMarkers();
+        int episodicEventCount = 0;
+        if (positions != null) {
+            for(int ix = 0; ix < size; ix++) {
+                if (markers.isMarked(positions[ix])) episodicEventCount++;
+            }
+        } else {
+            BitSet marked = (BitSet)members.clone();
+            marked.and(markers.getVisited());
+            episodicEventCount = marked.cardinality();
+        }
+        return (double)episodicEventCount / (double)size;
+    }
+
+    public IEventIterable iterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        return new LocalIterable(mode, observer);
+    }
+
+    /**
+     * Walks the view's positions in order,
+     * a bit set is walked directly rather than position by position.
+     */
+    public class LocalIterable implements IEventIterable
+    {
+        private final IObserver observer;
+        private List<Interval> eventTimeConstraintList = null;
+        private int rank = 0;
+        private int position = -1;
+        private IEvent next = null;
+
+        private int itemsProcessed = 0;
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        public LocalIterable(CONSTRAINT_MODE mode, IObserver observer)
+        {
+            this.observer = observer;
+            if (mode == null || timeConstraints == null) return;
+            List<Interval> constraints = timeConstraints.getConstraints(mode);
+            if (constraints.size() > 0) this.eventTimeConstraintList = constraints;
+        }
+
+        public Iterator<IEvent> iterator()
+        {
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) return false;
+                    if (next != null) return true;
+                    while (rank < size) {
+                        if (positions != null) {
+                            position = positions[rank];
+                        } else {
+                            position = members.nextSetBit(position + 1);
+                        }
+                        rank++;
+                        IEvent event = parent.get(position);
+                        if (eventTimeConstraintList != null
+                                && !TimeConstraint.check(eventTimeConstraintList,
+                                        event.getStartTime())) continue;
+                        next = event;
+                        return true;
+                    }
+                    return false;
+                }
+                public IEvent next() {
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    if (!hasNext()) return null;
+                    IEvent result = next;
+                    next = null;
+                    return result;
+                }
+                public void remove() {
+                    LocalIterable.this.remove();
+                }
+            };
+        }
+        public void remove()
+        {
+            throw new UnsupportedOperationException("event stream views are read only");
+        }
+        public int percentComplete()
+        {
+            return (size < 1) ? 100 : (int)(itemsProcessed * 100.0 / size);
+        }
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * EventTypeIndex.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.util.EventSorter;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An inverted index over an event stream.
+ * For each event type it records, in time order, the start times of the
+ * occurrences of that type and their positions in the stream.
+ * The index is built in two passes over the stream and is laid out as
+ * three flat arrays; the occurrences of type 'E' occupy the slots
+ * [offsets[E], offsets[E+1]) of the times and positions arrays.
+ *
+ * The stream need not be sorted, the occurrences of a type that are out of
+ * time order are sorted within their own slots, ties keeping the stream order.
+ * The lookups are binary searches over the per type time arrays.
+ * The occurrences of a type are addressed by their rank 'k',
+ * 0 <= k < count(E).
+ *
+ * @see IEventDataStream#getTypeIndex()
+ */
+public class EventTypeIndex
+{
+    private final int[] offsets;
+    private final double[] times;
+    private final int[] positions;
+    private final int streamSize;
+
+    /**
+     * Build the index for the given stream.
+     */
+    public EventTypeIndex(IEventDataStream sequence)
+    {
+        int size = sequence.getSize();
+        this.streamSize = size;
+        ColumnarEventStream columns = (sequence instanceof ColumnarEventStream)
+                ? (ColumnarEventStream)sequence : null;
+
+        // first pass, count the occurrences of each type
+        int[] counts = new int[Math.max(sequence.getEventTypeCount(), 1)];
+        for(int ix = 0; ix < size; ix++) {
+            int type = (columns != null) ? columns.typeAt(ix) : sequence.get(ix).getEventType();
+            if (type >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(type + 1, counts.length * 2));
+            }
+            counts[type]++;
+        }
+        int typeCount = counts.length;
+        this.offsets = new int[typeCount + 1];
+        for(int tx = 0; tx < typeCount; tx++) {
+            this.offsets[tx + 1] = this.offsets[tx] + counts[tx];
+        }
+
+        // second pass, place each occurrence in its type's slots
+        this.times = new double[size];
+        this.positions = new int[size];
+        int[] fill = counts;
+        System.arraycopy(this.offsets, 0, fill, 0, typeCount);
+        // the length of the run in time order which begins each type's slots
+        int[] ordered = new int[typeCount];
+        Arrays.fill(ordered, -1);
+        for(int ix = 0; ix < size; ix++) {
+            int type;
+            double start;
+            if (columns != null) {
+                type = columns.typeAt(ix);
+                start = columns.startAt(ix);
+            } else {
+                IEvent event = sequence.get(ix);
+                type = event.getEventType();
+                start = event.getStartTime();
+            }
+            int slot = fill[type]++;
+            this.times[slot] = start;
+            this.positions[slot] = ix;
+            if (ordered[type] < 0 && slot > offsets[type] && start < times[slot - 1]) {
+                ordered[type] = slot - offsets[type];
+            }
+        }
+        for(int tx = 0; tx < typeCount; tx++) {
+            if (ordered[tx] >= 0) sortSlots(tx, ordered[tx]);
+        }
+    }
+
+    /**
+     * Put the slots of the type in time order.
+     * @param sortedTo the length of the run already in order
+     */
+    private void sortSlots(int type, int sortedTo)
+    {
+        int from = offsets[type];
+        int count = count(type);
+        double[] slotTimes = Arrays.copyOfRange(times, from, from + count);
+        int[] slotPositions = Arrays.copyOfRange(positions, from, from + count);
+        int[] order = EventSorter.order(slotTimes, null, sortedTo, count);
+        for(int k = 0; k < count; k++) {
+            times[from + k] = slotTimes[order[k]];
+            positions[from + k] = slotPositions[order[k]];
+        }
+    }
+
+    /**
+     * @return the size of the stream when the index was built.
+     */
+    public int getStreamSize() { return streamSize; }
+
+    /**
+     * @return the number of event types covered by the index.
+     */
+    public int getTypeCount() { return offsets.length - 1; }
+
+    /**
+     * @return the number of occurrences of the event type.
+     */
+    public int count(int type)
+    {
+        if (type < 0 || type >= getTypeCount()) return 0;
+        return offsets[type + 1] - offsets[type];
+    }
+
+    /**
+     * @return the start time of the k-th occurrence of the event type.
+     */
+    public double timeAt(int type, int k)
+    {
+        return times[offsets[type] + k];
+    }
+
+    /**
+     * @return the stream position of the k-th occurrence of the event type.
+     */
+    public int positionAt(int type, int k)
+    {
+        return positions[offsets[type] + k];
+    }
+
+    /**
+     * @return the rank of the first occurrence of the type at or after
+     *   the given time, count(type) if there is none.
+     */
+    public int lowerBound(int type, double time)
+    {
+        if (count(type) < 1) return 0;
+        int low = offsets[type];
+        int high = offsets[type + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) low = mid + 1;
+            else high = mid;
+        }
+        return low - offsets[type];
+    }
+
+    /**
+     * @return the rank of the first occurrence of the type strictly after
+     *   the given time, count(type) if there is none.
+     */
+    public int upperBound(int type, double time)
+    {
+        if (count(type) < 1) return 0;
+        int low = offsets[type];
+        int high = offsets[type + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= time) low = mid + 1;
+            else high = mid;
+        }
+        return low - offsets[type];
+    }
+
+    /**
+     * The occurrences of the type in the half open interval [tLow, tHigh).
+     * @return the ranks {first, last + 1} of those occurrences.
+     */
+    public int[] range(int type, double tLow, double tHigh)
+    {
+        int[] result = { lowerBound(type, tLow), lowerBound(type, tHigh) };
+        if (result[1] < result[0]) result[1] = result[0];
+        return result;
+    }
+
+    /**
+     * @return the number of occurrences of the type in [tLow, tHigh).
+     */
+    public int countInRange(int type, double tLow, double tHigh)
+    {
+        int count = lowerBound(type, tHigh) - lowerBound(type, tLow);
+        return (count < 0) ? 0 : count;
+    }
+
+    /**
+     * @return the stream position of the first occurrence of the type at
+     *   or after the given time, -1 if there is none.
+     */
+    public int nextOccurrence(int type, double time)
+    {
+        int k = lowerBound(type, time);
+        if (k >= count(type)) return -1;
+        return positionAt(type, k);
+    }
+
+    /**
+     * @return the start time of the first occurrence of the type at
+     *   or after the given time, NaN if there is none.
+     */
+    public double nextTime(int type, double time)
+    {
+        int k = lowerBound(type, time);
+        if (k >= count(type)) return Double.NaN;
+        return timeAt(type, k);
+    }
+
+    /**
+     * @return the number of occurrences, of any type, which start within
+     *   one of the intervals, see TimeConstraint.check();
+     *   the size of the stream when there are no intervals.
+     */
+    public int count(List<Interval> intervals)
+    {
+        if (intervals == null || intervals.size() < 1) return streamSize;
+        List<Interval> merged = TimeConstraint.merge(intervals);
+        int total = 0;
+        for(int tx = 0; tx < getTypeCount(); tx++) {
+            for(Interval interval : merged) {
+                total += Math.max(0, upperBound(tx, interval.getTHigh()) 
+                        - lowerBound(tx, interval.getTLow()));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The occurrences of the given (distinct) types which start within one of the
+     * intervals, see TimeConstraint.check(), or all of them when there are
+     * no intervals.
+     * @return their stream positions in stream order.
+     */
+    public int[] positionsOf(int[] types, List<Interval> intervals)
+    {
+        List<Interval> merged = (intervals == null || intervals.size() < 1) 
+                ? null : TimeConstraint.merge(intervals);
+        int total = 0;
+        for(int type : types) total += count(type);
+        int[] result = new int[total];
+        int fill = 0;
+        for(int type : types) {
+            if (count(type) < 1) continue;
+            if (merged == null) {
+                System.arraycopy(positions, offsets[type], result, fill, count(type));
+                fill += count(type);
+                continue;
+            }
+            for(Interval interval : merged) {
+                int high = upperBound(type, interval.getTHigh());
+                for(int k = lowerBound(type, interval.getTLow()); k < high; k++) {
+                    result[fill++] = positionAt(type, k);
+                }
+            }
+        }
+        result = Arrays.copyOf(result, fill);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return a copy of the start times of every occurrence of the type.
+     */
+    public double[] getTimes(int type)
+    {
+        double[] result = new double[count(type)];
+        if (result.length > 0) {
+            System.arraycopy(this.times, offsets[type], result, 0, result.length);
+        }
+        return result;
+    }
+}
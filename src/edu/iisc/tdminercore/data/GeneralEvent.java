@@ -29,11 +29,8 @@ public class GeneralEvent implements IEvent
     private double startTime;
     private double endTime;
     private long sourceid;
-    private Object marker;
     
     public long getSourceId() { return sourceid; }
-    public Object getMarker() { return marker; }
-    public void setMarker( Object marker ) { this.marker = marker; }
     
     /** 
      * Creates a new instance of a General event.
@@ -90,7 +87,4 @@ public class GeneralEvent implements IEvent
         if (this.endTime > thatEvent.endTime) return 1;
         return 0;
     }
-    
-    public boolean hasActiveMarker() { return (this.marker == null ? false : true); }
-    public void removeMarker() { this.marker = null; }
 }
@@ -39,8 +39,4 @@ public interface IEvent extends java.lang.Comparable
      * provides an address back into the data source.
      */
     public long getSourceId();
-    public void setMarker(Object obj);
-    public Object getMarker();
-    public boolean hasActiveMarker();
-    public void removeMarker();
 }
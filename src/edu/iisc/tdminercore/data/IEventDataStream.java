@@ -20,7 +20,7 @@ import java.util.List;
  * @author Deb
  * @author phreed@gmail.com
  */
-public interface IEventDataStream
+public interface IEventDataStream extends IEventSink
 {
     public int getSize();
     public int getEventTypeCount();
@@ -109,6 +109,19 @@ public interface IEventDataStream
     }
     public IEventIterable iterable(IObserver observer);
     
+    /**
+     * The per event type occurrence index.
+     * It is built on first use and discarded whenever the stream changes,
+     * the occurrences of each type are in time order even when the stream is not.
+     */
+    public EventTypeIndex getTypeIndex();
+    
+    /**
+     * The per event type counts, rates, spans and interval summaries.
+     * They are gathered on first use and discarded whenever the stream changes.
+     */
+    public StreamStatistics getStatistics();
+    
     /**
      * Integrate the episodes provided into single events.
      * Replacing the constituent enents with a single new event.
@@ -117,9 +130,12 @@ public interface IEventDataStream
     public void integrate(String name, List<IEvent> eventset);
     
     /**
-     * The marker is a generally unspecified object that records that
-     * an event was visited by an episode during a mining phase.
+     * The markers record that an event was visited by an episode 
+     * during a mining phase.
+     * They are kept by the stream, by event position, not on the events.
      */
+    public void markEvents(List<IEvent> events, int episodeIndex);
+    public EventMarkers getMarkers();
     public void removeMarkers();
     public double getMarkerRatio();
     
@@ -0,0 +1,19 @@
+/*
+ * IEventSink.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+/**
+ * Somewhere events may be added, such as the output of a simulator.
+ * Nothing added need be readable again.
+ *
+ * @see IEventDataStream
+ * @see edu.iisc.tdminercore.util.BinaryEventStreamSink
+ */
+public interface IEventSink
+{
+    public void add(String event, Double start);
+    public void add(String event, Double start, Double end);
+}
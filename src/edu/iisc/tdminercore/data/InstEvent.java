@@ -22,11 +22,8 @@ public class InstEvent implements IEvent
     private int eventType;
     private double startTime;
     private long sourceid;
-    private Object marker;
     
     public long getSourceId() { return sourceid; }
-    public Object getMarker() { return marker; }
-    public void setMarker( Object marker ) { this.marker = marker; }
     
     /** 
      * Creates a new instance of an instantaneous event.
@@ -80,7 +77,4 @@ public class InstEvent implements IEvent
         }
         return false;
     }
-
-    public boolean hasActiveMarker() { return (this.marker == null ? false : true); }
-    public void removeMarker() { this.marker = null; }
 }
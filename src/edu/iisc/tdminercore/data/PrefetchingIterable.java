@@ -0,0 +1,377 @@
+/*
+ * PrefetchingIterable.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import edu.iisc.tdminercore.data.IEventDataStream.IEventIterable;
+import edu.iisc.tdminercore.util.IObserver;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads ahead of the counter.
+ * A background thread traverses the source iterable, decoding its events
+ * into batches which it passes to the counter through a ring of recycled
+ * batches, so reading the stream overlaps with counting the batch before.
+ * The depth is the number of decoded batches which may wait in the ring;
+ * when the ring is full the reading thread waits for the counter,
+ * when it is empty the counter waits for the reading thread.
+ * Both waits are recorded in the statistics, which tell whether
+ * the traversal was bound by reading or by counting.
+ *
+ * The events handed out must not be views which the source reuses,
+ * and they cannot be removed as the source has already moved past them.
+ * A failure of the reading thread is raised by the counter's next call.
+ *
+ * The reading thread waits in short timed steps and holds the counter's
+ * iterator only weakly, so it ends once the traversal is closed, and also
+ * once the iterator is dropped without being closed.
+ * The statistics are added after the reading thread has been joined.
+ */
+public class PrefetchingIterable implements IEventIterable
+{
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_BATCH = 8192;
+
+    /**
+     * The waits of one or more traversals.
+     * A stream shares one instance among its traversals.
+     */
+    public static class Statistics
+    {
+        private long traversals = 0;
+        private long events = 0;
+        private long batches = 0;
+        private long readerStalls = 0;
+        private long readerStallNanos = 0;
+        private long counterStalls = 0;
+        private long counterStallNanos = 0;
+
+        synchronized void add(PrefetchingIterable that)
+        {
+            traversals++;
+            events += that.itemsProcessed;
+            batches += that.reader.batches;
+            readerStalls += that.reader.readerStalls;
+            readerStallNanos += that.reader.readerStallNanos;
+            counterStalls += that.counterStalls;
+            counterStallNanos += that.counterStallNanos;
+        }
+
+        public synchronized void reset()
+        {
+            traversals = events = batches = 0;
+            readerStalls = readerStallNanos = 0;
+            counterStalls = counterStallNanos = 0;
+        }
+
+        public synchronized long getTraversals() { return traversals; }
+        public synchronized long getEvents() { return events; }
+        public synchronized long getBatches() { return batches; }
+        /** the number of times the ring was full, the reader waiting for the counter */
+        public synchronized long getReaderStalls() { return readerStalls; }
+        public synchronized double getReaderStallSeconds() { return readerStallNanos / 1e9; }
+        /** the number of times the ring was empty, the counter waiting for the reader */
+        public synchronized long getCounterStalls() { return counterStalls; }
+        public synchronized double getCounterStallSeconds() { return counterStallNanos / 1e9; }
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("%d traversals, %d events in %d batches;"
+                    + " ring full %d times (%.3f s), ring empty %d times (%.3f s)",
+                    traversals, events, batches,
+                    readerStalls, readerStallNanos / 1e9,
+                    counterStalls, counterStallNanos / 1e9);
+        }
+    }
+
+    private static class Batch
+    {
+        final IEvent[] events;
+        int length = 0;
+        Batch(int size) { this.events = new IEvent[size]; }
+    }
+    // marks the end of the traversal
+    private static final Batch END = new Batch(0);
+
+    /** the longest the reading thread waits before it checks whether to stop */
+    static final long WAIT_MILLIS = 100;
+
+    private final IEventIterable source;
+    private final IObserver observer;
+    private final Statistics statistics;
+    private final BlockingQueue<Batch> full;
+    private final BlockingQueue<Batch> free;
+    private Reader reader = null;
+    private boolean closed = false;
+
+    private long counterStalls = 0;
+    private long counterStallNanos = 0;
+    private int itemsProcessed = 0;
+    private Batch current = null;
+    private int position = 0;
+    private boolean finished = false;
+
+    public PrefetchingIterable(IEventIterable source, IObserver observer)
+    {
+        this(source, observer, DEFAULT_DEPTH, DEFAULT_BATCH, null);
+    }
+
+    /**
+     * @param source the traversal to read ahead, it should not report to the observer
+     *   as it is run on the reading thread
+     * @param observer is updated and checked for interruption as the events are counted
+     * @param depth the number of decoded batches which may wait for the counter
+     * @param batchSize the number of events in a batch
+     * @param statistics the waits are added to these once the traversal ends, may be null
+     */
+    public PrefetchingIterable(IEventIterable source, IObserver observer,
+            int depth, int batchSize, Statistics statistics)
+    {
+        if (depth < 1) throw new IllegalArgumentException("prefetch depth must be positive: " + depth);
+        if (batchSize < 1) throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        this.source = source;
+        this.observer = observer;
+        this.statistics = statistics;
+        this.full = new ArrayBlockingQueue<Batch>(depth + 1);
+        this.free = new ArrayBlockingQueue<Batch>(depth + 1);
+        for (int ix = 0; ix <= depth; ix++) free.add(new Batch(batchSize));
+    }
+
+    /**
+     * The reading thread.
+     * It refers to the iterator it reads for only weakly, and to nothing
+     * else of the traversal, so the iterator may be collected when dropped.
+     */
+    private static class Reader extends Thread
+    {
+        private final IEventIterable source;
+        private final BlockingQueue<Batch> full;
+        private final BlockingQueue<Batch> free;
+        private final WeakReference<Object> owner;
+        volatile boolean closed = false;
+        volatile RuntimeException failure = null;
+
+        // written by this thread, read once it has been joined
+        long batches = 0;
+        long readerStalls = 0;
+        long readerStallNanos = 0;
+
+        Reader(IEventIterable source, BlockingQueue<Batch> full,
+                BlockingQueue<Batch> free, Object owner)
+        {
+            super("event prefetch");
+            this.source = source;
+            this.full = full;
+            this.free = free;
+            this.owner = new WeakReference<Object>(owner);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                Batch batch = takeFree();
+                if (batch == null) return;
+                batch.length = 0;
+                for (IEvent event : source) {
+                    if (closed) return;
+                    batch.events[batch.length++] = event;
+                    if (batch.length < batch.events.length) continue;
+                    if (!put(batch)) return;
+                    batches++;
+                    batch = takeFree();
+                    if (batch == null) return;
+                    batch.length = 0;
+                }
+                if (batch.length > 0) {
+                    if (!put(batch)) return;
+                    batches++;
+                }
+            } catch (RuntimeException ex) {
+                this.failure = ex;
+            }
+            put(END);
+        }
+
+        /**
+         * @return true if the traversal was closed or its iterator dropped.
+         */
+        private boolean abandoned()
+        {
+            return closed || owner.get() == null;
+        }
+
+        /**
+         * Take a free batch, timing the wait if the ring is full.
+         * @return null if the traversal was abandoned meanwhile.
+         */
+        private Batch takeFree()
+        {
+            Batch batch = free.poll();
+            if (batch != null) return batch;
+            long start = System.nanoTime();
+            readerStalls++;
+            try {
+                while (batch == null) {
+                    if (abandoned()) return null;
+                    batch = free.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return batch;
+            } catch (InterruptedException ex) {
+                return null;
+            } finally {
+                readerStallNanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * @return false if the traversal was abandoned before the batch was taken.
+         */
+        private boolean put(Batch batch)
+        {
+            try {
+                while (!full.offer(batch, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (abandoned()) return false;
+                }
+                return true;
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return false at the end of the traversal.
+     */
+    private boolean fill()
+    {
+        if (finished) return false;
+        if (current != null && position < current.length) return true;
+        if (current != null) {
+            // release the events for collection before the batch is reused
+            Arrays.fill(current.events, 0, current.length, null);
+            free.offer(current);
+            current = null;
+        }
+        Batch batch = full.poll();
+        if (batch == null) {
+            long start = System.nanoTime();
+            try {
+                batch = full.take();
+            } catch (InterruptedException ex) {
+                close();
+                throw new IllegalStateException("interrupted while reading ahead", ex);
+            }
+            counterStalls++;
+            counterStallNanos += System.nanoTime() - start;
+        }
+        if (batch == END) {
+            finish();
+            if (reader.failure != null) throw reader.failure;
+            return false;
+        }
+        current = batch;
+        position = 0;
+        return true;
+    }
+
+    /**
+     * The reading thread is joined before its counts are added to the statistics.
+     */
+    private void finish()
+    {
+        if (finished) return;
+        finished = true;
+        if (reader != null) {
+            try {
+                reader.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (statistics != null && reader != null) statistics.add(this);
+    }
+
+    /**
+     * Stop reading ahead, the traversal ends.
+     * The reading thread notices within a wait or an event.
+     */
+    public void close()
+    {
+        if (closed) return;
+        closed = true;
+        if (reader != null) reader.closed = true;
+        finish();
+    }
+
+    public Iterator<IEvent> iterator()
+    {
+        if (reader != null) throw new IllegalStateException("the events have already been traversed");
+        Iterator<IEvent> iterator = new Iterator<IEvent>() {
+            public boolean hasNext() {
+                if (observer != null && observer.interrupted()) {
+                    close();
+                    return false;
+                }
+                if (closed) return false;
+                try {
+                    return fill();
+                } catch (RuntimeException ex) {
+                    close();
+                    throw ex;
+                }
+            }
+            public IEvent next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                itemsProcessed++;
+                if (observer != null && itemsProcessed % 50 == 0) {
+                    observer.update(itemsProcessed);
+                }
+                return current.events[position++];
+            }
+            public void remove() {
+                PrefetchingIterable.this.remove();
+            }
+        };
+        reader = new Reader(source, full, free, iterator);
+        reader.start();
+        return iterator;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("prefetched events cannot be removed");
+    }
+
+    public long itemsProcessed() { return itemsProcessed; }
+
+    /**
+     * The source runs ahead, its progress is scaled back to the events counted.
+     */
+    public int percentComplete()
+    {
+        long read = source.itemsProcessed();
+        if (read < 1) return 0;
+        return (int)(source.percentComplete() * Math.min(1.0, (double)itemsProcessed / read));
+    }
+
+    public void setSampleSize( List<IEpisode> episodes )
+    {
+        for(IEpisode ep : episodes) {
+            ep.setSampleSize(0, itemsProcessed);
+        }
+    }
+}
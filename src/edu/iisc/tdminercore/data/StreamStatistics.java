@@ -0,0 +1,299 @@
+/*
+ * StreamStatistics.java
+ *
+ */
+
+package edu.iisc.tdminercore.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Summary statistics of an event stream gathered in a single pass.
+ * For each event type it records the number of occurrences, the first
+ * and last start times and a summary of the intervals between successive
+ * occurrences (count, minimum, maximum, mean and variance).
+ * The same summary is kept over the whole stream.
+ * The counts per segment, for a given segment length, are gathered
+ * on demand and the last segmentation is kept.
+ *
+ * The stream is expected to be sorted (see {@link IEventDataStream#sort()}),
+ * the intervals are taken between successive occurrences in stream order.
+ * The statistics are only valid as long as the stream is not changed,
+ * the stream discards them when its events change.
+ *
+ * @see IEventDataStream#getStatistics()
+ */
+public class StreamStatistics
+{
+    private final IEventDataStream sequence;
+    private final int streamSize;
+    private final double sequenceStart;
+    private final double sequenceEnd;
+
+    private final int[] counts;
+    private final double[] firstTimes;
+    private final double[] lastTimes;
+
+    private final Summary[] intervals;
+    private final Summary interval = new Summary();
+
+    // the counts per segment for the last segment length asked for
+    private double segLen = Double.NaN;
+    private int segments = 0;
+    private int[] segmentCounts = null;
+
+    /**
+     * Gather the statistics of the given stream.
+     */
+    public StreamStatistics(IEventDataStream sequence)
+    {
+        this.sequence = sequence;
+        int typeCount = Math.max(sequence.getEventTypeCount(), 1);
+        int[] counts = new int[typeCount];
+        double[] firstTimes = new double[typeCount];
+        double[] lastTimes = new double[typeCount];
+        Summary[] intervals = new Summary[typeCount];
+        double start = Double.NaN;
+        double end = Double.NaN;
+        double last = Double.NaN;
+        int size = 0;
+
+        ColumnarEventStream columns = (sequence instanceof ColumnarEventStream)
+                ? (ColumnarEventStream)sequence : null;
+        Iterator<IEvent> events = (columns != null)
+                ? null : events(sequence).iterator();
+        int total = (columns != null) ? columns.getSize() : Integer.MAX_VALUE;
+        while (size < total) {
+            int type;
+            double time;
+            if (columns != null) {
+                type = columns.typeAt(size);
+                time = columns.startAt(size);
+            } else {
+                if (!events.hasNext()) break;
+                IEvent event = events.next();
+                type = event.getEventType();
+                time = event.getStartTime();
+            }
+            if (type >= counts.length) {
+                int grown = Math.max(type + 1, counts.length * 2);
+                counts = Arrays.copyOf(counts, grown);
+                firstTimes = Arrays.copyOf(firstTimes, grown);
+                lastTimes = Arrays.copyOf(lastTimes, grown);
+                intervals = Arrays.copyOf(intervals, grown);
+            }
+            if (counts[type]++ == 0) {
+                firstTimes[type] = time;
+                intervals[type] = new Summary();
+            } else {
+                intervals[type].add(time - lastTimes[type]);
+            }
+            lastTimes[type] = time;
+
+            if (size == 0 || time < start) start = time;
+            if (size == 0 || time > end) end = time;
+            if (size > 0) this.interval.add(time - last);
+            last = time;
+            size++;
+        }
+        for(int tx = 0; tx < counts.length; tx++) {
+            if (counts[tx] > 0) continue;
+            firstTimes[tx] = Double.NaN;
+            lastTimes[tx] = Double.NaN;
+            intervals[tx] = new Summary();
+        }
+        this.streamSize = size;
+        this.sequenceStart = (size > 0) ? start : -1;
+        this.sequenceEnd = (size > 0) ? end : -1;
+        this.counts = counts;
+        this.firstTimes = firstTimes;
+        this.lastTimes = lastTimes;
+        this.intervals = intervals;
+    }
+
+    /**
+     * @return the size of the stream when the statistics were gathered.
+     */
+    public int getStreamSize() { return streamSize; }
+
+    /**
+     * @return the number of event types covered.
+     */
+    public int getTypeCount() { return counts.length; }
+
+    /**
+     * @return the earliest start time, -1 if the stream is empty.
+     */
+    public double getSequenceStart() { return sequenceStart; }
+
+    /**
+     * @return the latest start time, -1 if the stream is empty.
+     */
+    public double getSequenceEnd() { return sequenceEnd; }
+
+    /**
+     * @return the time spanned by the stream.
+     */
+    public double getSpan() { return sequenceEnd - sequenceStart; }
+
+    /**
+     * @return the number of occurrences of the event type.
+     */
+    public int count(int type)
+    {
+        if (type < 0 || type >= counts.length) return 0;
+        return counts[type];
+    }
+
+    /**
+     * @return a copy of the number of occurrences of each event type.
+     */
+    public int[] getCounts() { return counts.clone(); }
+
+    /**
+     * @return the start time of the first occurrence of the type, NaN if none.
+     */
+    public double getFirstTime(int type)
+    {
+        if (type < 0 || type >= counts.length) return Double.NaN;
+        return firstTimes[type];
+    }
+
+    /**
+     * @return the start time of the last occurrence of the type, NaN if none.
+     */
+    public double getLastTime(int type)
+    {
+        if (type < 0 || type >= counts.length) return Double.NaN;
+        return lastTimes[type];
+    }
+
+    /**
+     * @return the occurrences of the type per unit time over the stream.
+     */
+    public double rate(int type)
+    {
+        double span = getSpan();
+        return (span > 0.0) ? count(type) / span : 0.0;
+    }
+
+    /**
+     * @return the events per unit time over the stream.
+     */
+    public double rate()
+    {
+        double span = getSpan();
+        return (span > 0.0) ? streamSize / span : 0.0;
+    }
+
+    /**
+     * @return the intervals between successive occurrences of the type.
+     */
+    public Summary getIntervals(int type)
+    {
+        if (type < 0 || type >= intervals.length) return new Summary();
+        return intervals[type];
+    }
+
+    /**
+     * @return the intervals between successive events of any type.
+     */
+    public Summary getIntervals() { return interval; }
+
+    /**
+     * @return the number of segments of the given length covering the stream.
+     */
+    public int segmentCount(double segLen)
+    {
+        return (int)(getSpan() / segLen) + 1;
+    }
+
+    /**
+     * The number of occurrences of the type in a segment.
+     * Segment 'k' holds the times in (start + k*segLen, start + (k+1)*segLen],
+     * the first segment also holds the start.
+     * The counts for a segment length are gathered in one pass the first
+     * time it is asked for and kept until a different length is asked for.
+     */
+    public synchronized int count(int type, double segLen, int segment)
+    {
+        if (type < 0 || type >= counts.length) return 0;
+        if (segLen != this.segLen) segment(segLen);
+        if (segment < 0 || segment >= segments) return 0;
+        return segmentCounts[segment * counts.length + type];
+    }
+
+    private void segment(double segLen)
+    {
+        int typeCount = counts.length;
+        int segments = segmentCount(segLen);
+        int[] result = new int[segments * typeCount];
+        ColumnarEventStream columns = (sequence instanceof ColumnarEventStream)
+                ? (ColumnarEventStream)sequence : null;
+        if (columns != null) {
+            for(int ix = 0; ix < streamSize; ix++) {
+                int seg = segmentOf(columns.startAt(ix), segLen, segments);
+                result[seg * typeCount + columns.typeAt(ix)]++;
+            }
+        } else {
+            for(IEvent event : events(sequence)) {
+                int seg = segmentOf(event.getStartTime(), segLen, segments);
+                result[seg * typeCount + event.getEventType()]++;
+            }
+        }
+        this.segLen = segLen;
+        this.segments = segments;
+        this.segmentCounts = result;
+    }
+
+    /**
+     * The events are looked at once and not kept, so a compressed
+     * stream may hand out a single reused event.
+     */
+    private static Iterable<IEvent> events(IEventDataStream sequence)
+    {
+        if (sequence instanceof CompressedEventStream) {
+            return ((CompressedEventStream)sequence).flyweightIterable(null);
+        }
+        return sequence.iterable(null);
+    }
+
+    private int segmentOf(double time, double segLen, int segments)
+    {
+        int seg = (int)Math.ceil((time - sequenceStart) / segLen) - 1;
+        if (seg < 0) return 0;
+        if (seg >= segments) return segments - 1;
+        return seg;
+    }
+
+    /**
+     * A running summary of a set of intervals,
+     * the variance is accumulated by Welford's method.
+     */
+    public static class Summary
+    {
+        private int count = 0;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+        private double mean = 0.0;
+        private double m2 = 0.0;
+
+        void add(double value)
+        {
+            count++;
+            if (count == 1 || value < min) min = value;
+            if (count == 1 || value > max) max = value;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        public int getCount() { return count; }
+        public double getMin() { return min; }
+        public double getMax() { return max; }
+        public double getMean() { return (count > 0) ? mean : Double.NaN; }
+        public double getVariance() { return (count > 1) ? m2 / (count - 1) : 0.0; }
+        public double getStdDev() { return Math.sqrt(getVariance()); }
+    }
+}
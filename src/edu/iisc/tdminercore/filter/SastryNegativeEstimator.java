@@ -10,7 +10,6 @@ package edu.iisc.tdminercore.filter;
 import edu.iisc.tdminercore.data.IEpisode;
 import edu.iisc.tdminercore.miner.SessionInfo;
 import java.text.NumberFormat;
-import java.util.List;
 
 /**
  *
@@ -41,16 +40,7 @@ public class SastryNegativeEstimator extends ThresholdEstimator
         {
             double L = session.endTime(index) - session.startTime(index);
             int startEvent = gamma.getEvent(0);
-            int count = 0;
-            List<IEpisode> oneNodeEpsList = session.getEpisodes().getEpisodeList(1);
-            for(IEpisode e : oneNodeEpsList)
-            {
-                if (e.getEvent(0) == startEvent)
-                {
-                    count = e.getVotes(index);
-                    break;
-                }
-            }
+            int count = session.getTypeCount(startEvent, index);
 
             double lambda = (double)count/L;  // in spikes / sec
             double pr = probability(session.getEStrong(), lambda);
@@ -241,19 +231,8 @@ public class SastryNegativeEstimator extends ThresholdEstimator
             double L = session.endTime(index) - session.startTime(index);
             int startEvent = gamma.getEvent(0);
             int lastEvent =  gamma.getEvent(n - 1);
-            int firstNodeCount = 0, lastNodeCount = 0;
-            List<IEpisode> oneNodeEpsList = session.getEpisodes().getEpisodeList(1);
-            for(IEpisode e : oneNodeEpsList)
-            {
-                if (e.getEvent(0) == startEvent)
-                {
-                    firstNodeCount = e.getVotes(index);
-                }
-                if (e.getEvent(0) == lastEvent)
-                {
-                    lastNodeCount = e.getVotes(index);
-                }
-            }
+            int firstNodeCount = session.getTypeCount(startEvent, index);
+            int lastNodeCount = session.getTypeCount(lastEvent, index);
             retVal[index] = solve(targetCount, estr, L, firstNodeCount);
 //            System.out.println("estr = " + retVal[index] + " targetCount = " 
 //                    + targetCount + " estr = " + estr + " L = " + L 
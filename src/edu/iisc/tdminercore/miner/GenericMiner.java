@@ -22,7 +22,9 @@ import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.filter.NegativeStrengthThreshold;
 import edu.iisc.tdminercore.filter.NewAdaptiveFrequencyThreshold;
 import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.writer.ILevelWriter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -88,7 +90,7 @@ public class GenericMiner
                     }
                     else
                     {
-                        session.getCounter().countEpisodes(candidates, observer, session);
+                        ShardedCounter.countEpisodes(session.getCounter(), candidates, observer, session);
                     }
                     candidates = EpisodeSet.postProcess(candidates, session);
                 }
@@ -124,7 +126,7 @@ public class GenericMiner
                         int level = 0;
                         observer.setTitle(GenericMiner.this.getTitle(level,candidates));
                         observer.setExtent(sequence.getSize());
-                        session.getCounter().countEpisodes(candidates, observer, session);
+                        ShardedCounter.countEpisodes(session.getCounter(), candidates, observer, session);
                         observer.taskComplete();
                         GenericMiner.this.run = false;
                     }
@@ -216,6 +218,7 @@ public class GenericMiner
         session.setEpisodes(episodes);
         EventFactor eventTypes = sequence.getEventFactor();
         episodes.setEventFactor(eventTypes);
+        startLevels(session, eventTypes);
         
         AbstractEpisodeCounter counter = session.getCounter();
         AbstractCandidateGen candidateGenerator = session.getCandidateGenerator();
@@ -234,7 +237,7 @@ public class GenericMiner
             observer.setTitle(this.getTitle(1,candidates));
             observer.setExtent(sequence.getSize());
             // this count is necessary as duration intervals make the votes meaningless.
-            counter.countEpisodes(candidates, observer, session);
+            ShardedCounter.countEpisodes(counter, candidates, observer, session);
             
             observer.setTitle("Principality check for episodes of size 1");
 	    candidates = counter.postCountProcessing(candidates, observer, session);
@@ -271,10 +274,12 @@ public class GenericMiner
         Episode.sort(candidates, Episode.FREQUENCY_ORDER);
         candidates = EpisodeSet.postProcess(candidates, session);
         episodes.addEpisodeList(candidates);
+        writeLevel(session, session.getCurrentLevel(), candidates);
         
         System.out.println("Candidate size = " + candidates.size());
         if (candidates == null || candidates.size() < 1) {
             System.out.println("Mining complete at level = " + (session.getCurrentLevel()));
+            endLevels(session);
             observer.taskComplete();
             this.run = false;
             return;
@@ -321,7 +326,7 @@ public class GenericMiner
                             partialCount));
                     observer.setExtent(sequence.getSize());
 
-                    counter.countEpisodes(subcandidates, observer, session);
+                    ShardedCounter.countEpisodes(counter, subcandidates, observer, session);
                     if (observer.interrupted()) break PHASE_BLOCK;
                     System.out.println("Counting is done");
 
@@ -355,6 +360,7 @@ public class GenericMiner
             candidates = EpisodeSet.postProcess(candidates, session);
             
             episodes.addEpisodeList(candidates);
+            writeLevel(session, level, candidates);
 //            if (session.isBackPruningEnabled() && level == 3) {
 //                System.out.println("Backpruning (mg=" + String.valueOf(session.getMuchGreater()) + ") ...");
 //                SubEpisodeHeuristic.backPruneEpisodes(episodes, session);
@@ -364,10 +370,55 @@ public class GenericMiner
             if (observer.interrupted()) break PHASE_BLOCK;
         }
         System.out.println("Mining complete at level = " + session.getCurrentLevel());
+        endLevels(session);
         observer.taskComplete();
         this.run = false;
     }
 
+    /**
+     * The session's level writer, if any, is given each level of frequent
+     * episodes as soon as it is found.
+     * A writer which fails is reported and dropped, the mining goes on.
+     */
+    private void startLevels(SessionInfo session, EventFactor eventTypes)
+    {
+        ILevelWriter writer = session.getLevelWriter();
+        if (writer == null) return;
+        try {
+            writer.startLevels(eventTypes);
+        } catch (IOException ex) {
+            levelWriterFailed(session, ex);
+        }
+    }
+
+    private void writeLevel(SessionInfo session, int level, List<IEpisode> candidates)
+    {
+        ILevelWriter writer = session.getLevelWriter();
+        if (writer == null) return;
+        try {
+            writer.writeLevel(level, candidates);
+        } catch (IOException ex) {
+            levelWriterFailed(session, ex);
+        }
+    }
+
+    private void endLevels(SessionInfo session)
+    {
+        ILevelWriter writer = session.getLevelWriter();
+        if (writer == null) return;
+        try {
+            writer.endLevels();
+        } catch (IOException ex) {
+            levelWriterFailed(session, ex);
+        }
+    }
+
+    private void levelWriterFailed(SessionInfo session, IOException ex)
+    {
+        System.err.println("Episode levels not written: " + ex.getMessage());
+        session.setLevelWriter(null);
+    }
+
     private void printEpisodes(List<IEpisode> candidates, EventFactor eventTypes)
     {
         if (DEBUG) System.out.println("GenericMiner: print episodes");
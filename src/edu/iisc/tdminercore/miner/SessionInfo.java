@@ -14,11 +14,14 @@ import edu.iisc.tdminercore.candidate.IProgress;
 import edu.iisc.tdminercore.counter.AbstractEpisodeCounter;
 import edu.iisc.tdminercore.data.EpisodeSet;
 import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.IEpisode;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
 import edu.iisc.tdminercore.data.Interval;
+import edu.iisc.tdminercore.data.StreamStatistics;
 import edu.iisc.tdminercore.filter.ThresholdFilterType;
 import edu.iisc.tdminercore.util.TimeConstraint;
+import edu.iisc.tdminercore.writer.ILevelWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,7 +30,7 @@ import java.util.List;
  * @author hzg3nc
  * @author phreed@gmail.com
  */
-public class SessionInfo
+public class SessionInfo implements Cloneable
 {
 
     private double[] frequencyThreshold;
@@ -45,9 +48,12 @@ public class SessionInfo
     private boolean allowRepeat;
     private boolean durationSingle = true;
     private int chunkLimit = 5000;
+    private int countThreads = 1;
+    private boolean sharedScan = true;
     private IProgress candidateGeneratorProgress = null;
     private EpisodeSet episodes;
     private EpisodeSet reference;
+    private ILevelWriter levelWriter = null;
     private IEventDataStream sequence;
     private TimeConstraint<IEventDataStream.CONSTRAINT_MODE> timeConstraints;
     // the following are for controlling threshold filters
@@ -139,6 +145,8 @@ public class SessionInfo
         s.allowRepeat = allowRepeat;
         s.durationSingle = durationSingle;
         s.chunkLimit = chunkLimit;
+        s.countThreads = countThreads;
+        s.sharedScan = sharedScan;
         s.candidateGeneratorProgress = candidateGeneratorProgress;
         if (episodes != null)
         {
@@ -181,6 +189,32 @@ public class SessionInfo
         return s;
     }
 
+    /**
+     * A copy for counting a shard of the candidates on another thread.
+     * Everything is shared with this session, the stream and the episodes
+     * included, except the segment index which the counters move as they go.
+     */
+    public SessionInfo createShardCopy()
+    {
+        return createShardCopy(sequence);
+    }
+
+    /**
+     * A copy for counting a shard of the candidates over a stream
+     * standing in for this session's.
+     */
+    public SessionInfo createShardCopy(IEventDataStream sequence)
+    {
+        try {
+            SessionInfo s = (SessionInfo) super.clone();
+            s.currentSegIndex = 0;
+            s.sequence = sequence;
+            return s;
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     public double getFrequencyThreshold(int order)
     {
         if (order < 1)
@@ -463,6 +497,36 @@ public class SessionInfo
         this.chunkLimit = chunkLimit;
     }
 
+    /**
+     * The number of threads among which a chunk of candidates is shared
+     * when it is counted, one counts in the mining thread.
+     * @see ShardedCounter
+     */
+    public int getCountThreads()
+    {
+        return countThreads;
+    }
+
+    public void setCountThreads(int countThreads)
+    {
+        this.countThreads = Math.max(countThreads, 1);
+    }
+
+    /**
+     * Whether the threads counting the shards of a chunk share a single
+     * traversal of the stream, rather than each traversing it.
+     * @see edu.iisc.tdminercore.data.BroadcastScan
+     */
+    public boolean isSharedScan()
+    {
+        return sharedScan;
+    }
+
+    public void setSharedScan(boolean sharedScan)
+    {
+        this.sharedScan = sharedScan;
+    }
+
     public IProgress getCandidateGeneratorProgress()
     {
         return candidateGeneratorProgress;
@@ -483,6 +547,20 @@ public class SessionInfo
         this.episodes = episodes;
     }
 
+    /**
+     * The writer given each level of frequent episodes as it is found,
+     * null if the episodes are only kept in the episode set.
+     */
+    public ILevelWriter getLevelWriter()
+    {
+        return levelWriter;
+    }
+
+    public void setLevelWriter(ILevelWriter levelWriter)
+    {
+        this.levelWriter = levelWriter;
+    }
+
     public EpisodeSet getReference()
     {
         return this.reference;
@@ -696,6 +774,37 @@ public class SessionInfo
         return sequence.getSequenceEnd();
     }
 
+    /**
+     * The counts, rates and spans of the event types in the sequence.
+     */
+    public StreamStatistics getStatistics()
+    {
+        return sequence.getStatistics();
+    }
+
+    /**
+     * The number of occurrences of an event type in a segment.
+     * When the sequence is traversed without time constraints this is
+     * read from the statistics, otherwise it is the count of the 1-node
+     * episode, as those were counted under the constraints.
+     */
+    public int getTypeCount(int type, int index)
+    {
+        if (timeConstraints == null 
+                || timeConstraints.getConstraints(CONSTRAINT_MODE.PROSPECT).isEmpty())
+        {
+            StreamStatistics stats = sequence.getStatistics();
+            if (!segmented) return stats.count(type);
+            return stats.count(type, segLen, index);
+        }
+        List<IEpisode> oneNodeEpsList = episodes.getEpisodeList(1);
+        for (IEpisode e : oneNodeEpsList)
+        {
+            if (e.getEvent(0) == type) return e.getVotes(index);
+        }
+        return 0;
+    }
+
     public void updateSegIndex(double t)
     {
         if (isSegmented() && t > endTime())
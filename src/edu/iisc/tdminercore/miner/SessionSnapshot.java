@@ -0,0 +1,562 @@
+/*
+ * SessionSnapshot.java
+ *
+ */
+
+package edu.iisc.tdminercore.miner;
+
+import edu.iisc.tdminercore.candidate.AbstractCandidateGen;
+import edu.iisc.tdminercore.counter.AbstractEpisodeCounter;
+import edu.iisc.tdminercore.data.AbstractEpisode;
+import edu.iisc.tdminercore.data.Episode;
+import edu.iisc.tdminercore.data.EpisodeSet;
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.GeneralizedEpisode;
+import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.data.Interval;
+import edu.iisc.tdminercore.data.episode.ParallelEpisode;
+import edu.iisc.tdminercore.data.episode.SerialEpisode;
+import edu.iisc.tdminercore.data.episode.SerialEpisodeWithIntervals;
+import edu.iisc.tdminercore.filter.ThresholdFilterType;
+import edu.iisc.tdminercore.util.DataArrays;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary snapshot of a mining session, from which the analysis
+ * may be resumed without recounting.
+ * The snapshot holds the session parameters, the time constraints,
+ * the interval and duration lists, the event factor and every level of
+ * the episode set with the votes, sample sizes, required votes,
+ * strengths and betas of each episode.
+ * The event stream and the episode instances are not part of it.
+ *
+ * The format is big endian (see {@link DataOutput}):
+ *
+ *   magic "TDMS", version
+ *   session parameters, counter and candidate generator class names
+ *   time constraints: count, then [start, stop, activated mode mask]
+ *   interval lists: count, then for each [count (-1 if none), then [low, high]]
+ *   event factor: count, then [id, name, alias, votes]
+ *   levels: count, then for each [count, then episodes]
+ *   episode: kind, event types, interval list (-1 if none),
+ *       duration maps (generalized episodes only), then its state
+ *       (see {@link AbstractEpisode#writeState})
+ *
+ * A snapshot is restored into a session.
+ * If the session already holds an event stream the episodes are
+ * translated to its event types by name, otherwise the event factor of
+ * the snapshot is used.
+ */
+public class SessionSnapshot
+{
+    public static final int MAGIC = 0x54444D53; // "TDMS"
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".tdms";
+    static final int BUFFER_SIZE = 1 << 20;
+
+    // the kinds of episode which may be written
+    static final byte EPISODE = 0;
+    static final byte SERIAL = 1;
+    static final byte PARALLEL = 2;
+    static final byte SERIAL_WITH_INTERVALS = 3;
+    static final byte GENERALIZED = 4;
+
+    private SessionSnapshot()
+    {
+    }
+
+    /**
+     * @return true if the file begins as a session snapshot.
+     */
+    public static boolean isSnapshot(File file)
+    {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public static void write(File file, SessionInfo session) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        try {
+            write(out, session);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void write(DataOutput out, SessionInfo session) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeParameters(out, session);
+        writeConstraints(out, session.getTimeConstraints());
+
+        // the lists the episodes refer to, the session's own lists first
+        List<List<Interval>> lists = new ArrayList<List<Interval>>();
+        lists.add(session.getIntervalsList());
+        lists.add(session.getDurationsList());
+        EpisodeSet episodes = session.getEpisodes();
+        if (episodes != null) {
+            for (IEpisode episode : episodes) listIndex(lists, listOf(episode), true);
+        }
+        out.writeInt(lists.size());
+        for (List<Interval> list : lists) writeIntervals(out, list);
+
+        EventFactor factor = (episodes != null && episodes.getEventFactor() != null)
+                ? episodes.getEventFactor() : session.getEventFactor();
+        out.writeInt(factor.getSize());
+        for (EventFactor.EventType type : factor) {
+            out.writeInt(type.id);
+            out.writeUTF(type.name);
+            writeString(out, type.alias);
+            out.writeInt(factor.getVotesById(type.id));
+        }
+
+        int levels = (episodes == null) ? 0 : episodes.getSize();
+        out.writeInt(levels);
+        for (int ix = 0; ix < levels; ix++) {
+            List<IEpisode> level = episodes.getEpisodeList(ix + 1);
+            if (level == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(level.size());
+            for (IEpisode episode : level) {
+                writeEpisode(out, episode, lists);
+            }
+        }
+    }
+
+    /**
+     * Restore the snapshot in the file into the session.
+     * @return the restored episode set, also set in the session
+     */
+    public static EpisodeSet read(File file, SessionInfo session) throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            return read((DataInput)in, session);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static EpisodeSet read(InputStream in, SessionInfo session) throws IOException
+    {
+        return read((DataInput)new DataInputStream(in), session);
+    }
+
+    /**
+     * The snapshot is restored apart from the session and copied into it
+     * once the whole of it has been read, so a snapshot which cannot be
+     * read leaves the session as it was.
+     */
+    public static EpisodeSet read(DataInput in, SessionInfo session) throws IOException
+    {
+        SessionInfo restored = new SessionInfo();
+        restore(in, restored, session);
+        copy(restored, session);
+        return session.getEpisodes();
+    }
+
+    /**
+     * Read the snapshot into the restored session.
+     * The target session is only looked at, for its event stream,
+     * and given to the counter and candidate generator recreated for it.
+     */
+    private static void restore(DataInput in, SessionInfo restored, SessionInfo session)
+            throws IOException
+    {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a session snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported session snapshot version: " + version);
+        }
+        readParameters(in, restored, session);
+        restored.setTimeConstraints(readConstraints(in));
+
+        int listCount = in.readInt();
+        List<List<Interval>> lists = new ArrayList<List<Interval>>(listCount);
+        for (int ix = 0; ix < listCount; ix++) lists.add(readIntervals(in));
+        restored.setIntervalsList(lists.get(0));
+        restored.setDurationsList(lists.get(1));
+
+        EventFactor saved = new EventFactor();
+        int typeCount = in.readInt();
+        int[] votes = new int[typeCount];
+        int[] ids = new int[typeCount];
+        for (int ix = 0; ix < typeCount; ix++) {
+            ids[ix] = in.readInt();
+            saved.put(ids[ix], in.readUTF());
+            String alias = readString(in);
+            if (alias != null) saved.setAlias(ids[ix], alias);
+            votes[ix] = in.readInt();
+        }
+
+        // the episodes use the event types of the session's stream if it has one
+        IEventDataStream sequence = session.getSequence();
+        EventFactor factor = saved;
+        int[] translate = null;
+        if (sequence != null) {
+            factor = sequence.getEventFactor();
+            int maxId = -1;
+            for (int ix = 0; ix < typeCount; ix++) maxId = Math.max(maxId, ids[ix]);
+            translate = new int[maxId + 1];
+            for (int ix = 0; ix < typeCount; ix++) {
+                translate[ids[ix]] = factor.getId(saved.getName(ids[ix]));
+            }
+        } else {
+            for (int ix = 0; ix < typeCount; ix++) saved.setVotesById(ids[ix], votes[ix]);
+            restored.setEventFactor(saved);
+        }
+
+        int levels = in.readInt();
+        List<List<IEpisode>> episodeListSet = new ArrayList<List<IEpisode>>(levels);
+        for (int ix = 0; ix < levels; ix++) {
+            int size = in.readInt();
+            if (size < 0) {
+                episodeListSet.add(null);
+                continue;
+            }
+            List<IEpisode> level = new ArrayList<IEpisode>(size);
+            for (int jx = 0; jx < size; jx++) {
+                level.add(readEpisode(in, factor, translate, saved, lists));
+            }
+            episodeListSet.add(level);
+        }
+        restored.setEpisodes(new EpisodeSet(episodeListSet, factor));
+    }
+
+    /**
+     * Copy what was restored into the session, see readParameters().
+     * The event factor is only taken when the session has no stream.
+     */
+    private static void copy(SessionInfo restored, SessionInfo session)
+    {
+        session.setFrequencyThreshold(restored.getFrequencyThreshold());
+        session.setFreqDecay(restored.getFreqDecay());
+        session.setGlevels(restored.getGlevels());
+        session.setPlevels(restored.getPlevels());
+        session.setThresholdType(restored.getThresholdType());
+        session.setIntervalExpiry(restored.getIntervalExpiry());
+        session.setEpisodeExpiry(restored.getEpisodeExpiry());
+        session.setIntervalExpiryLow(restored.getIntervalExpiryLow());
+        session.setAllowRepeat(restored.isAllowRepeat());
+        session.setDurationSingle(restored.isDurationSingle());
+        session.setChunkLimit(restored.getChunkLimit());
+        session.setEStrong(restored.getEStrong());
+        session.setTimeGranularity(restored.getTimeGranularity());
+        session.setErrorTypeI(restored.getErrorTypeI());
+        session.setPoissonError(restored.getPoissonError());
+        session.setTrackEpisodes(restored.isTrackEpisodes());
+        session.setCurrentLevel(restored.getCurrentLevel());
+        session.setCurrentThreshold(restored.getCurrentThreshold());
+        session.setAdaptiveThresholdParameter(restored.getAdaptiveThresholdParameter());
+        session.setBackPruningEnabled(restored.isBackPruningEnabled());
+        session.setMuchGreater(restored.getMuchGreater());
+        session.setFixedThresholdLimit(restored.getFixedThresholdLimit());
+        session.setSegmented(restored.isSegmented());
+        session.setSegLen(restored.getSegLen());
+        session.setSelectedModel(restored.getSelectedModel());
+        if (restored.getCounter() != null) session.setCounter(restored.getCounter());
+        if (restored.getCandidateGenerator() != null) {
+            session.setCandidateGenerator(restored.getCandidateGenerator());
+        }
+        session.setTimeConstraints(restored.getTimeConstraints());
+        session.setIntervalsList(restored.getIntervalsList());
+        session.setDurationsList(restored.getDurationsList());
+        if (session.getSequence() == null) session.setEventFactor(restored.getEventFactor());
+        session.setEpisodes(restored.getEpisodes());
+    }
+
+    private static void writeParameters(DataOutput out, SessionInfo session) throws IOException
+    {
+        DataArrays.writeDoubles(out, session.getFrequencyThreshold());
+        out.writeDouble(session.getFreqDecay());
+        out.writeInt(session.getGlevels());
+        out.writeInt(session.getPlevels());
+        out.writeUTF(session.getThresholdType().name());
+        out.writeDouble(session.getIntervalExpiry());
+        out.writeDouble(session.getEpisodeExpiry());
+        out.writeDouble(session.getIntervalExpiryLow());
+        out.writeBoolean(session.isAllowRepeat());
+        out.writeBoolean(session.isDurationSingle());
+        out.writeInt(session.getChunkLimit());
+        out.writeDouble(session.getEStrong());
+        out.writeDouble(session.getTimeGranularity());
+        out.writeDouble(session.getErrorTypeI());
+        out.writeDouble(session.getPoissonError());
+        out.writeBoolean(session.isTrackEpisodes());
+        out.writeInt(session.getCurrentLevel());
+        out.writeDouble(session.getCurrentThreshold());
+        out.writeDouble(session.getAdaptiveThresholdParameter());
+        out.writeBoolean(session.isBackPruningEnabled());
+        out.writeDouble(session.getMuchGreater());
+        out.writeInt(session.getFixedThresholdLimit());
+        out.writeBoolean(session.isSegmented());
+        out.writeDouble(session.getSegLen());
+        out.writeInt(session.getSelectedModel());
+        writeString(out, (session.getCounter() == null)
+                ? null : session.getCounter().getClass().getName());
+        writeString(out, (session.getCandidateGenerator() == null)
+                ? null : session.getCandidateGenerator().getClass().getName());
+    }
+
+    /**
+     * An unknown threshold type, or a counter or candidate generator which
+     * cannot be recreated, is left as the target session has it.
+     */
+    private static void readParameters(DataInput in, SessionInfo session, SessionInfo target)
+            throws IOException
+    {
+        session.setFrequencyThreshold(DataArrays.readDoubles(in));
+        session.setFreqDecay(in.readDouble());
+        session.setGlevels(in.readInt());
+        session.setPlevels(in.readInt());
+        String thresholdType = in.readUTF();
+        try {
+            session.setThresholdType(ThresholdFilterType.valueOf(thresholdType));
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown threshold type in snapshot: " + thresholdType);
+            session.setThresholdType(target.getThresholdType());
+        }
+        session.setIntervalExpiry(in.readDouble());
+        session.setEpisodeExpiry(in.readDouble());
+        session.setIntervalExpiryLow(in.readDouble());
+        session.setAllowRepeat(in.readBoolean());
+        session.setDurationSingle(in.readBoolean());
+        session.setChunkLimit(in.readInt());
+        session.setEStrong(in.readDouble());
+        session.setTimeGranularity(in.readDouble());
+        session.setErrorTypeI(in.readDouble());
+        session.setPoissonError(in.readDouble());
+        session.setTrackEpisodes(in.readBoolean());
+        session.setCurrentLevel(in.readInt());
+        session.setCurrentThreshold(in.readDouble());
+        session.setAdaptiveThresholdParameter(in.readDouble());
+        session.setBackPruningEnabled(in.readBoolean());
+        session.setMuchGreater(in.readDouble());
+        session.setFixedThresholdLimit(in.readInt());
+        session.setSegmented(in.readBoolean());
+        session.setSegLen(in.readDouble());
+        session.setSelectedModel(in.readInt());
+        AbstractEpisodeCounter counter = instantiate(readString(in),
+                AbstractEpisodeCounter.class, target);
+        if (counter != null) session.setCounter(counter);
+        AbstractCandidateGen generator = instantiate(readString(in),
+                AbstractCandidateGen.class, target);
+        if (generator != null) session.setCandidateGenerator(generator);
+    }
+
+    /**
+     * The counters and candidate generators are recreated by name,
+     * given the session if they take it.
+     * @return null if the class cannot be recreated as a kind of the base.
+     */
+    private static <T> T instantiate(String className, Class<T> base, SessionInfo session)
+    {
+        if (className == null) return null;
+        try {
+            Class<? extends T> kind = Class.forName(className).asSubclass(base);
+            try {
+                return kind.getConstructor(SessionInfo.class).newInstance(session);
+            } catch (NoSuchMethodException ex) {
+                return kind.getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception ex) {
+            System.err.println("Cannot recreate " + className + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeConstraints(DataOutput out,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        int count = (constraints == null) ? 0 : constraints.getStoredCount();
+        out.writeBoolean(constraints == null || constraints.isActive);
+        out.writeInt(count);
+        for (int ix = 0; ix < count; ix++) {
+            TimeConstraint<CONSTRAINT_MODE>.Constraint constraint = constraints.getAt(ix);
+            out.writeDouble(constraint.getTimeStart());
+            out.writeDouble(constraint.getTimeStop());
+            int mask = 0;
+            for (CONSTRAINT_MODE mode : CONSTRAINT_MODE.values()) {
+                if (constraint.isActivated(mode)) mask |= 1 << mode.ordinal();
+            }
+            out.writeInt(mask);
+        }
+    }
+
+    private static TimeConstraint<CONSTRAINT_MODE> readConstraints(DataInput in) throws IOException
+    {
+        TimeConstraint<CONSTRAINT_MODE> constraints = new TimeConstraint<CONSTRAINT_MODE>();
+        constraints.isActive = in.readBoolean();
+        int count = in.readInt();
+        for (int ix = 0; ix < count; ix++) {
+            TimeConstraint<CONSTRAINT_MODE>.Constraint constraint =
+                    constraints.add(CONSTRAINT_MODE.class);
+            constraint.setTimeStart(in.readDouble());
+            constraint.setTimeStop(in.readDouble());
+            int mask = in.readInt();
+            for (CONSTRAINT_MODE mode : CONSTRAINT_MODE.values()) {
+                constraint.setActivation(mode, (mask & (1 << mode.ordinal())) != 0);
+            }
+        }
+        return constraints;
+    }
+
+    private static void writeIntervals(DataOutput out, List<Interval> list) throws IOException
+    {
+        if (list == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(list.size());
+        for (Interval interval : list) {
+            out.writeDouble(interval.getTLow());
+            out.writeDouble(interval.getTHigh());
+        }
+    }
+
+    private static List<Interval> readIntervals(DataInput in) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0) return null;
+        List<Interval> list = new ArrayList<Interval>(count);
+        for (int ix = 0; ix < count; ix++) {
+            double low = in.readDouble();
+            list.add(new Interval(low, in.readDouble()));
+        }
+        return list;
+    }
+
+    /**
+     * @return the interval list the episode refers to, null if none.
+     */
+    private static List<Interval> listOf(IEpisode episode)
+    {
+        if (episode instanceof GeneralizedEpisode) return episode.getDurations().getShingles();
+        return episode.getIntervalsList();
+    }
+
+    /**
+     * The lists are told apart by identity, as the episodes share them.
+     */
+    private static int listIndex(List<List<Interval>> lists, List<Interval> list, boolean add)
+    {
+        if (list == null) return -1;
+        for (int ix = 0; ix < lists.size(); ix++) {
+            if (lists.get(ix) == list) return ix;
+        }
+        if (!add) return -1;
+        lists.add(list);
+        return lists.size() - 1;
+    }
+
+    private static byte kindOf(IEpisode episode) throws IOException
+    {
+        Class<? extends IEpisode> kind = episode.getClass();
+        if (kind == Episode.class) return EPISODE;
+        if (kind == SerialEpisode.class) return SERIAL;
+        if (kind == ParallelEpisode.class) return PARALLEL;
+        if (kind == SerialEpisodeWithIntervals.class) return SERIAL_WITH_INTERVALS;
+        if (kind == GeneralizedEpisode.class) return GENERALIZED;
+        throw new IOException("Episodes of type " + kind.getSimpleName()
+                + " cannot be written to a snapshot");
+    }
+
+    private static void writeEpisode(DataOutput out, IEpisode episode,
+            List<List<Interval>> lists) throws IOException
+    {
+        byte kind = kindOf(episode);
+        out.writeByte(kind);
+        DataArrays.writeInts(out, episode.getEventTypeIndices());
+        out.writeInt(listIndex(lists, listOf(episode), false));
+        if (kind == GENERALIZED) DataArrays.writeInts(out, episode.getDurations().getMaps());
+        ((AbstractEpisode)episode).writeState(out);
+    }
+
+    private static IEpisode readEpisode(DataInput in, EventFactor factor, int[] translate,
+            EventFactor saved, List<List<Interval>> lists) throws IOException
+    {
+        byte kind = in.readByte();
+        int[] events = DataArrays.readInts(in);
+        if (translate != null) {
+            for (int ix = 0; ix < events.length; ix++) {
+                int id = (events[ix] < translate.length) ? translate[events[ix]] : -1;
+                if (id < 0) {
+                    throw new IOException("Event type " + saved.getName(events[ix])
+                            + " of the snapshot is not in the event stream");
+                }
+                events[ix] = id;
+            }
+        }
+        int listIx = in.readInt();
+        List<Interval> list = (listIx < 0) ? null : lists.get(listIx);
+        AbstractEpisode episode;
+        switch (kind) {
+            case EPISODE:
+                episode = (list == null) ? new Episode(events, factor)
+                        : new Episode(events, factor, null, list);
+                break;
+            case SERIAL:
+                episode = (list == null) ? new SerialEpisode(events, factor)
+                        : new SerialEpisode(events, factor, null, list);
+                break;
+            case PARALLEL:
+                episode = (list == null) ? new ParallelEpisode(events, factor)
+                        : new ParallelEpisode(events, factor, null, list);
+                break;
+            case SERIAL_WITH_INTERVALS:
+                episode = (list == null) ? new SerialEpisodeWithIntervals(events, factor)
+                        : new SerialEpisodeWithIntervals(events, factor, null, list);
+                break;
+            case GENERALIZED:
+                episode = new GeneralizedEpisode(events, factor, DataArrays.readInts(in), list);
+                break;
+            default:
+                throw new IOException("Unknown episode kind in snapshot: " + kind);
+        }
+        episode.readState(in);
+        return episode;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
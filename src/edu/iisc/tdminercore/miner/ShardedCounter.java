@@ -0,0 +1,230 @@
+/*
+ * ShardedCounter.java
+ *
+ */
+
+package edu.iisc.tdminercore.miner;
+
+import edu.iisc.tdminercore.counter.AbstractEpisodeCounter;
+import edu.iisc.tdminercore.counter.TimePartitionedCounter;
+import edu.iisc.tdminercore.data.BroadcastScan;
+import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.util.IObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Counts a chunk of candidates on several cores.
+ * The candidates are dealt round robin into disjoint shards and each shard
+ * is counted by its own instance of the session's counter, on its own copy
+ * of the session, over the same read only event stream.
+ * An episode's votes are only ever written by the shard holding it,
+ * so once every shard has finished the votes of the whole chunk are in
+ * place without further merging.
+ *
+ * The shards share a single traversal of the stream, broadcast to them
+ * batch by batch, unless the session asks for each shard to traverse the
+ * stream itself; the saving comes from the automata being spread over the
+ * cores. A chunk too small to give every thread a useful number of candidates
+ * is split in time instead, where the counter allows it, otherwise it is
+ * counted in the calling thread.
+ * A completion the counter reports is passed on to the observer with the
+ * episode's position in the whole chunk. Tracking marks the events of each
+ * occurrence in the stream, a session which tracks episodes is counted serially.
+ */
+public class ShardedCounter
+{
+    /** the fewest candidates worth a shard of their own */
+    static final int MIN_SHARD = 64;
+
+    private static ForkJoinPool pool = null;
+    private static ExecutorService scanPool = null;
+
+    private ShardedCounter()
+    {
+    }
+
+    private static synchronized ForkJoinPool pool()
+    {
+        if (pool == null) pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * The shards sharing a scan must all run at once, the producer waiting
+     * for the slowest of them; they are given a thread each rather than
+     * queued on a pool which may have fewer.
+     */
+    private static synchronized ExecutorService scanPool()
+    {
+        if (scanPool == null) {
+            scanPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "shard counter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scanPool;
+    }
+
+    /**
+     * @return the number of shards the candidates would be counted in.
+     */
+    public static int shardCount(List<IEpisode> candidates, SessionInfo session)
+    {
+        if (session.isTrackEpisodes()) return 1;
+        int shards = Math.min(session.getCountThreads(), candidates.size() / MIN_SHARD);
+        return Math.max(shards, 1);
+    }
+
+    /**
+     * Count the candidates, in shards or in time blocks if the session asks
+     * for more than one counting thread, otherwise as the counter would by itself.
+     */
+    public static void countEpisodes(AbstractEpisodeCounter counter, List<IEpisode> candidates,
+            IObserver observer, SessionInfo session)
+        throws IObserver.NotImplementedException, IEpisode.NotImplementedException
+    {
+        int shards = shardCount(candidates, session);
+        if (shards < session.getCountThreads()
+                && TimePartitionedCounter.isApplicable(counter, candidates, session)) {
+            TimePartitionedCounter.countEpisodes(counter, candidates, observer, session);
+            return;
+        }
+        AbstractEpisodeCounter[] counters = (shards < 2) ? null : instantiate(counter, shards);
+        if (counters == null) {
+            counter.countEpisodes(candidates, observer, session);
+            return;
+        }
+
+        List<List<IEpisode>> parts = new ArrayList<List<IEpisode>>(shards);
+        for (int ix = 0; ix < shards; ix++) {
+            parts.add(new ArrayList<IEpisode>(candidates.size() / shards + 1));
+        }
+        for (int ix = 0; ix < candidates.size(); ix++) {
+            parts.get(ix % shards).add(candidates.get(ix));
+        }
+
+        final BroadcastScan scan = session.isSharedScan()
+                ? new BroadcastScan(session.getSequence(), observer.getConstraintMode(), shards)
+                : null;
+        observer.startup();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(shards);
+        for (int ix = 0; ix < shards; ix++) {
+            final AbstractEpisodeCounter shardCounter = counters[ix];
+            final List<IEpisode> shardEpisodes = parts.get(ix);
+            final IObserver shardObserver = new ShardObserver(observer, ix, shards);
+            final int shard = ix;
+            final SessionInfo shardSession = (scan == null)
+                    ? session.createShardCopy()
+                    : session.createShardCopy(scan.stream(shard));
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        shardCounter.countEpisodes(shardEpisodes, shardObserver, shardSession);
+                    } finally {
+                        if (scan != null) scan.detach(shard);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            ExecutorService executor = (scan == null) ? pool() : scanPool();
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while counting", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IObserver.NotImplementedException) throw (IObserver.NotImplementedException)cause;
+            if (cause instanceof IEpisode.NotImplementedException) throw (IEpisode.NotImplementedException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("counting failed: " + cause, cause);
+        } finally {
+            if (scan != null) scan.close();
+            observer.shutdown();
+        }
+    }
+
+    /**
+     * A new instance of the counter's class for each shard.
+     * @return null if the counter cannot be recreated.
+     */
+    private static AbstractEpisodeCounter[] instantiate(AbstractEpisodeCounter counter, int shards)
+    {
+        AbstractEpisodeCounter[] counters = new AbstractEpisodeCounter[shards];
+        Class<? extends AbstractEpisodeCounter> kind = counter.getClass();
+        try {
+            for (int ix = 0; ix < shards; ix++) {
+                counters[ix] = kind.getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception ex) {
+            System.err.println("Cannot shard " + kind.getName() + ": " + ex.getMessage());
+            return null;
+        }
+        return counters;
+    }
+
+    /**
+     * What a shard's counter sees of the observer.
+     * Every shard follows the observer's interruption and constraint mode;
+     * only the first reports its progress, the shards moving through the
+     * stream at much the same rate, and the phase is begun and ended once
+     * by the driver rather than by each shard.
+     * The shards report to the observer one at a time.
+     */
+    private static class ShardObserver implements IObserver
+    {
+        private final IObserver observer;
+        private final int shard;
+        private final int shards;
+
+        ShardObserver(IObserver observer, int shard, int shards)
+        {
+            this.observer = observer;
+            this.shard = shard;
+            this.shards = shards;
+        }
+
+        public void setTitle(String title) {}
+        public void setExtent(int range) {}
+        public boolean update(int value)
+        {
+            if (shard != 0) return observer.interrupted();
+            synchronized (observer) {
+                return observer.update(value);
+            }
+        }
+        public boolean interrupted() { return observer.interrupted(); }
+        public void taskStarted() {}
+        public void taskComplete() {}
+        public void startup() {}
+        public void shutdown() {}
+        public void exceptionOccured(Exception e) { observer.exceptionOccured(e); }
+        public void handleEpisodeCompletion(int episodeIndex, int[] et, List<IEvent> events)
+            throws IObserver.NotImplementedException
+        {
+            synchronized (observer) {
+                observer.handleEpisodeCompletion(shard + episodeIndex * shards, et, events);
+            }
+        }
+        public CONSTRAINT_MODE getConstraintMode() { return observer.getConstraintMode(); }
+        public void setConstraintMode(CONSTRAINT_MODE mode) {}
+    }
+}
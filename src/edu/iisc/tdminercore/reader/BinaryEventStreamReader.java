@@ -0,0 +1,323 @@
+/*
+ * BinaryEventStreamReader.java
+ *
+ */
+
+package edu.iisc.tdminercore.reader;
+
+import edu.iisc.tdminercore.data.ColumnarEventStream;
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.data.Interval;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A ".tdmb" file is a compact binary image of an event stream.
+ * It is written by {@link edu.iisc.tdminercore.util.BinaryEventStreamWriter}.
+ * All values are little endian.
+ *
+ * <pre>
+ * int     magic ("TDMB")
+ * int     version
+ * int     flags (FLAG_DURATIONS when the records carry an end time)
+ * int     number of event types
+ *   int   event type id
+ *   int   length of the name in bytes
+ *   byte[] the name, UTF-8
+ * long    number of events
+ * stats   (only with FLAG_STATS)
+ *   double first event start time
+ *   double last event start time
+ *   long*  number of occurrences of each event type, in type table order
+ * record* fixed width event records
+ *   int    event type id
+ *   double start time
+ *   double end time (only with FLAG_DURATIONS, NaN if instantaneous)
+ *   long   source id
+ * </pre>
+ *
+ * A file is read as a {@link MappedEventDataStream} over a memory mapping
+ * of its records, so nothing is parsed or copied onto the heap and the
+ * page cache is shared by every process reading the same file.
+ * Other input, and a file whose load constraints do not select a single
+ * range of sorted records, is decoded into columns.
+ * The optional statistics let a stream be described without reading
+ * its records, see {@link StreamingEventDataStream}.
+ *
+ * @see TdmEventStreamReader
+ */
+public class BinaryEventStreamReader implements IEventStreamReader
+{
+    public static final String EXTENSION = ".tdmb";
+    public static final int MAGIC = 0x424D4454; // "TDMB" little endian
+    public static final int VERSION = 1;
+    public static final int FLAG_DURATIONS = 0x01;
+    public static final int FLAG_STATS = 0x02;
+    public static final int FLAG_SORTED = 0x04;
+
+    /** the largest region mapped at once */
+    static final long MAP_LIMIT = 1L << 30;
+
+    private int flags;
+
+    /**
+     * The decoded file header.
+     * The records begin 'length' bytes into the file.
+     */
+    public static class Header
+    {
+        public int flags;
+        public EventFactor factor;
+        public long eventCount;
+        public int[] typeIds;
+        public boolean hasStats = false;
+        public double sequenceStart = -1;
+        public double sequenceEnd = -1;
+        public long[] typeCounts;
+        public int length;
+
+        public boolean hasDurations() { return (flags & FLAG_DURATIONS) != 0; }
+        public boolean isSorted() { return (flags & FLAG_SORTED) != 0; }
+
+        /**
+         * Decode the header from the current position of the buffer,
+         * leaving the buffer positioned at the first record.
+         */
+        public static Header read(ByteBuffer buffer) throws IOException
+        {
+            int mark = buffer.position();
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary event stream");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary event stream version: " + version);
+            }
+            Header header = new Header();
+            header.flags = buffer.getInt();
+            int typeCount = buffer.getInt();
+
+            header.factor = new EventFactor();
+            header.typeIds = new int[typeCount];
+            for(int ix = 0; ix < typeCount; ix++) {
+                int id = buffer.getInt();
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                header.factor.put(id, new String(name, "UTF-8"));
+                header.typeIds[ix] = id;
+            }
+            header.eventCount = buffer.getLong();
+            if ((header.flags & FLAG_STATS) != 0) {
+                header.hasStats = true;
+                header.sequenceStart = buffer.getDouble();
+                header.sequenceEnd = buffer.getDouble();
+                header.typeCounts = new long[typeCount];
+                for(int ix = 0; ix < typeCount; ix++) {
+                    header.typeCounts[ix] = buffer.getLong();
+                }
+            }
+            header.length = buffer.position() - mark;
+            return header;
+        }
+    }
+
+    public BinaryEventStreamReader()
+    {}
+
+    public static boolean isBinary(String filename)
+    {
+        filename = InflatingInputStream.baseName(filename);
+        return filename != null && filename.toLowerCase().endsWith(EXTENSION);
+    }
+
+    public static int recordSize(int flags)
+    {
+        return ((flags & FLAG_DURATIONS) != 0) ? 28 : 20;
+    }
+
+    public IEventDataStream read(String filename,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        return read(new File(filename), constraints);
+    }
+
+    /**
+     * A compressed file is inflated into memory, otherwise it is mapped.
+     */
+    public IEventDataStream read(File file,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        if (InflatingInputStream.isCompressed(file)) {
+            InputStream in = InflatingInputStream.open(file);
+            try {
+                return read(in, constraints);
+            } finally {
+                in.close();
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(raf.getChannel(), constraints);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * If the stream is a file stream its channel is mapped,
+     * otherwise the records are decoded into columns a buffer at a time.
+     */
+    public IEventDataStream read(InputStream in,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        if (in instanceof FileInputStream) {
+            return read(((FileInputStream)in).getChannel(), constraints);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        Header header;
+        while (true) {
+            boolean more = fill(in, buffer);
+            buffer.flip();
+            try {
+                header = Header.read(buffer);
+                break;
+            } catch (BufferUnderflowException ex) {
+                if (!more) throw new IOException("Binary event stream is truncated");
+                // the header does not fit in the buffer
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                larger.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.rewind();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+        ColumnarEventStream dataStream = createStream(header);
+        List<Interval> constraint = loadConstraint(constraints);
+        int recordSize = recordSize(this.flags);
+        long remaining = header.eventCount;
+        buffer.compact();
+        while (remaining > 0) {
+            boolean more = fill(in, buffer);
+            buffer.flip();
+            long records = Math.min(remaining, buffer.remaining() / recordSize);
+            if (records == 0 && !more) throw new IOException("Binary event stream is truncated");
+            readRecords(buffer, records, dataStream, constraint);
+            remaining -= records;
+            buffer.compact();
+        }
+        return finish(dataStream, constraints);
+    }
+
+    /**
+     * Read until the buffer is full or the input ends.
+     * @return false if the input ended
+     */
+    private static boolean fill(InputStream in, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (count < 0) return false;
+            buffer.position(buffer.position() + count);
+        }
+        return true;
+    }
+
+    /**
+     * The records are mapped and read in place.
+     * Load constraints on a sorted file narrow the mapping to the range
+     * they select; otherwise the events within them are copied into columns.
+     */
+    public IEventDataStream read(FileChannel channel,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        long position = channel.position();
+        long length = channel.size() - position;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                position, Math.min(length, MAP_LIMIT));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        Header decoded = Header.read(header);
+        this.flags = decoded.flags;
+        MappedEventDataStream mapped = new MappedEventDataStream(channel,
+                position + decoded.length, decoded);
+
+        List<Interval> constraint = loadConstraint(constraints);
+        if (constraint != null && constraint.size() > 0) {
+            int[] ranges = mapped.isSorted() ? TimeConstraint.ranges(constraint, mapped) : null;
+            if (ranges == null || ranges.length > 2) {
+                return finish(copyRecords(mapped, decoded, constraint), constraints);
+            }
+            mapped = (ranges.length > 0) ? mapped.range(ranges[0], ranges[1]) : mapped.range(0, 0);
+        }
+        if (constraints != null) mapped.setConstraints(constraints);
+        return mapped;
+    }
+
+    /**
+     * Copy the mapped events within the constraint into columns.
+     */
+    private ColumnarEventStream copyRecords(MappedEventDataStream mapped, Header header,
+            List<Interval> constraint)
+    {
+        ColumnarEventStream dataStream = createStream(header);
+        header.factor.resetCounts();
+        for(int ix = 0; ix < mapped.getSize(); ix++) {
+            double start = mapped.startAt(ix);
+            if (!TimeConstraint.check(constraint, start)) continue;
+            dataStream.append(mapped.typeAt(ix), start,
+                    mapped.isInstantAt(ix) ? -1.0 : mapped.endAt(ix), mapped.sourceIdAt(ix));
+        }
+        return dataStream;
+    }
+
+    private ColumnarEventStream createStream(Header header)
+    {
+        this.flags = header.flags;
+        int capacity = (int)Math.min(Math.max(header.eventCount, 1), Integer.MAX_VALUE - 8);
+        ColumnarEventStream dataStream = new ColumnarEventStream(capacity);
+        dataStream.setEventFactor(header.factor);
+        return dataStream;
+    }
+
+    private void readRecords(ByteBuffer buffer, long records,
+            ColumnarEventStream dataStream, List<Interval> constraint)
+    {
+        boolean durations = (this.flags & FLAG_DURATIONS) != 0;
+        for(long rx = 0; rx < records; rx++) {
+            int type = buffer.getInt();
+            double start = buffer.getDouble();
+            double end = durations ? buffer.getDouble() : -1.0;
+            long key = buffer.getLong();
+            if (Double.isNaN(end)) end = -1.0;
+            if (constraint != null && !TimeConstraint.check(constraint, start)) continue;
+            dataStream.append(type, start, end, key);
+        }
+    }
+
+    private List<Interval> loadConstraint(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        if (constraints == null) return null;
+        return constraints.getConstraints(CONSTRAINT_MODE.LOAD);
+    }
+
+    private IEventDataStream finish(ColumnarEventStream dataStream,
+            TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        dataStream.trimToSize();
+        if (constraints != null) dataStream.setConstraints(constraints);
+        return dataStream;
+    }
+}
@@ -7,8 +7,11 @@
 package edu.iisc.tdminercore.reader;
 
 import au.com.bytecode.opencsv.CSVReader;
+import edu.iisc.tdminercore.data.ColumnarEventStream;
+import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
+import edu.iisc.tdminercore.util.EventSorter;
 import edu.iisc.tdminercore.util.TimeConstraint;
 import edu.iisc.tdminercore.data.Interval;
 
@@ -17,8 +20,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An CSV (Comma Separated Values) file is an ASCII text file that 
@@ -33,6 +45,19 @@ import java.util.List;
  * of the event.
  *
  * http://en.wikipedia.org/wiki/Comma-separated_values
+ *
+ * In parallel mode (see {@link #setParallel(boolean)}) a file is split
+ * at line boundaries into chunks which are parsed concurrently on a
+ * fork-join pool, each with its own table of event type names.
+ * The names are then reconciled into a single event factor, in the order
+ * they first appear in the file, each chunk is sorted and the chunks are
+ * merged into a sorted columnar stream.
+ * In this mode a quoted field may not span lines.
+ * The chunks are parsed in place as bytes, in the reader's charset
+ * (see {@link #setCharset(Charset)}), and each event type name is
+ * interned on its bytes, so it is decoded only the first time it is seen.
+ * A file in a charset which is neither UTF-8 nor a single byte superset
+ * of ASCII is read serially.
  */
 public class CsvEventStreamReader implements IEventStreamReader
 {
@@ -45,6 +70,18 @@ public class CsvEventStreamReader implements IEventStreamReader
     private int seqKeyIndex = -1;
     private Hashtable<String,String> legendMap;
     private TimeConstraint<CONSTRAINT_MODE> constraints = null;
+    private boolean parallel = false;
+    private Charset charset = DEFAULT_CHARSET;
+    
+    /** the encoding of a file unless another is set */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+    
+    /** a file smaller than this is parsed as a single chunk */
+    static final int MIN_CHUNK = 1 << 20;
+    /** a chunk is read into memory whole, so is kept well below 2GB */
+    static final int MAX_CHUNK = 1 << 28;
+    
+    private static ForkJoinPool pool = null;
 
     /** Creates a new instance of CsvEventStreamReader */
     /** Creates a new instance of CsvEventStreamReader */
@@ -74,12 +111,15 @@ public class CsvEventStreamReader implements IEventStreamReader
     public CsvEventStreamReader(String filename) throws FileNotFoundException
     {
         try {
-            InputStream is = new FileInputStream(filename);
-            this.reader = new CSVReader(new InputStreamReader(is));
+            InputStream is = InflatingInputStream.open(filename);
+            this.reader = new CSVReader(new InputStreamReader(is, this.charset));
         }
         catch (java.io.FileNotFoundException ex) {
             System.err.println("Event stream file not found: " + ex.getMessage() + filename);
         }
+        catch (IOException ex) {
+            System.err.println("Event stream file not readable: " + ex.getMessage() + filename);
+        }
     }
     
     public void setEventTypeIndex(int index) { this.eventTypeIndex = index; }
@@ -92,6 +132,19 @@ public class CsvEventStreamReader implements IEventStreamReader
     public int getStopIndex() { return this.endTimeIndex; }
     public int getKeyIndex() { return this.seqKeyIndex; }
     
+    /**
+     * When set a file is parsed in chunks on all the available cores,
+     * the resulting stream is columnar and sorted.
+     */
+    public void setParallel(boolean parallel) { this.parallel = parallel; }
+    public boolean isParallel() { return this.parallel; }
+    
+    /**
+     * The encoding of the files read, UTF-8 unless set.
+     */
+    public void setCharset(Charset charset) { this.charset = charset; }
+    public Charset getCharset() { return this.charset; }
+    
     public void setSeparator(char separator) {
         reader = new CSVReader(
                 this.reader.getReader(),
@@ -126,14 +179,14 @@ public class CsvEventStreamReader implements IEventStreamReader
 
     public IEventDataStream read(String filename) throws IOException
     {
-        InputStream is = new FileInputStream(filename);
+        InputStream is = InflatingInputStream.open(filename);
         return this.read(is,this.constraints);
     }
      
     public IEventDataStream read(String filename, 
             TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
     {
-        InputStream is = new FileInputStream(filename);
+        InputStream is = InflatingInputStream.open(filename);
         return this.read(is,constraints);
     }
     
@@ -146,8 +199,18 @@ public class CsvEventStreamReader implements IEventStreamReader
             System.out.println("reader.getQuotechar() = " + reader.getQuotechar());
             System.out.println("reader.getSkipLines() = " + reader.getSkipLines());
         }
+        // a compressed input is read serially, it is inflated as it is parsed
+        if (this.parallel && in instanceof FileInputStream
+                && isByteParsable(this.charset, this.reader.getSeparator(), this.reader.getQuotechar())) {
+            return CsvEventStreamReader.read(((FileInputStream)in).getChannel(),
+                    this.reader.getSeparator(), this.reader.getQuotechar(),
+                    this.reader.getSkipLines(),
+                    this.eventTypeIndex, this.seqKeyIndex,
+                    this.startTimeIndex, this.endTimeIndex,
+                    constraints, this.legendMap, this.charset);
+        }
         this.reader = new CSVReader(
-                new InputStreamReader(in),
+                new InputStreamReader(in, this.charset),
                 this.reader.getSeparator(),
                 this.reader.getQuotechar(),
                 this.reader.getSkipLines());
@@ -218,4 +281,483 @@ public class CsvEventStreamReader implements IEventStreamReader
 	}
 	return dataStream;
     }
+    
+    /**
+     * Whether the lines may be split and the fields converted on their bytes,
+     * that is the charset encodes the separator, the quote character, 
+     * the line ends and the characters of numbers as single bytes of
+     * the same value, and no other character uses those bytes.
+     */
+    public static boolean isByteParsable(Charset charset, char separator, char quotechar)
+    {
+        if (!charset.name().equals("UTF-8") && !charset.name().equals("US-ASCII")
+                && !charset.name().startsWith("ISO-8859-")) return false;
+        String probe = "\n\r" + separator + quotechar + "0123456789.+-eE";
+        byte[] bytes = probe.getBytes(charset);
+        if (bytes.length != probe.length()) return false;
+        for (int ix = 0; ix < bytes.length; ix++) {
+            if (bytes[ix] != probe.charAt(ix)) return false;
+        }
+        return true;
+    }
+    
+    private static synchronized ForkJoinPool pool()
+    {
+        if (pool == null) pool = new ForkJoinPool();
+        return pool;
+    }
+    
+    public static IEventDataStream read(FileChannel channel, 
+            char separator, char quotechar, int skipLines,
+            Integer eventTypeIndex, Integer seqKeyIndex, 
+            Integer startTimeIndex, Integer endTimeIndex,
+            TimeConstraint<CONSTRAINT_MODE> constraints,
+            Hashtable<String,String> legendMap) 
+            throws IOException
+    {
+        return read(channel, separator, quotechar, skipLines,
+                eventTypeIndex, seqKeyIndex, startTimeIndex, endTimeIndex,
+                constraints, legendMap, DEFAULT_CHARSET);
+    }
+    
+    /**
+     * Parse a file in parallel.
+     * The file is split at line boundaries into chunks,
+     * the chunks are parsed and sorted concurrently, 
+     * then merged into a single sorted stream.
+     * The channel is read from its current position with positional reads.
+     * The lines are parsed as bytes, see {@link #isByteParsable}.
+     */
+    public static IEventDataStream read(FileChannel channel, 
+            char separator, char quotechar, int skipLines,
+            Integer eventTypeIndex, Integer seqKeyIndex, 
+            Integer startTimeIndex, Integer endTimeIndex,
+            TimeConstraint<CONSTRAINT_MODE> constraints,
+            Hashtable<String,String> legendMap, Charset charset) 
+            throws IOException
+    {
+        if (!isByteParsable(charset, separator, quotechar)) {
+            throw new IOException("A " + charset.name() 
+                    + " file cannot be parsed in parallel");
+        }
+        List<Interval> constraint = null;
+        if (constraints != null) {
+            constraint = constraints.getConstraints(CONSTRAINT_MODE.LOAD);
+        }
+        long[] bounds = split(channel, skipLines);
+        Chunk[] chunks = new Chunk[bounds.length - 1];
+        for (int cx = 0; cx < chunks.length; cx++) {
+            chunks[cx] = new Chunk(channel, bounds[cx], bounds[cx + 1],
+                    separator, quotechar, 
+                    eventTypeIndex, seqKeyIndex, startTimeIndex, endTimeIndex,
+                    constraint, legendMap, charset);
+        }
+        // parse every chunk
+        pool().invoke(new ChunkTask(chunks, 0, chunks.length, false));
+        for (Chunk chunk : chunks) {
+            if (chunk.failure != null) throw chunk.failure;
+        }
+        
+        // reconcile the names, in order of first appearance in the file,
+        // and number the generated keys as a serial read would
+        EventFactor factor = new EventFactor();
+        long keyBase = 0;
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            chunk.typeMap = new int[chunk.names.size()];
+            for (int tx = 0; tx < chunk.typeMap.length; tx++) {
+                chunk.typeMap[tx] = factor.put(chunk.names.get(tx));
+            }
+            chunk.keyBase = keyBase;
+            keyBase += chunk.keyless;
+            total += chunk.size;
+        }
+        // renumber and sort every chunk
+        pool().invoke(new ChunkTask(chunks, 0, chunks.length, true));
+        
+        ColumnarEventStream dataStream = new ColumnarEventStream(total);
+        dataStream.setEventFactor(factor);
+        if (legendMap != null) dataStream.setLegend(legendMap);
+        merge(chunks, dataStream);
+        dataStream.trimToSize();
+        if (constraints != null) dataStream.setConstraints(constraints);
+        return dataStream;
+    }
+    
+    /**
+     * Find the chunk boundaries, each boundary follows a newline.
+     * The first chunk begins after the lines to be skipped.
+     */
+    private static long[] split(FileChannel channel, int skipLines) throws IOException
+    {
+        long begin = channel.position();
+        long end = channel.size();
+        for (int lx = 0; lx < skipLines && begin < end; lx++) {
+            begin = nextLine(channel, begin, end);
+        }
+        long length = end - begin;
+        int processors = Runtime.getRuntime().availableProcessors();
+        long count = Math.min(Math.max(length / MIN_CHUNK, 1), processors * 4L);
+        count = Math.max(count, length / MAX_CHUNK + 1);
+        
+        long[] bounds = new long[(int)count + 1];
+        bounds[0] = begin;
+        int ix = 1;
+        for (long cx = 1; cx < count; cx++) {
+            long bound = nextLine(channel, begin + (length * cx) / count - 1, end);
+            if (bound <= bounds[ix - 1]) continue;
+            if (bound >= end) break;
+            bounds[ix++] = bound;
+        }
+        bounds[ix++] = end;
+        return Arrays.copyOf(bounds, ix);
+    }
+    
+    /**
+     * @return the position following the next newline at or after 'from'.
+     */
+    private static long nextLine(FileChannel channel, long from, long end) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count < 0) break;
+            for (int ix = 0; ix < count; ix++) {
+                if (buffer.get(ix) == '\n') return position + ix + 1;
+            }
+            position += count;
+        }
+        return end;
+    }
+    
+    /**
+     * Merge the sorted chunks, ties are taken in file order
+     * so the result is that of a stable sort of the whole file.
+     */
+    private static void merge(Chunk[] chunks, ColumnarEventStream dataStream)
+    {
+        int[] heap = new int[chunks.length];
+        int[] cursor = new int[chunks.length];
+        int heapSize = 0;
+        for (int cx = 0; cx < chunks.length; cx++) {
+            if (chunks[cx].size < 1) continue;
+            heap[heapSize++] = cx;
+            siftUp(heap, heapSize - 1, chunks, cursor);
+        }
+        while (heapSize > 0) {
+            int cx = heap[0];
+            Chunk chunk = chunks[cx];
+            int ix = chunk.order[cursor[cx]++];
+            double end = (chunk.ends == null) ? -1.0 : chunk.ends[ix];
+            dataStream.append(chunk.types[ix], chunk.starts[ix], end, chunk.keys[ix]);
+            if (cursor[cx] >= chunk.size) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, chunks, cursor);
+        }
+    }
+    
+    private static boolean before(int lhs, int rhs, Chunk[] chunks, int[] cursor)
+    {
+        Chunk left = chunks[lhs];
+        Chunk right = chunks[rhs];
+        int lx = left.order[cursor[lhs]];
+        int rx = right.order[cursor[rhs]];
+        if (left.starts[lx] != right.starts[rx]) return left.starts[lx] < right.starts[rx];
+        double lend = (left.ends == null || Double.isNaN(left.ends[lx])) ? left.starts[lx] : left.ends[lx];
+        double rend = (right.ends == null || Double.isNaN(right.ends[rx])) ? right.starts[rx] : right.ends[rx];
+        if (lend != rend) return lend < rend;
+        return lhs < rhs;
+    }
+    
+    private static void siftUp(int[] heap, int ix, Chunk[] chunks, int[] cursor)
+    {
+        while (ix > 0) {
+            int parent = (ix - 1) / 2;
+            if (!before(heap[ix], heap[parent], chunks, cursor)) return;
+            int swap = heap[ix]; heap[ix] = heap[parent]; heap[parent] = swap;
+            ix = parent;
+        }
+    }
+    
+    private static void siftDown(int[] heap, int heapSize, Chunk[] chunks, int[] cursor)
+    {
+        int ix = 0;
+        while (true) {
+            int child = 2 * ix + 1;
+            if (child >= heapSize) return;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child], chunks, cursor)) child++;
+            if (!before(heap[child], heap[ix], chunks, cursor)) return;
+            int swap = heap[ix]; heap[ix] = heap[child]; heap[child] = swap;
+            ix = child;
+        }
+    }
+    
+    /**
+     * Applies the parse, or the renumber and sort, to a range of chunks,
+     * splitting the range until a single chunk remains.
+     */
+    private static class ChunkTask extends RecursiveAction
+    {
+        private final Chunk[] chunks;
+        private final int low;
+        private final int high;
+        private final boolean finish;
+        
+        ChunkTask(Chunk[] chunks, int low, int high, boolean finish)
+        {
+            this.chunks = chunks;
+            this.low = low;
+            this.high = high;
+            this.finish = finish;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (high - low > 1) {
+                int mid = (low + high) >>> 1;
+                invokeAll(new ChunkTask(chunks, low, mid, finish), 
+                        new ChunkTask(chunks, mid, high, finish));
+                return;
+            }
+            if (high <= low) return;
+            if (finish) chunks[low].finish();
+            else chunks[low].parse();
+        }
+    }
+    
+    /**
+     * A run of whole lines of the file and the events parsed from them.
+     * The event types are numbered locally, in order of first appearance,
+     * until they are reconciled.
+     */
+    private static class Chunk
+    {
+        private final FileChannel channel;
+        private final long begin;
+        private final long end;
+        private final char separator;
+        private final char quotechar;
+        private final int eventTypeIndex;
+        private final int seqKeyIndex;
+        private final int startTimeIndex;
+        private final int endTimeIndex;
+        private final List<Interval> constraint;
+        private final Map<String,String> legendMap;
+        private final Charset charset;
+        
+        final List<String> names = new ArrayList<String>();
+        private final Map<String,Integer> nameIds = new HashMap<String,Integer>();
+        private final NameTable table = new NameTable();
+        int size = 0;
+        int[] types;
+        double[] starts;
+        double[] ends = null;
+        long[] keys;
+        int keyless = 0;
+        IOException failure = null;
+        
+        int[] typeMap;
+        long keyBase;
+        int[] order;
+        
+        Chunk(FileChannel channel, long begin, long end, 
+                char separator, char quotechar,
+                Integer eventTypeIndex, Integer seqKeyIndex, 
+                Integer startTimeIndex, Integer endTimeIndex,
+                List<Interval> constraint, Map<String,String> legendMap,
+                Charset charset)
+        {
+            this.channel = channel;
+            this.begin = begin;
+            this.end = end;
+            this.separator = separator;
+            this.quotechar = quotechar;
+            this.eventTypeIndex = (eventTypeIndex == null) ? -1 : eventTypeIndex;
+            this.seqKeyIndex = (seqKeyIndex == null) ? -1 : seqKeyIndex;
+            this.startTimeIndex = (startTimeIndex == null) ? -1 : startTimeIndex;
+            this.endTimeIndex = (endTimeIndex == null) ? -1 : endTimeIndex;
+            this.constraint = constraint;
+            this.legendMap = legendMap;
+            this.charset = charset;
+        }
+        
+        void parse()
+        {
+            byte[] bytes;
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int)(end - begin));
+                long position = begin;
+                while (buffer.hasRemaining()) {
+                    int count = channel.read(buffer, position);
+                    if (count < 0) throw new IOException("Event stream file is truncated");
+                    position += count;
+                }
+                bytes = buffer.array();
+            } catch (IOException ex) {
+                this.failure = ex;
+                return;
+            }
+            int capacity = Math.max(bytes.length / 16, 16);
+            this.types = new int[capacity];
+            this.starts = new double[capacity];
+            this.keys = new long[capacity];
+            if (endTimeIndex >= 0) this.ends = new double[capacity];
+            
+            int from = 0;
+            int length = bytes.length;
+            while (from < length) {
+                int to = from;
+                while (to < length && bytes[to] != '\n') to++;
+                int next = to + 1;
+                if (to > from && bytes[to - 1] == '\r') to--;
+                if (to > from) parseLine(bytes, from, to);
+                from = next;
+            }
+        }
+        
+        /**
+         * Only the fields which are wanted are extracted, in place;
+         * a quoted field is unescaped over its own bytes.
+         * Nothing is boxed and a name is decoded only when first seen.
+         */
+        private void parseLine(byte[] bytes, int from, int to)
+        {
+            int eventFrom = -1;
+            int eventTo = -1;
+            double start = Double.NaN;
+            double stop = Double.NaN;
+            long key = -1;
+            boolean hasStart = false;
+            
+            int column = 0;
+            int ix = from;
+            while (true) {
+                int fieldStart = ix;
+                int fieldEnd;
+                if (ix < to && bytes[ix] == quotechar) {
+                    int wx = ix++;
+                    while (ix < to) {
+                        byte c = bytes[ix];
+                        if (c == quotechar) {
+                            if (ix + 1 < to && bytes[ix + 1] == quotechar) {
+                                bytes[wx++] = c;
+                                ix += 2;
+                                continue;
+                            }
+                            ix++;
+                            break;
+                        }
+                        bytes[wx++] = c;
+                        ix++;
+                    }
+                    while (ix < to && bytes[ix] != separator) bytes[wx++] = bytes[ix++];
+                    fieldEnd = wx;
+                } else {
+                    while (ix < to && bytes[ix] != separator) ix++;
+                    fieldEnd = ix;
+                }
+                try {
+                    if (column == eventTypeIndex) {
+                        eventFrom = fieldStart;
+                        eventTo = fieldEnd;
+                    } else if (column == startTimeIndex) {
+                        start = TdmEventStreamReader.parseDouble(bytes, fieldStart, fieldEnd);
+                        hasStart = true;
+                    } else if (column == endTimeIndex) {
+                        stop = TdmEventStreamReader.parseDouble(bytes, fieldStart, fieldEnd);
+                    } else if (column == seqKeyIndex) {
+                        key = parseInt(bytes, fieldStart, fieldEnd);
+                    }
+                } catch (NumberFormatException ex) {
+                    System.err.println("bad input " + text(bytes, from, to));
+                }
+                column++;
+                if (ix >= to) break;
+                ix++;
+            }
+            if (eventFrom < 0 || !hasStart) {
+                System.err.println("bad event stream: incomplete line: " + text(bytes, from, to));
+                return;
+            }
+            if (constraint != null && !TimeConstraint.check(constraint, start)) return;
+            
+            int id = table.find(bytes, eventFrom, eventTo);
+            if (id < 0) {
+                String event = text(bytes, eventFrom, eventTo);
+                if (legendMap != null) {
+                    String tevent = legendMap.get(event);
+                    if (tevent != null) event = tevent;
+                }
+                Integer known = nameIds.get(event);
+                if (known == null) {
+                    known = names.size();
+                    nameIds.put(event, known);
+                    names.add(event);
+                }
+                id = known;
+                table.add(bytes, eventFrom, eventTo, id);
+            }
+            if (size >= types.length) {
+                int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                if (ends != null) ends = Arrays.copyOf(ends, capacity);
+            }
+            types[size] = id;
+            starts[size] = start;
+            if (ends != null) ends[size] = (stop < 0) ? Double.NaN : stop;
+            if (key < 0) keyless++;
+            keys[size] = key;
+            size++;
+        }
+        
+        private String text(byte[] bytes, int from, int to)
+        {
+            return new String(bytes, from, to - from, charset);
+        }
+        
+        /**
+         * Convert the integer in the bytes [from, to) as Integer.parseInt would.
+         */
+        private int parseInt(byte[] bytes, int from, int to)
+        {
+            int ix = from;
+            boolean negative = false;
+            if (ix < to && (bytes[ix] == '-' || bytes[ix] == '+')) {
+                negative = bytes[ix] == '-';
+                ix++;
+            }
+            if (ix >= to || to - ix > 9) return Integer.parseInt(text(bytes, from, to));
+            int value = 0;
+            for (; ix < to; ix++) {
+                if (bytes[ix] < '0' || bytes[ix] > '9') return Integer.parseInt(text(bytes, from, to));
+                value = value * 10 + (bytes[ix] - '0');
+            }
+            return negative ? -value : value;
+        }
+        
+        /**
+         * Move to the reconciled type ids, number the generated keys
+         * and sort the chunk.
+         */
+        void finish()
+        {
+            long generated = keyBase;
+            for (int ix = 0; ix < size; ix++) {
+                types[ix] = typeMap[types[ix]];
+                if (keys[ix] < 0) keys[ix] = generated++;
+            }
+            if (EventSorter.isSorted(starts, ends, size)) {
+                order = new int[size];
+                for (int ix = 0; ix < size; ix++) order[ix] = ix;
+            } else {
+                order = EventSorter.order(starts, ends, size);
+            }
+        }
+    }
 }
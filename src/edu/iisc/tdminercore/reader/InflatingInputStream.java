@@ -0,0 +1,202 @@
+/*
+ * InflatingInputStream.java
+ *
+ */
+
+package edu.iisc.tdminercore.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gzip compressed stream, the inflation being done on a
+ * background thread.
+ * The thread inflates the source into blocks which it passes to the
+ * reader through a bounded queue, so the inflation overlaps with the
+ * parsing of the blocks already inflated.
+ * When the queue is full the inflating thread waits; the blocks are
+ * recycled so the memory held is bounded by the depth of the queue.
+ * A failure of the inflating thread is raised by the next read.
+ *
+ * The readers open their input through {@link #open(File)},
+ * which recognises a compressed file by its magic number, so a
+ * compressed recording may be read directly.
+ */
+public class InflatingInputStream extends InputStream
+{
+    public static final String EXTENSION = ".gz";
+
+    /** the size of an inflated block */
+    static final int BLOCK = 1 << 16;
+    /** the number of inflated blocks waiting to be read */
+    static final int DEPTH = 16;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static class Block
+    {
+        final byte[] data = new byte[BLOCK];
+        int length = 0;
+    }
+    // marks the end of the inflated stream
+    private static final Block END = new Block();
+
+    private final InputStream source;
+    private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(DEPTH);
+    private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(DEPTH + 1);
+    private final Thread inflater;
+    private volatile IOException failure = null;
+    private volatile boolean closed = false;
+
+    private Block current = null;
+    private int position = 0;
+    private boolean finished = false;
+
+    /**
+     * @param compressed the gzip compressed source, it is closed with this stream
+     */
+    public InflatingInputStream(InputStream compressed) throws IOException
+    {
+        this.source = compressed;
+        final GZIPInputStream gzip = new GZIPInputStream(compressed, BLOCK);
+        for (int ix = 0; ix <= DEPTH; ix++) free.add(new Block());
+        this.inflater = new Thread("gzip inflater") {
+            @Override
+            public void run() { inflate(gzip); }
+        };
+        this.inflater.setDaemon(true);
+        this.inflater.start();
+    }
+
+    /**
+     * Open a file for reading, inflating it if it is gzip compressed.
+     */
+    public static InputStream open(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        if (!isCompressed(file)) return in;
+        return new InflatingInputStream(in);
+    }
+
+    public static InputStream open(String filename) throws IOException
+    {
+        return open(new File(filename));
+    }
+
+    /**
+     * @return true if the file begins with the gzip magic number.
+     */
+    public static boolean isCompressed(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            int b0 = in.read();
+            int b1 = in.read();
+            return b0 >= 0 && b1 >= 0 && ((b1 << 8) | b0) == GZIP_MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the file name without any compression extension.
+     */
+    public static String baseName(String filename)
+    {
+        if (filename != null && filename.toLowerCase().endsWith(EXTENSION)) {
+            return filename.substring(0, filename.length() - EXTENSION.length());
+        }
+        return filename;
+    }
+
+    private void inflate(InputStream gzip)
+    {
+        try {
+            while (!closed) {
+                Block block = free.take();
+                block.length = 0;
+                int count = 0;
+                while (block.length < BLOCK
+                        && (count = gzip.read(block.data, block.length, BLOCK - block.length)) > 0) {
+                    block.length += count;
+                }
+                if (block.length > 0) full.put(block);
+                if (count < 0) break;
+            }
+        } catch (IOException ex) {
+            this.failure = ex;
+        } catch (InterruptedException ex) {
+            return;
+        }
+        try {
+            full.put(END);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * @return false at the end of the inflated stream.
+     */
+    private boolean fill() throws IOException
+    {
+        if (finished) return false;
+        if (current != null && position < current.length) return true;
+        if (current != null) {
+            free.offer(current);
+            current = null;
+        }
+        Block block;
+        try {
+            block = full.take();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while inflating");
+        }
+        if (block == END) {
+            finished = true;
+            if (failure != null) throw failure;
+            return false;
+        }
+        current = block;
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!fill()) return -1;
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length == 0) return 0;
+        if (!fill()) return -1;
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (current == null) ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        inflater.interrupt();
+        source.close();
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * MappedEventDataStream.java
+ *
+ */
+
+package edu.iisc.tdminercore.reader;
+
+import edu.iisc.tdminercore.data.EpisodeSet;
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.EventMarkers;
+import edu.iisc.tdminercore.data.EventTypeIndex;
+import edu.iisc.tdminercore.data.GeneralEvent;
+import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.InstEvent;
+import edu.iisc.tdminercore.data.Interval;
+import edu.iisc.tdminercore.data.StreamStatistics;
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An event stream read directly from the memory mapped records of a
+ * ".tdmb" file, nothing is decoded onto the heap.
+ * The records have a fixed width so the accessors read a field of
+ * the record at its position; the mapping stays valid after the
+ * file is closed.
+ * A file larger than a single mapping is mapped in several regions,
+ * each holding a power of two number of records.
+ *
+ * The stream may be a range of the records of the file (see range()),
+ * the sequence start and end and the per type counts are then gathered
+ * from the range, otherwise they are taken from the file header.
+ *
+ * The stream is read only, the events it hands out are copies.
+ *
+ * @see BinaryEventStreamReader
+ */
+public class MappedEventDataStream implements IEventDataStream, TimeConstraint.StartTimes
+{
+    private final ByteBuffer[] regions;
+    private final int shift;
+    private final int mask;
+    private final int recordSize;
+    private final boolean durations;
+    private final EventFactor eventTypes;
+    private final int first;
+    private final int size;
+    private double sequenceStart;
+    private double sequenceEnd;
+    private boolean sorted;
+
+    private EventMarkers markers = new EventMarkers();
+    private EventTypeIndex typeIndex = null;
+    private StreamStatistics statistics = null;
+    private TimeConstraint<CONSTRAINT_MODE> timeConstraints;
+
+    /**
+     * Map the records following the header.
+     * @param dataStart the position of the first record in the file
+     */
+    MappedEventDataStream(FileChannel channel, long dataStart,
+            BinaryEventStreamReader.Header header) throws IOException
+    {
+        if (header.eventCount > Integer.MAX_VALUE) {
+            throw new IOException("Too many events for a stream: " + header.eventCount);
+        }
+        this.eventTypes = header.factor;
+        this.recordSize = BinaryEventStreamReader.recordSize(header.flags);
+        this.durations = header.hasDurations();
+        this.first = 0;
+        this.size = (int)header.eventCount;
+        if (channel.size() - dataStart < (long)size * recordSize) {
+            throw new IOException("Binary event stream is truncated");
+        }
+        int shift = 0;
+        while ((2L << shift) * recordSize <= BinaryEventStreamReader.MAP_LIMIT) shift++;
+        this.shift = shift;
+        this.mask = (1 << shift) - 1;
+        int count = (int)(((long)size + mask) >>> shift);
+        this.regions = new ByteBuffer[count];
+        for(int rx = 0; rx < count; rx++) {
+            long records = Math.min(size - ((long)rx << shift), 1L << shift);
+            regions[rx] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataStart + ((long)rx << shift) * recordSize, records * recordSize);
+            regions[rx].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (header.hasStats) {
+            this.sequenceStart = header.sequenceStart;
+            this.sequenceEnd = header.sequenceEnd;
+            this.sorted = header.isSorted();
+            eventTypes.resetCounts();
+            for(int ix = 0; ix < header.typeIds.length; ix++) {
+                eventTypes.setVotesById(header.typeIds[ix], (int)header.typeCounts[ix]);
+            }
+        } else {
+            scan();
+        }
+    }
+
+    /**
+     * A copy sharing the mapping, narrowed to a range of records.
+     */
+    private MappedEventDataStream(MappedEventDataStream that, int first, int size)
+    {
+        this.regions = that.regions;
+        this.shift = that.shift;
+        this.mask = that.mask;
+        this.recordSize = that.recordSize;
+        this.durations = that.durations;
+        this.eventTypes = that.eventTypes;
+        this.first = first;
+        this.size = size;
+        this.sequenceStart = that.sequenceStart;
+        this.sequenceEnd = that.sequenceEnd;
+        this.sorted = that.sorted;
+        this.timeConstraints = that.timeConstraints;
+    }
+
+    /**
+     * @return a stream of the records from 'from' to 'to' exclusive,
+     *   the event factor counts are those of the range.
+     */
+    MappedEventDataStream range(int from, int to)
+    {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("Range: " + from + " to " + to + ", Size: " + size);
+        MappedEventDataStream result = new MappedEventDataStream(this, first + from, to - from);
+        result.scan();
+        return result;
+    }
+
+    /**
+     * Gather the order, the start and end and the per type counts of the records.
+     */
+    private void scan()
+    {
+        double prior = Double.NEGATIVE_INFINITY;
+        boolean ordered = true;
+        eventTypes.resetCounts();
+        for(int ix = 0; ix < size; ix++) {
+            double start = startAt(ix);
+            if (start < prior) ordered = false;
+            prior = start;
+            eventTypes.incrById(typeAt(ix));
+        }
+        this.sorted = ordered;
+        this.sequenceStart = (size > 0) ? startAt(0) : -1;
+        this.sequenceEnd = (size > 0) ? startAt(size - 1) : -1;
+    }
+
+    /**
+     * The direct accessors, each reads one field of the mapped record.
+     */
+    public int typeAt(int ix) { return region(ix).getInt(offset(ix)); }
+    public double startAt(int ix) { return region(ix).getDouble(offset(ix) + 4); }
+    public double endAt(int ix)
+    {
+        if (!durations) return startAt(ix);
+        double end = region(ix).getDouble(offset(ix) + 12);
+        return Double.isNaN(end) ? startAt(ix) : end;
+    }
+    public long sourceIdAt(int ix) { return region(ix).getLong(offset(ix) + (durations ? 20 : 12)); }
+    public boolean isInstantAt(int ix)
+    {
+        return !durations || Double.isNaN(region(ix).getDouble(offset(ix) + 12));
+    }
+
+    private ByteBuffer region(int ix) { return regions[(first + ix) >>> shift]; }
+    private int offset(int ix) { return ((first + ix) & mask) * recordSize; }
+
+    /**
+     * @return true if the records are in time order.
+     */
+    public boolean isSorted() { return sorted; }
+
+    public int getSize() { return size; }
+    public int getEventTypeCount() { return eventTypes.getSize(); }
+    public EventFactor getEventFactor() { return eventTypes; }
+
+    public EpisodeSet getFirstOrderEpisodeSet()
+    {
+        EpisodeSet oneNodeEpisodes = new EpisodeSet();
+        oneNodeEpisodes.addEpisodeList(this.eventTypes.getEpisodeList());
+        oneNodeEpisodes.setEventFactor(eventTypes);
+        return oneNodeEpisodes;
+    }
+
+    public double getSequenceStart() { return sequenceStart; }
+    public double getSequenceEnd() { return sequenceEnd; }
+
+    /**
+     * @return a copy of the event, changing it does not change the stream.
+     */
+    public IEvent get(int ix)
+    {
+        if (ix < 0 || ix >= size)
+            throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + size);
+        if (isInstantAt(ix)) return new InstEvent(sourceIdAt(ix), typeAt(ix), startAt(ix));
+        return new GeneralEvent(sourceIdAt(ix), typeAt(ix), startAt(ix), endAt(ix));
+    }
+    public IEvent get(Integer ix) { return get(ix.intValue()); }
+
+    public void set(Integer ix, IEvent event)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+    public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+
+    /**
+     * The copy shares the mapping but not the markers.
+     */
+    @Override
+    public Object clone()
+    {
+        MappedEventDataStream result = new MappedEventDataStream(this, first, size);
+        result.markers = this.markers.copy();
+        return result;
+    }
+
+    public void jitter(double wsize)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+
+    /**
+     * The records cannot be reordered in place, a sorted file is required.
+     */
+    public void sort()
+    {
+        if (sorted) return;
+        throw new UnsupportedOperationException("mapped event data is not in time order");
+    }
+
+    public void add(String event, Double start)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+    public void add(String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+    public void add(String event, Double start, Integer key)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+    public void add(String event, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+    public boolean add(List<Interval> constraint, String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+
+    public TimeConstraint<CONSTRAINT_MODE> getConstraints()
+    {
+        return this.timeConstraints;
+    }
+    public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        this.timeConstraints = constraints;
+    }
+
+    public EventTypeIndex getTypeIndex()
+    {
+        if (typeIndex == null) typeIndex = new EventTypeIndex(this);
+        return typeIndex;
+    }
+
+    public StreamStatistics getStatistics()
+    {
+        if (statistics == null) statistics = new StreamStatistics(this);
+        return statistics;
+    }
+
+    public void integrate(String name, List<IEvent> eventset)
+    {
+        throw new UnsupportedOperationException("mapped event data is read only");
+    }
+
+    public void markEvents(List<IEvent> events, int episodeIndex)
+    {
+        for(int ix : positionsOf(events)) {
+            if (ix >= 0) this.markers.mark(ix, episodeIndex);
+        }
+    }
+
+    /**
+     * Locate events by their start time, type and key.
+     * A sorted stream is searched for each event, otherwise the records
+     * are passed over once and each event matched on its key.
+     * @return the position of each event, -1 if absent.
+     */
+    private int[] positionsOf(List<IEvent> events)
+    {
+        int[] positions = new int[events.size()];
+        Arrays.fill(positions, -1);
+        if (sorted) {
+            for(int ex = 0; ex < positions.length; ex++) {
+                IEvent event = events.get(ex);
+                double start = event.getStartTime();
+                for(int ix = TimeConstraint.searchStart(this, start, false, 0); ix < size; ix++) {
+                    if (startAt(ix) > start) break;
+                    if (typeAt(ix) == event.getEventType() && sourceIdAt(ix) == event.getSourceId()) {
+                        positions[ex] = ix;
+                        break;
+                    }
+                }
+            }
+            return positions;
+        }
+        Map<Long, List<Integer>> byKey = new HashMap<Long, List<Integer>>();
+        long[] keys = new long[positions.length];
+        for(int ex = 0; ex < positions.length; ex++) {
+            keys[ex] = events.get(ex).getSourceId();
+            List<Integer> list = byKey.get(keys[ex]);
+            if (list == null) byKey.put(keys[ex], list = new ArrayList<Integer>(1));
+            list.add(ex);
+        }
+        Arrays.sort(keys);
+        for(int ix = 0; ix < size; ix++) {
+            long key = sourceIdAt(ix);
+            if (Arrays.binarySearch(keys, key) < 0) continue;
+            for(int ex : byKey.get(key)) {
+                IEvent event = events.get(ex);
+                if (positions[ex] < 0 && typeAt(ix) == event.getEventType()
+                        && startAt(ix) == event.getStartTime()) {
+                    positions[ex] = ix;
+                }
+            }
+        }
+        return positions;
+    }
+
+    public EventMarkers getMarkers()
+    {
+        return this.markers;
+    }
+
+    public void removeMarkers()
+    {
+        this.markers.clear();
+    }
+
+    public double getMarkerRatio()
+    {
+        return (double)this.markers.count(0, size) / (double)size;
+    }
+
+    public IEventIterable iterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        return new LocalIterable(mode, observer);
+    }
+
+    /**
+     * Constraints are resolved to position ranges when the records are sorted,
+     * otherwise each event is checked as it is read.
+     */
+    public class LocalIterable implements IEventIterable
+    {
+        private final IObserver observer;
+        private List<Interval> eventTimeConstraintList = null;
+        private int[] ranges = { 0, size };
+        private int rangeIx = 0;
+        private int position = 0;
+        private int next = -1;
+        private int total = size;
+
+        private int itemsProcessed = 0;
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        public LocalIterable(CONSTRAINT_MODE mode, IObserver observer)
+        {
+            this.observer = observer;
+            if (mode == null || timeConstraints == null) return;
+
+            List<Interval> constraints = timeConstraints.getConstraints(mode);
+            if (constraints.size() < 1) return;
+            if (!sorted) {
+                this.eventTimeConstraintList = constraints;
+                return;
+            }
+            this.ranges = TimeConstraint.ranges(constraints, MappedEventDataStream.this);
+            this.total = TimeConstraint.count(this.ranges);
+            this.position = (ranges.length > 0) ? ranges[0] : 0;
+        }
+
+        public Iterator<IEvent> iterator()
+        {
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) return false;
+                    if (next >= 0) return true;
+                    while (rangeIx < ranges.length) {
+                        if (position >= ranges[rangeIx + 1]) {
+                            rangeIx += 2;
+                            if (rangeIx < ranges.length) position = ranges[rangeIx];
+                            continue;
+                        }
+                        int ix = position++;
+                        if (!TimeConstraint.check(eventTimeConstraintList, startAt(ix))) continue;
+                        next = ix;
+                        return true;
+                    }
+                    return false;
+                }
+                public IEvent next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    IEvent result = get(next);
+                    next = -1;
+                    return result;
+                }
+                public void remove() {
+                    LocalIterable.this.remove();
+                }
+            };
+        }
+        public void remove()
+        {
+            throw new UnsupportedOperationException("mapped event data is read only");
+        }
+        public int percentComplete()
+        {
+            return (total < 1) ? 100 : (int)(itemsProcessed * 100.0 / total);
+        }
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+}
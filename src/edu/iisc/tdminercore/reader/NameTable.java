@@ -0,0 +1,83 @@
+/*
+ * NameTable.java
+ *
+ */
+
+package edu.iisc.tdminercore.reader;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash table from the raw bytes of an event type name
+ * to its event type id, so the text readers decode a name only the first
+ * time they see it.
+ */
+final class NameTable
+{
+    private byte[][] keys = new byte[64][];
+    private int[] ids = new int[64];
+    private int count = 0;
+
+    /**
+     * @return the id of the name in the bytes [from, to), -1 if it is absent.
+     */
+    int find(byte[] bytes, int from, int to)
+    {
+        int mask = keys.length - 1;
+        int slot = hash(bytes, from, to) & mask;
+        while (keys[slot] != null) {
+            if (matches(keys[slot], bytes, from, to)) return ids[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Enter the name in the bytes [from, to), which is absent.
+     */
+    void add(byte[] bytes, int from, int to, int id)
+    {
+        if ((count + 1) * 2 > keys.length) rehash();
+        int mask = keys.length - 1;
+        int slot = hash(bytes, from, to) & mask;
+        while (keys[slot] != null) slot = (slot + 1) & mask;
+        keys[slot] = Arrays.copyOfRange(bytes, from, to);
+        ids[slot] = id;
+        count++;
+    }
+
+    private static int hash(byte[] bytes, int from, int to)
+    {
+        int hash = 0x811c9dc5;
+        for (int ix = from; ix < to; ix++) {
+            hash = (hash ^ bytes[ix]) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int from, int to)
+    {
+        if (key.length != to - from) return false;
+        for (int ix = 0; ix < key.length; ix++) {
+            if (key[ix] != bytes[from + ix]) return false;
+        }
+        return true;
+    }
+
+    private void rehash()
+    {
+        byte[][] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new byte[oldKeys.length * 2][];
+        ids = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int ox = 0; ox < oldKeys.length; ox++) {
+            byte[] key = oldKeys[ox];
+            if (key == null) continue;
+            int slot = hash(key, 0, key.length) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = key;
+            ids[slot] = oldIds[ox];
+        }
+    }
+}
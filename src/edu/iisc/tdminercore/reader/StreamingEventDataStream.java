@@ -0,0 +1,567 @@
+/*
+ * StreamingEventDataStream.java
+ *
+ */
+
+package edu.iisc.tdminercore.reader;
+
+import edu.iisc.tdminercore.data.EpisodeSet;
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.EventMarkers;
+import edu.iisc.tdminercore.data.EventTypeIndex;
+import edu.iisc.tdminercore.data.GeneralEvent;
+import edu.iisc.tdminercore.data.IEpisode;
+import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.InstEvent;
+import edu.iisc.tdminercore.data.Interval;
+import edu.iisc.tdminercore.data.PrefetchingIterable;
+import edu.iisc.tdminercore.data.StreamStatistics;
+import edu.iisc.tdminercore.util.IObserver;
+import edu.iisc.tdminercore.util.TimeConstraint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An event stream which stays on disk.
+ * The events are re-read from a ".tdmb" file, a chunk at a time,
+ * each time the stream is traversed; only the header is kept in memory.
+ * The counters make a single forward pass over the stream for each level
+ * so recordings larger than the heap can be mined at disk bandwidth.
+ *
+ * The event factor, the sequence start and end and the per type counts
+ * are taken from the statistics in the file header,
+ * files written without them are scanned once when opened.
+ * Nothing is loaded, so the LOAD constraints apply to every traversal;
+ * setting constraints with a LOAD interval scans the events within it
+ * for the start, end and counts. The positions of get() and getSize()
+ * are those of the records in the file.
+ *
+ * The stream is read only, the events it hands out are transient
+ * and any markers set on them are not retained.
+ *
+ * Each traversal reads ahead of the counter on a background thread,
+ * see {@link PrefetchingIterable}, so reading the file overlaps with
+ * counting; a prefetch depth of zero reads on the counting thread.
+ * The file stays open until the stream, or any copy of it, is closed.
+ *
+ * @see BinaryEventStreamReader
+ */
+public class StreamingEventDataStream implements IEventDataStream, Closeable
+{
+    /** the number of bytes read from the file at once */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final BinaryEventStreamReader.Header header;
+    private final EventFactor eventTypes;
+    private final long dataStart;
+    private final int recordSize;
+    private final boolean durations;
+    private final int size;
+    private double sequenceStart;
+    private double sequenceEnd;
+    private boolean sorted;
+
+    private EventTypeIndex typeIndex = null;
+    private StreamStatistics statistics = null;
+    private TimeConstraint<CONSTRAINT_MODE> timeConstraints;
+    private List<Interval> loadConstraints = Collections.emptyList();
+    private int prefetchDepth = PrefetchingIterable.DEFAULT_DEPTH;
+    private PrefetchingIterable.Statistics prefetchStatistics = new PrefetchingIterable.Statistics();
+
+    /** random access reads through a chunk buffer held by the calling thread */
+    private final ThreadLocal<Cursor> windows = new ThreadLocal<Cursor>() {
+        @Override
+        protected Cursor initialValue() { return new Cursor(); }
+    };
+
+    public StreamingEventDataStream(String filename) throws IOException
+    {
+        this(new File(filename));
+    }
+
+    public StreamingEventDataStream(File file) throws IOException
+    {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        try {
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, Math.min(channel.size(), BinaryEventStreamReader.MAP_LIMIT));
+            region.order(ByteOrder.LITTLE_ENDIAN);
+            BinaryEventStreamReader.Header header = BinaryEventStreamReader.Header.read(region);
+
+            if (header.eventCount > Integer.MAX_VALUE) {
+                throw new IOException("Too many events for a stream: " + header.eventCount);
+            }
+            this.header = header;
+            this.eventTypes = header.factor;
+            this.dataStart = header.length;
+            this.recordSize = BinaryEventStreamReader.recordSize(header.flags);
+            this.durations = header.hasDurations();
+            this.size = (int)header.eventCount;
+            if (channel.size() - dataStart < (long)size * recordSize) {
+                throw new IOException("Binary event stream is truncated");
+            }
+            this.sorted = header.hasStats && header.isSorted();
+            summarize();
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * A copy shares the open file but not the read position.
+     */
+    private StreamingEventDataStream(StreamingEventDataStream that)
+    {
+        this.file = that.file;
+        this.raf = that.raf;
+        this.channel = that.channel;
+        this.header = that.header;
+        this.eventTypes = that.eventTypes;
+        this.dataStart = that.dataStart;
+        this.recordSize = that.recordSize;
+        this.durations = that.durations;
+        this.size = that.size;
+        this.sequenceStart = that.sequenceStart;
+        this.sequenceEnd = that.sequenceEnd;
+        this.sorted = that.sorted;
+        this.typeIndex = that.typeIndex;
+        this.statistics = that.statistics;
+        this.timeConstraints = that.timeConstraints;
+        this.loadConstraints = that.loadConstraints;
+        this.prefetchDepth = that.prefetchDepth;
+        this.prefetchStatistics = that.prefetchStatistics;
+    }
+
+    /**
+     * Take the sequence start and end and the per type counts from the header,
+     * or from a scan when the header lacks them or the load constraints
+     * leave out some of the events.
+     */
+    private void summarize() throws IOException
+    {
+        if (header.hasStats && loadConstraints.isEmpty()) {
+            this.sequenceStart = header.sequenceStart;
+            this.sequenceEnd = header.sequenceEnd;
+            eventTypes.resetCounts();
+            for(int ix = 0; ix < header.typeIds.length; ix++) {
+                eventTypes.setVotesById(header.typeIds[ix], (int)header.typeCounts[ix]);
+            }
+            return;
+        }
+        scan();
+    }
+
+    /**
+     * Gather the statistics of the events within the load constraints,
+     * and the order of the file if the header does not record it.
+     * A sorted file is only read within the constraints.
+     */
+    private void scan() throws IOException
+    {
+        Cursor cursor = new Cursor();
+        int[] ranges = (header.hasStats && sorted) ? loadRanges() : new int[] { 0, size };
+        double prior = Double.NEGATIVE_INFINITY;
+        boolean ordered = true;
+        int loaded = 0;
+        this.sequenceStart = -1;
+        this.sequenceEnd = -1;
+        eventTypes.resetCounts();
+        for(int rx = 0; rx < ranges.length; rx += 2) {
+            for(int ix = ranges[rx]; ix < ranges[rx + 1]; ix++) {
+                IEvent event = cursor.read(ix);
+                double start = event.getStartTime();
+                if (start < prior) ordered = false;
+                prior = start;
+                if (!TimeConstraint.check(loadConstraints, start)) continue;
+                if (loaded++ == 0) this.sequenceStart = start;
+                this.sequenceEnd = start;
+                eventTypes.incrById(event.getEventType());
+            }
+        }
+        if (!header.hasStats) this.sorted = ordered;
+    }
+
+    /**
+     * @return the position ranges of a sorted file within the load constraints.
+     */
+    private int[] loadRanges()
+    {
+        if (loadConstraints.isEmpty()) return new int[] { 0, size };
+        return TimeConstraint.ranges(loadConstraints, startTimes());
+    }
+
+    /**
+     * Release the file, it is shared by every copy of the stream.
+     * The stream cannot be read once it is closed.
+     */
+    public void close() throws IOException
+    {
+        raf.close();
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * @param depth the number of decoded batches a traversal may read ahead
+     *   of the counter, zero to read on the counting thread.
+     */
+    public void setPrefetchDepth(int depth)
+    {
+        if (depth < 0) throw new IllegalArgumentException("prefetch depth must not be negative: " + depth);
+        this.prefetchDepth = depth;
+    }
+    public int getPrefetchDepth() { return prefetchDepth; }
+
+    /**
+     * The waits of the traversals which read ahead,
+     * shared with the copies of the stream.
+     */
+    public PrefetchingIterable.Statistics getPrefetchStatistics() { return prefetchStatistics; }
+
+    /**
+     * @return true if the file records the events in time order.
+     */
+    public boolean isSorted() { return sorted; }
+
+    /**
+     * Reads the records through a buffer holding one chunk of the file.
+     */
+    private class Cursor
+    {
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private int first = 0;
+        private int count = 0;
+
+        Cursor()
+        {
+            this.capacity = Math.max(CHUNK_SIZE / recordSize, 1);
+            this.buffer = ByteBuffer.allocateDirect(capacity * recordSize);
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        IEvent read(int position) throws IOException
+        {
+            if (position < first || position >= first + count) {
+                load(position);
+            }
+            buffer.position((position - first) * recordSize);
+            int type = buffer.getInt();
+            double start = buffer.getDouble();
+            double end = durations ? buffer.getDouble() : Double.NaN;
+            long key = buffer.getLong();
+            if (Double.isNaN(end)) return new InstEvent(key, type, start);
+            return new GeneralEvent(key, type, start, end);
+        }
+
+        private void load(int position) throws IOException
+        {
+            first = position;
+            count = Math.min(capacity, size - position);
+            buffer.clear();
+            buffer.limit(count * recordSize);
+            long offset = dataStart + (long)position * recordSize;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Binary event stream is truncated");
+                }
+            }
+        }
+    }
+
+    private double startAt(ByteBuffer probe, int position) throws IOException
+    {
+        probe.clear();
+        long offset = dataStart + (long)position * recordSize + 4;
+        while (probe.hasRemaining()) {
+            if (channel.read(probe, offset + probe.position()) < 0) {
+                throw new IOException("Binary event stream is truncated");
+            }
+        }
+        return probe.getDouble(0);
+    }
+
+    public int getSize() { return size; }
+    public int getEventTypeCount() { return eventTypes.getSize(); }
+    public EventFactor getEventFactor() { return eventTypes; }
+
+    public EpisodeSet getFirstOrderEpisodeSet()
+    {
+        EpisodeSet oneNodeEpisodes = new EpisodeSet();
+        oneNodeEpisodes.addEpisodeList(this.eventTypes.getEpisodeList());
+        oneNodeEpisodes.setEventFactor(eventTypes);
+        return oneNodeEpisodes;
+    }
+
+    public double getSequenceStart() { return sequenceStart; }
+    public double getSequenceEnd() { return sequenceEnd; }
+
+    /**
+     * Random access is served from a one chunk window of the calling thread,
+     * so visiting the events in order only reads each chunk once.
+     */
+    public IEvent get(int ix)
+    {
+        try {
+            return windows.get().read(ix);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read event " + ix
+                    + " from " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+    public IEvent get(Integer ix) { return get(ix.intValue()); }
+
+    public void set(Integer ix, IEvent event)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+    public void set(Integer ix, Integer eventIndex, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+
+    @Override
+    public Object clone()
+    {
+        return new StreamingEventDataStream(this);
+    }
+
+    public void jitter(double wsize)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+
+    /**
+     * The events cannot be reordered on disk, a sorted file is required.
+     */
+    public void sort()
+    {
+        if (sorted) return;
+        throw new UnsupportedOperationException("streamed event data is not in time order");
+    }
+
+    public void add(String event, Double start)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+    public void add(String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+    public void add(String event, Double start, Integer key)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+    public void add(String event, Double start, Double end, Integer key)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+    public boolean add(List<Interval> constraint, String event, Double start, Double end)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+
+    public TimeConstraint<CONSTRAINT_MODE> getConstraints()
+    {
+        return this.timeConstraints;
+    }
+    /**
+     * The statistics are gathered again for the LOAD intervals
+     * of the constraints.
+     */
+    public void setConstraints(TimeConstraint<CONSTRAINT_MODE> constraints)
+    {
+        List<Interval> load = (constraints == null)
+                ? Collections.<Interval>emptyList()
+                : constraints.getConstraints(CONSTRAINT_MODE.LOAD);
+        boolean reload = !(load.isEmpty() && this.loadConstraints.isEmpty());
+        this.timeConstraints = constraints;
+        this.loadConstraints = load;
+        if (!reload) return;
+        this.typeIndex = null;
+        this.statistics = null;
+        try {
+            summarize();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read " + file
+                    + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * The index holds every event of the stream,
+     * it costs memory in proportion to the size of the file.
+     */
+    public EventTypeIndex getTypeIndex()
+    {
+        if (typeIndex == null) typeIndex = new EventTypeIndex(this);
+        return typeIndex;
+    }
+
+    /**
+     * The statistics are gathered in one pass over the events
+     * within the load constraints.
+     */
+    public StreamStatistics getStatistics()
+    {
+        if (statistics == null) statistics = new StreamStatistics(this);
+        return statistics;
+    }
+
+    public void integrate(String name, List<IEvent> eventset)
+    {
+        throw new UnsupportedOperationException("streamed event data is read only");
+    }
+
+    /** The markers are not retained so there are none to set or remove. */
+    public void markEvents(List<IEvent> events, int episodeIndex) {}
+    public EventMarkers getMarkers() { return new EventMarkers(); }
+    public void removeMarkers() {}
+    public double getMarkerRatio() { return 0.0; }
+
+    /**
+     * The start times on disk, for the searches of TimeConstraint.
+     * Each is read through a probe of its own.
+     */
+    private TimeConstraint.StartTimes startTimes()
+    {
+        final ByteBuffer probe = ByteBuffer.allocate(8);
+        probe.order(ByteOrder.LITTLE_ENDIAN);
+        return new TimeConstraint.StartTimes() {
+            public int getSize() { return size; }
+            public double startAt(int ix) {
+                try {
+                    return StreamingEventDataStream.this.startAt(probe, ix);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Could not read " + file
+                            + ": " + ex.getMessage(), ex);
+                }
+            }
+        };
+    }
+
+    public IEventIterable iterable(IObserver observer)
+    {
+        CONSTRAINT_MODE mode = (observer == null) ? null : observer.getConstraintMode();
+        if (prefetchDepth < 1) return new LocalIterable(mode, observer);
+        // the reading thread does not report, the prefetcher does so as the events are counted
+        return new PrefetchingIterable(new LocalIterable(mode, null), observer,
+                prefetchDepth, PrefetchingIterable.DEFAULT_BATCH, prefetchStatistics);
+    }
+
+    /**
+     * Each traversal reads the file through its own chunk buffer.
+     * The events are those within both the load constraints and the
+     * constraints of the mode. Constraints are resolved to position ranges
+     * when the file is sorted, otherwise each event is checked as it is read.
+     */
+    public class LocalIterable implements IEventIterable
+    {
+        private final Cursor cursor = new Cursor();
+        private final IObserver observer;
+        private List<Interval> loadConstraintList = null;
+        private List<Interval> eventTimeConstraintList = null;
+        private int[] ranges = { 0, size };
+        private int rangeIx = 0;
+        private int position = 0;
+        private int total = size;
+        private IEvent next = null;
+
+        private int itemsProcessed = 0;
+
+        public long itemsProcessed() { return itemsProcessed; }
+
+        public LocalIterable(CONSTRAINT_MODE mode, IObserver observer)
+        {
+            this.observer = observer;
+            List<Interval> constraints = (mode == null || timeConstraints == null)
+                    ? Collections.<Interval>emptyList() : timeConstraints.getConstraints(mode);
+            if (constraints.isEmpty() && loadConstraints.isEmpty()) return;
+            if (!sorted) {
+                this.loadConstraintList = loadConstraints;
+                this.eventTimeConstraintList = constraints;
+                return;
+            }
+            this.ranges = loadRanges();
+            if (!constraints.isEmpty()) {
+                this.ranges = TimeConstraint.intersect(this.ranges,
+                        TimeConstraint.ranges(constraints, startTimes()));
+            }
+            this.total = TimeConstraint.count(this.ranges);
+            this.position = (ranges.length > 0) ? ranges[0] : 0;
+        }
+
+        public Iterator<IEvent> iterator()
+        {
+            return new Iterator<IEvent>() {
+                public boolean hasNext() {
+                    if (observer != null && observer.interrupted()) return false;
+                    if (next != null) return true;
+                    try {
+                        while (rangeIx < ranges.length) {
+                            if (position >= ranges[rangeIx + 1]) {
+                                rangeIx += 2;
+                                if (rangeIx < ranges.length) position = ranges[rangeIx];
+                                continue;
+                            }
+                            IEvent event = cursor.read(position++);
+                            if (!TimeConstraint.check(loadConstraintList, event.getStartTime())
+                                    || !TimeConstraint.check(eventTimeConstraintList,
+                                            event.getStartTime())) continue;
+                            next = event;
+                            return true;
+                        }
+                    } catch (IOException ex) {
+                        throw new IllegalStateException("Could not read " + file
+                                + ": " + ex.getMessage(), ex);
+                    }
+                    return false;
+                }
+                public IEvent next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    itemsProcessed++;
+                    if (observer != null && itemsProcessed % 50 == 0) {
+                        observer.update(itemsProcessed);
+                    }
+                    IEvent result = next;
+                    next = null;
+                    return result;
+                }
+                public void remove() {
+                    LocalIterable.this.remove();
+                }
+            };
+        }
+        public void remove()
+        {
+            throw new UnsupportedOperationException("streamed event data is read only");
+        }
+        public int percentComplete()
+        {
+            return (total < 1) ? 100 : (int)(itemsProcessed * 100.0 / total);
+        }
+        public void setSampleSize( List<IEpisode> episodes )
+        {
+            for(IEpisode ep : episodes) {
+                ep.setSampleSize(0, itemsProcessed);
+            }
+        }
+    }
+}
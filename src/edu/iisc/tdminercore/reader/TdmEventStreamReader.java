@@ -8,59 +8,257 @@
 
 package edu.iisc.tdminercore.reader;
 
+import edu.iisc.tdminercore.data.ColumnarEventStream;
 import edu.iisc.tdminercore.data.EventFactor;
-import edu.iisc.tdminercore.data.Episode;
-import edu.iisc.tdminercore.data.EpisodeSet;
-import edu.iisc.tdminercore.data.GeneralEvent;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
-import edu.iisc.tdminercore.data.IEvent;
-import edu.iisc.tdminercore.data.InstEvent;
 import edu.iisc.tdminercore.data.Interval;
 import edu.iisc.tdminercore.util.TimeConstraint;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ArrayList;
 
 /**
- * An CSV (Comma Separated Values) file is an ASCII text file that 
- * describes a list of instances sharing a set of attributes. 
+ * A tdm file is an ASCII text file with one event per line.
  *
- * There may be two or three columns of data.
+ * There may be two or three comma separated columns of data.
  * The first colum is a string representing the event type.
- * It is case sensitive. It may be quoted.
- * If it contains blanks it must be quoted.
  * The second column is numeric and contains the time (or start time of the event).
  * The optional third column is numeric and contains the end time
  * of the event.
+ * Lines with any other number of columns are ignored.
  *
- * http://en.wikipedia.org/wiki/Comma-separated_values
+ * The file is parsed a block of bytes at a time, in place.
+ * The event type names are interned through a hash table keyed on their
+ * raw bytes, so a name is only decoded the first time it is seen.
+ * Simple decimal times are converted directly from their digits,
+ * anything else is handed to Double.parseDouble, so the times are
+ * exactly those the line by line reader produced.
+ * The events are gathered in primitive batches and appended to a
+ * columnar stream; nothing is allocated per event.
+ *
+ * @see BinaryEventStreamReader
  */
 public class TdmEventStreamReader implements IEventStreamReader
 {
- 
+    /** the bytes read from the input at a time */
+    static final int BLOCK = 1 << 20;
+    /** the events gathered before they are appended to the stream */
+    static final int BATCH = 1 << 14;
+
+    /** the mantissas which are exact as doubles */
+    private static final long EXACT = 1L << 53;
+    private static final double[] POWERS = new double[23];
+    static {
+        POWERS[0] = 1.0;
+        for (int ix = 1; ix < POWERS.length; ix++) POWERS[ix] = POWERS[ix - 1] * 10.0;
+    }
+
+    private final Charset charset = Charset.defaultCharset();
+    private EventFactor factor;
+    private NameTable names;
+    private int[] votes;
+    private ColumnarEventStream dataStream;
+    private List<Interval> constraint;
+
+    private int batchSize = 0;
+    private final int[] batchTypes = new int[BATCH];
+    private final double[] batchStarts = new double[BATCH];
+    private final double[] batchEnds = new double[BATCH];
+    private boolean batchHasEnds = false;
+
     public TdmEventStreamReader()
     {}
-            
+
     public IEventDataStream read(InputStream in) throws IOException
     { return read(in, (TimeConstraint<CONSTRAINT_MODE>)null); }
-    
-    public IEventDataStream read(InputStream in, 
-            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException 
+
+    public IEventDataStream read(InputStream in,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
+    {
+        ReadableByteChannel channel = (in instanceof FileInputStream)
+                ? ((FileInputStream)in).getChannel() : Channels.newChannel(in);
+
+        this.factor = new EventFactor();
+        this.names = new NameTable();
+        this.votes = new int[16];
+        this.dataStream = new ColumnarEventStream();
+        this.dataStream.setEventFactor(this.factor);
+        this.constraint = null;
+        if (constraints != null)
+            this.constraint = constraints.getConstraints(CONSTRAINT_MODE.LOAD);
+        this.batchSize = 0;
+        this.batchHasEnds = false;
+
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK);
+        boolean eof = false;
+        while (!eof) {
+            if (channel.read(buffer) < 0) eof = true;
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            int from = 0;
+            while (from < limit) {
+                int to = from;
+                while (to < limit && bytes[to] != '\n' && bytes[to] != '\r') to++;
+                if (to >= limit && !eof) break;
+                parseLine(bytes, from, to);
+                from = to + 1;
+            }
+            if (from >= limit) {
+                buffer.clear();
+            } else if (from > 0) {
+                System.arraycopy(bytes, from, bytes, 0, limit - from);
+                buffer.position(limit - from);
+            } else if (limit == buffer.capacity()) {
+                // a line longer than the buffer
+                ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                grown.put(bytes, 0, limit);
+                buffer = grown;
+            }
+        }
+        flush();
+        for (int id = 0; id < factor.getSize(); id++) {
+            if (id < votes.length && votes[id] > 0) factor.setVotesById(id, votes[id]);
+        }
+        dataStream.trimToSize();
+        IEventDataStream result = dataStream;
+        this.dataStream = null;
+        this.names = null;
+        return result;
+    }
+
+    /**
+     * A line is split on commas as String.split(",") would,
+     * that is trailing empty fields are dropped.
+     */
+    private void parseLine(byte[] bytes, int from, int to)
+    {
+        while (to > from && bytes[to - 1] == ',') to--;
+        int first = -1, second = -1;
+        int fields = 1;
+        for (int ix = from; ix < to && fields <= 3; ix++) {
+            if (bytes[ix] != ',') continue;
+            if (fields == 1) first = ix;
+            else if (fields == 2) second = ix;
+            fields++;
+        }
+        if (fields == 2) {
+            double start = parseDouble(bytes, first + 1, to);
+            add(bytes, from, first, start, Double.NaN);
+        } else if (fields == 3) {
+            double start = parseDouble(bytes, first + 1, second);
+            double end = parseDouble(bytes, second + 1, to);
+            add(bytes, from, first, start, end);
+        }
+    }
+
+    private void add(byte[] bytes, int from, int to, double start, double end)
+    {
+        if (constraint != null && !TimeConstraint.check(constraint, start)) return;
+        int type = names.find(bytes, from, to);
+        if (type < 0) {
+            type = factor.put(new String(bytes, from, to - from, charset));
+            names.add(bytes, from, to, type);
+        }
+        if (type >= votes.length) votes = Arrays.copyOf(votes, Math.max(type + 1, votes.length * 2));
+        votes[type]++;
+        batchTypes[batchSize] = type;
+        batchStarts[batchSize] = start;
+        batchEnds[batchSize] = end;
+        if (!Double.isNaN(end)) batchHasEnds = true;
+        if (++batchSize >= BATCH) flush();
+    }
+
+    private void flush()
+    {
+        dataStream.appendAll(batchTypes, batchStarts,
+                batchHasEnds ? batchEnds : null, null, batchSize);
+        batchSize = 0;
+        batchHasEnds = false;
+    }
+
+    /**
+     * Convert the decimal number in the bytes [from, to).
+     * Numbers of the form [+-]digits[.digits][(e|E)[+-]digits] whose
+     * digits fit in a double and whose scale is small are converted
+     * with a single correctly rounded multiply or divide.
+     * Anything else is passed to Double.parseDouble.
+     */
+    public static double parseDouble(byte[] bytes, int from, int to)
+    {
+        int begin = from, end = to;
+        while (begin < end && (bytes[begin] & 0xff) <= ' ') begin++;
+        while (end > begin && (bytes[end - 1] & 0xff) <= ' ') end--;
+
+        int ix = begin;
+        boolean negative = false;
+        if (ix < end && (bytes[ix] == '-' || bytes[ix] == '+')) {
+            negative = bytes[ix] == '-';
+            ix++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+        for (; ix < end && bytes[ix] >= '0' && bytes[ix] <= '9'; ix++, digits++) {
+            mantissa = mantissa * 10 + (bytes[ix] - '0');
+            if (mantissa >= EXACT) exact = false;
+        }
+        if (ix < end && bytes[ix] == '.') {
+            ix++;
+            for (; ix < end && bytes[ix] >= '0' && bytes[ix] <= '9'; ix++, digits++) {
+                mantissa = mantissa * 10 + (bytes[ix] - '0');
+                if (mantissa >= EXACT) exact = false;
+                scale--;
+            }
+        }
+        if (digits > 0 && ix < end && (bytes[ix] == 'e' || bytes[ix] == 'E')) {
+            ix++;
+            boolean negExp = false;
+            if (ix < end && (bytes[ix] == '-' || bytes[ix] == '+')) {
+                negExp = bytes[ix] == '-';
+                ix++;
+            }
+            int exponent = 0;
+            int expDigits = 0;
+            for (; ix < end && bytes[ix] >= '0' && bytes[ix] <= '9'; ix++, expDigits++) {
+                if (exponent < 10000) exponent = exponent * 10 + (bytes[ix] - '0');
+            }
+            if (expDigits == 0) exact = false;
+            scale += negExp ? -exponent : exponent;
+        }
+        if (digits == 0 || ix != end || !exact
+                || scale < -(POWERS.length - 1) || scale > POWERS.length - 1) {
+            return Double.parseDouble(new String(bytes, from, to - from, Charset.defaultCharset()));
+        }
+        double value = (scale < 0) ? mantissa / POWERS[-scale] : mantissa * POWERS[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * The line by line reader, kept as the reference for the benchmark.
+     */
+    static IEventDataStream readByLine(InputStream in,
+            TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
     {
 	FileEventDataStream dataStream = new FileEventDataStream();
-        
+
 	BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-	
+
 	String record = null;
         List<Interval> constraint = null;
-        if (constraints != null) 
+        if (constraints != null)
             constraint = constraints.getConstraints(CONSTRAINT_MODE.LOAD);
 	while((record = reader.readLine()) != null)
 	{
@@ -81,4 +279,39 @@ public class TdmEventStreamReader implements IEventStreamReader
 	}
 	return dataStream;
     }
+
+    /**
+     * Benchmark the reader, in events per second.
+     * usage: TdmEventStreamReader [events [types [repeats]]]
+     * A synthetic stream is generated in memory and read by both the
+     * byte level reader and the line by line reader.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int events = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        int types = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int repeats = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        java.util.Random random = new java.util.Random(1);
+        ByteArrayOutputStream image = new ByteArrayOutputStream(events * 16);
+        java.io.PrintStream out = new java.io.PrintStream(image);
+        double time = 0.0;
+        for (int ix = 0; ix < events; ix++) {
+            time += random.nextInt(1000) / 1000.0;
+            out.print("E" + random.nextInt(types) + "," + time + "\n");
+        }
+        out.flush();
+        byte[] data = image.toByteArray();
+        System.out.println(events + " events, " + data.length + " bytes");
+
+        for (int rx = 0; rx < repeats; rx++) {
+            long t0 = System.nanoTime();
+            IEventDataStream fast = new TdmEventStreamReader().read(new ByteArrayInputStream(data));
+            long t1 = System.nanoTime();
+            IEventDataStream slow = readByLine(new ByteArrayInputStream(data), null);
+            long t2 = System.nanoTime();
+            System.out.println("byte level: " + (long)(fast.getSize() / ((t1 - t0) / 1e9)) + " events/sec"
+                    + ", line by line: " + (long)(slow.getSize() / ((t2 - t1) / 1e9)) + " events/sec");
+        }
+    }
 }
@@ -8,26 +8,22 @@
 
 package edu.iisc.tdminercore.reader;
 
+import edu.iisc.tdminercore.data.ColumnarEventStream;
 import edu.iisc.tdminercore.data.EventFactor;
-import edu.iisc.tdminercore.data.Episode;
-import edu.iisc.tdminercore.data.EpisodeSet;
-import edu.iisc.tdminercore.data.GeneralEvent;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.IEventDataStream.CONSTRAINT_MODE;
-import edu.iisc.tdminercore.util.TimeConstraint;
 import edu.iisc.tdminercore.data.Interval;
-import edu.iisc.tdminercore.data.IEvent;
-import edu.iisc.tdminercore.data.InstEvent;
+import edu.iisc.tdminercore.util.TimeConstraint;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ArrayList;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * An XML (eXtensible Markup Language) file is an ASCII text file that 
@@ -50,7 +46,7 @@ import java.util.ArrayList;
  *    <event index="1" start="12345.02"/>
  *    <event index="1" start="12345.02"/>
  *  </sequence>
- * <event-sequence>
+ * </event-sequence>
  *
  * It is expected that the /event-sequence/event-type-set/event-type/@index
  * values will be choosen so that there will be few if any gaps.
@@ -60,47 +56,180 @@ import java.util.ArrayList;
  * The cannonical form is to have no event/@type attributes but only 
  * event/@index and an appropriate event-type-set.
  * Further, the index of each event type will be ordinal starting with 1.
- * @author Deb
- */
-
-/**
  *
- * 
+ * The document is read with a StAX pull parser, the events are passed
+ * straight into the columns of the event stream in batches,
+ * so no tree of the document is built whatever its size.
+ * The event types are entered in the event factor in the order in which
+ * they are declared, an index is translated through a table indexed
+ * by the event-type/@index.
+ * An event has a start and an optional duration, the time units of
+ * the dimension element are not applied.
+ * @author Deb
  */
 
 public class XmlEventStreamReader implements IEventStreamReader
 {
-    private TimeConstraint<CONSTRAINT_MODE> constraints = null;
-  
+    /** the number of events passed to the event stream at a time */
+    static final int BATCH = 1 << 14;
+
+    private static final int UNDECLARED = -1;
+
+    private EventFactor factor;
+    private int[] votes;
+    // the event type id for each event-type/@index
+    private int[] indexMap;
+    private ColumnarEventStream dataStream;
+    private List<Interval> constraint;
+
+    private int batchSize = 0;
+    private final int[] batchTypes = new int[BATCH];
+    private final double[] batchStarts = new double[BATCH];
+    private final double[] batchEnds = new double[BATCH];
+    private boolean batchHasEnds = false;
+
     public XmlEventStreamReader()
     {}
-  
-    public IEventDataStream read(InputStream in, 
+
+    public IEventDataStream read(InputStream in) throws IOException
+    { return read(in, (TimeConstraint<CONSTRAINT_MODE>)null); }
+
+    public IEventDataStream read(InputStream in,
             TimeConstraint<CONSTRAINT_MODE> constraints) throws IOException
     {
-	FileEventDataStream dataStream = new FileEventDataStream();
-	
-	BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-	
-	String record = null;
-        List<Interval> constraint = constraints.getConstraints(CONSTRAINT_MODE.LOAD);      
-	while((record = reader.readLine()) != null)
-	{
-	    String[] subStr = record.split(",");
-	    if (subStr.length == 2)
-	    {
-		String event = subStr[0];
-		Double start = Double.parseDouble(subStr[1]);
-                dataStream.add(constraint, event,start,null);
-	    }
-	    else if (subStr.length == 3)
-	    {
-		String event = subStr[0].trim();
-		Double start = Double.parseDouble(subStr[1].trim());
-		Double end = Double.parseDouble(subStr[2].trim());
-                dataStream.add(constraint, event,start,end);
-	    }
-	}
-	return dataStream;
+        this.factor = new EventFactor();
+        this.votes = new int[16];
+        this.indexMap = new int[16];
+        Arrays.fill(this.indexMap, UNDECLARED);
+        this.dataStream = new ColumnarEventStream();
+        this.dataStream.setEventFactor(this.factor);
+        this.constraint = null;
+        if (constraints != null)
+            this.constraint = constraints.getConstraints(CONSTRAINT_MODE.LOAD);
+        this.batchSize = 0;
+        this.batchHasEnds = false;
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                String element = reader.getLocalName();
+                if (element.equals("event")) {
+                    readEvent(reader);
+                } else if (element.equals("event-type")) {
+                    readEventType(reader);
+                }
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("bad xml event stream: " + ex.getMessage(), ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                }
+            }
+        }
+        flush();
+        for (int id = 0; id < factor.getSize(); id++) {
+            if (id < votes.length && votes[id] > 0) factor.setVotesById(id, votes[id]);
+        }
+        dataStream.trimToSize();
+        IEventDataStream result = dataStream;
+        this.dataStream = null;
+        this.indexMap = null;
+        return result;
+    }
+
+    /**
+     * Declare an event type, &lt;event-type name="A" index="1"/&gt;.
+     */
+    private void readEventType(XMLStreamReader reader) throws IOException
+    {
+        String name = reader.getAttributeValue(null, "name");
+        String index = reader.getAttributeValue(null, "index");
+        if (name == null) throw error(reader, "event-type has no name");
+        int id = factor.put(name);
+        if (index == null) return;
+        int ix = parseIndex(reader, index);
+        if (ix >= indexMap.length) {
+            int length = indexMap.length;
+            indexMap = Arrays.copyOf(indexMap, Math.max(ix + 1, length * 2));
+            Arrays.fill(indexMap, length, indexMap.length, UNDECLARED);
+        }
+        indexMap[ix] = id;
+    }
+
+    /**
+     * Read an event, &lt;event index="1" start="12345.02" duration="12.0"/&gt;
+     * or &lt;event type="A" start="12345"/&gt;.
+     */
+    private void readEvent(XMLStreamReader reader) throws IOException
+    {
+        String start = reader.getAttributeValue(null, "start");
+        if (start == null) throw error(reader, "event has no start");
+        double startTime = parseTime(reader, start);
+        if (constraint != null && !TimeConstraint.check(constraint, startTime)) return;
+
+        int type;
+        String index = reader.getAttributeValue(null, "index");
+        if (index != null) {
+            int ix = parseIndex(reader, index);
+            type = (ix < indexMap.length) ? indexMap[ix] : UNDECLARED;
+            if (type == UNDECLARED) throw error(reader, "event index " + index + " is not declared");
+        } else {
+            String name = reader.getAttributeValue(null, "type");
+            if (name == null) throw error(reader, "event has neither type nor index");
+            type = factor.put(name);
+        }
+        String duration = reader.getAttributeValue(null, "duration");
+        double endTime = (duration == null)
+                ? Double.NaN : startTime + parseTime(reader, duration);
+
+        if (type >= votes.length) votes = Arrays.copyOf(votes, Math.max(type + 1, votes.length * 2));
+        votes[type]++;
+        batchTypes[batchSize] = type;
+        batchStarts[batchSize] = startTime;
+        batchEnds[batchSize] = endTime;
+        if (!Double.isNaN(endTime)) batchHasEnds = true;
+        if (++batchSize >= BATCH) flush();
+    }
+
+    private void flush()
+    {
+        dataStream.appendAll(batchTypes, batchStarts,
+                batchHasEnds ? batchEnds : null, null, batchSize);
+        batchSize = 0;
+        batchHasEnds = false;
+    }
+
+    private int parseIndex(XMLStreamReader reader, String value) throws IOException
+    {
+        try {
+            int ix = Integer.parseInt(value.trim());
+            if (ix >= 0) return ix;
+        } catch (NumberFormatException ex) {
+        }
+        throw error(reader, "bad event type index: " + value);
+    }
+
+    private double parseTime(XMLStreamReader reader, String value) throws IOException
+    {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException ex) {
+            throw error(reader, "bad time: " + value);
+        }
+    }
+
+    private IOException error(XMLStreamReader reader, String message)
+    {
+        Location location = reader.getLocation();
+        return new IOException("bad xml event stream: " + message
+                + " at line " + location.getLineNumber());
     }
 }
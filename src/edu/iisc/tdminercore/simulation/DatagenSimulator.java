@@ -6,7 +6,7 @@
  */
 package edu.iisc.tdminercore.simulation;
 
-import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventSink;
 import edu.iisc.tdminercore.util.IObserver;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -28,7 +28,7 @@ public class DatagenSimulator extends ISimulator
     public DatagenSimulator()
     {}
     
-    public void simulate(IEventDataStream dataStream, IObserver observer) throws IOException
+    public void simulate(IEventSink sink, IObserver observer) throws IOException
     {
         resetCount();
         int clock = 0, length = 0;
@@ -50,7 +50,7 @@ public class DatagenSimulator extends ISimulator
                 // Check if an episode event fires
                 if ((symbol = e.fire(clock)) != null)
                 {
-                    dataStream.add(symbol, new Double(clock) * deltaT);
+                    sink.add(symbol, new Double(clock) * deltaT);
                     flag = false;
                     length ++;
                 }
@@ -59,7 +59,7 @@ public class DatagenSimulator extends ISimulator
             {
                 symbol = noiseEventTypes[(int)(noiseEventTypes.length * 
                         Math.random())];
-                dataStream.add(symbol, new Double(clock) * deltaT);
+                sink.add(symbol, new Double(clock) * deltaT);
                 flag = false;
                 length ++;
             }
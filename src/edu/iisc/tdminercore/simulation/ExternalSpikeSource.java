@@ -1,185 +1,248 @@
 package edu.iisc.tdminercore.simulation;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import edu.iisc.tdminercore.reader.TdmEventStreamReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Class: ExternalSpikeSource
  *
+ * The stimulus file has a header of key = value lines (duration, repeat)
+ * closed by a line reading "end", followed by one spike time per line,
+ * each an offset into a period of the given duration.
+ * The spike times are loaded once, into a sorted array, when the source
+ * is created; a large file is read through a memory mapping.
+ * The periods are aligned to multiples of the duration, a repeating
+ * source fires in every period, otherwise only in the first period
+ * the simulation asks about.
+ *
+ * The simulators ask once a step for the spikes in [clock, clock+deltaT),
+ * a cursor into the array follows the clock so a step costs nothing
+ * when there is no spike; the spikes are placed in a buffer which is
+ * reused from step to step.
+ *
  * @author debprakash
  */
 public class ExternalSpikeSource {
-    
+
+    /** files larger than this are mapped rather than read */
+    static final long MAP_THRESHOLD = 1L << 20;
+
     private String fileName;
-    private ArrayList<Double> spikeTimes;
+    private double[] spikeTimes = new double[0];
     private double duration;
     private boolean repeats;
-    
-    private BufferedReader in;
-    private double lastSpike = -1;
-    private boolean isLoaded = false;
-    private int index = 0;
-    private int loopCount = 0;
-    private int callCount = 0;
-    private boolean start = true;
-    private double prevclock = 0.0;
-    
+
+    private long firstPeriod = Long.MIN_VALUE;
+    private long lastPeriod = Long.MIN_VALUE;
+    private double lastHigh = 0.0;
+    private int cursor = 0;
+
+    private double[] buffer = new double[16];
+    private int count = 0;
+
     public ExternalSpikeSource(String fileName)
     {
         this.fileName = fileName;
         try
         {
-            in = new BufferedReader(new FileReader(fileName));
-            String line = null;
-            // Get duration and repeat
-            while(true)
-            {
-                line = in.readLine();
-                if (line == null)
-                {
-                    in.close();
-                    throw new RuntimeException("Pre-mature termination of " + fileName);
-                }
-                line = line.trim();
-                if ("end".equalsIgnoreCase(line)) break;
-                String[] parts = line.split("=");
-                if (parts.length != 2) throw new RuntimeException("Invalid header in " + fileName);
-                String key = parts[0].trim();
-                String value = parts[1].trim();
-                if ("duration".equalsIgnoreCase(key))
-                {
-                    duration = Double.parseDouble(value);
-                }
-                else if ("repeat".equalsIgnoreCase(key))
-                {
-                    repeats = Boolean.parseBoolean(value);
-                    if (repeats)
-                    {
-                        spikeTimes = new ArrayList<Double>();
-                    }
-                }
-            }
+            load();
         }
         catch (IOException ioe)
         {
             ioe.printStackTrace();
-            in = null;
         }
     }
-    
-    public ArrayList<Double> getSpikes(double deltaT, double clock)
+
+    private void load() throws IOException
     {
-        int span = (int)((duration)/deltaT);
-        clock = (int)(clock/duration) * duration;
-        ArrayList<Double> t = new ArrayList<Double>();
-        int lastSpikeIndex = (int)((lastSpike)/deltaT) % span;
-        //System.out.println(lastSpike + "," + duration + "," + lastSpikeIndex + "," + callCount);
-        if (callCount == lastSpikeIndex || start)
+        FileInputStream in = new FileInputStream(fileName);
+        ByteBuffer data;
+        try
         {
-            if (!start) 
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length > MAP_THRESHOLD)
             {
-                t.add(prevclock + lastSpike);
-                lastSpike = -1;
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
             }
-            start = false;
-            if (isLoaded)
+            else
             {
-                if (repeats)
-                {
-                    while(true)
-                    {
-                        lastSpike = spikeTimes.get(index);
-                        prevclock = clock;
-                        int prev = index;
-                        index = (index + 1) % spikeTimes.size();
-                        lastSpikeIndex = (int)((lastSpike)/deltaT) % span;                        
-                        if (callCount == lastSpikeIndex && prev != index)
-                        {
-                            t.add(clock + lastSpike);
-                        }
-                        else
-                            break;
-                    }
-                }
+                data = ByteBuffer.allocate((int)length);
+                while (data.hasRemaining() && channel.read(data) >= 0) {}
+                data.flip();
             }
-            else
+        }
+        finally
+        {
+            in.close();
+        }
+
+        byte[] line = new byte[64];
+        boolean header = true;
+        double[] times = new double[1024];
+        int size = 0;
+        while (data.hasRemaining())
+        {
+            int length = 0;
+            while (data.hasRemaining())
+            {
+                byte b = data.get();
+                if (b == '\n') break;
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+            int from = 0;
+            while (from < length && (line[from] & 0xff) <= ' ') from++;
+            while (length > from && (line[length - 1] & 0xff) <= ' ') length--;
+            if (header)
+            {
+                if (length == from) continue;
+                header = !parseHeader(new String(line, from, length - from, "ISO-8859-1"));
+                continue;
+            }
+            if (length == from) continue;
+            if (size == times.length) times = Arrays.copyOf(times, size * 2);
+            times[size++] = TdmEventStreamReader.parseDouble(line, from, length);
+        }
+        if (header) throw new RuntimeException("Pre-mature termination of " + fileName);
+        this.spikeTimes = Arrays.copyOf(times, size);
+        Arrays.sort(this.spikeTimes);
+    }
+
+    /**
+     * @return true at the end of the header.
+     */
+    private boolean parseHeader(String line)
+    {
+        if ("end".equalsIgnoreCase(line)) return true;
+        String[] parts = line.split("=");
+        if (parts.length != 2) throw new RuntimeException("Invalid header in " + fileName);
+        String key = parts[0].trim();
+        String value = parts[1].trim();
+        if ("duration".equalsIgnoreCase(key))
+        {
+            duration = Double.parseDouble(value);
+        }
+        else if ("repeat".equalsIgnoreCase(key))
+        {
+            repeats = Boolean.parseBoolean(value);
+        }
+        return false;
+    }
+
+    /**
+     * Find the spikes in [clock, clock+deltaT).
+     * @return the number of spikes found, see {@link #spikeAt(int)}.
+     */
+    public int fillSpikes(double deltaT, double clock)
+    {
+        count = 0;
+        if (spikeTimes.length < 1 || !(duration > 0.0)) return 0;
+        long period = (long)Math.floor(clock / duration);
+        if (firstPeriod == Long.MIN_VALUE) firstPeriod = period;
+        if (!repeats && period != firstPeriod) return 0;
+
+        double base = period * duration;
+        double low = clock - base;
+        // a step which follows on from the last begins where it ended,
+        // so no spike is lost or repeated as the clock accumulates rounding
+        if (period == lastPeriod && Math.abs(low - lastHigh) < deltaT * 0.5)
+        {
+            low = lastHigh;
+        }
+        else if (period == lastPeriod + 1 && low < deltaT)
+        {
+            low = Math.min(low, lastHigh - duration);
+        }
+        double high = low + deltaT;
+        if (period == lastPeriod && low >= lastHigh - deltaT)
+        {
+            while (cursor < spikeTimes.length && spikeTimes[cursor] < low) cursor++;
+        }
+        else
+        {
+            cursor = lowerBound(low);
+        }
+        lastPeriod = period;
+        lastHigh = high;
+
+        for (int ix = cursor; ix < spikeTimes.length && spikeTimes[ix] < high; ix++)
+        {
+            append(base + spikeTimes[ix]);
+        }
+        // the step runs over the end of the period into the next
+        if (high > duration && repeats)
+        {
+            for (int ix = 0; ix < spikeTimes.length && spikeTimes[ix] < high - duration; ix++)
             {
-                String line = null;
-                while(true)
-                {
-                    try
-                    {
-                        line = in.readLine();
-                        if (line == null)
-                        {
-                            in.close();
-                            isLoaded = true;
-                            if (repeats) 
-                            {
-                                while(true)
-                                {
-                                    lastSpike = spikeTimes.get(index);
-                                    prevclock = clock;
-                                    int prev = index;
-                                    index = (index + 1) % spikeTimes.size();
-                                    lastSpikeIndex = (int)((lastSpike)/deltaT) % span;
-                                    if (callCount == lastSpikeIndex && prev != index)
-                                    {
-                                        t.add(clock + lastSpike);
-                                    }
-                                    else
-                                        break;
-                                }
-                            }
-                            break;
-                        }
-                        else
-                        {
-                            lastSpike = Double.parseDouble(line);
-                            prevclock = clock;
-                            lastSpikeIndex = (int)((lastSpike)/deltaT) % span;
-                            if (repeats)
-                            {
-                                spikeTimes.add(lastSpike);
-                            }
-                            if (callCount == lastSpikeIndex)
-                            {
-                                t.add(clock + lastSpike);
-                            }
-                            else
-                                break;
-                        }
-                    }
-                    catch (IOException ex)
-                    {
-                        throw new RuntimeException("Unable to read = " + fileName, ex);
-                    }
-                }
+                append(base + duration + spikeTimes[ix]);
             }
         }
-        callCount ++;
-        if (callCount == span)
+        return count;
+    }
+
+    private void append(double spike)
+    {
+        if (count == buffer.length) buffer = Arrays.copyOf(buffer, count * 2);
+        buffer[count++] = spike;
+    }
+
+    /**
+     * @return a spike found by the last call to fillSpikes.
+     */
+    public double spikeAt(int ix)
+    {
+        if (ix >= count) throw new IndexOutOfBoundsException("Index: " + ix + ", Size: " + count);
+        return buffer[ix];
+    }
+
+    /**
+     * @return the first position whose spike time is not before the offset.
+     */
+    private int lowerBound(double offset)
+    {
+        int low = 0;
+        int high = spikeTimes.length;
+        while (low < high)
         {
-            callCount = 0;
-            loopCount ++;
+            int mid = (low + high) >>> 1;
+            if (spikeTimes[mid] < offset) low = mid + 1;
+            else high = mid;
         }
+        return low;
+    }
+
+    /**
+     * The spikes in [clock, clock+deltaT) as a new list,
+     * the simulators use {@link #fillSpikes(double, double)}.
+     */
+    public ArrayList<Double> getSpikes(double deltaT, double clock)
+    {
+        int n = fillSpikes(deltaT, clock);
+        ArrayList<Double> t = new ArrayList<Double>(n);
+        for (int ix = 0; ix < n; ix++) t.add(buffer[ix]);
         return t;
     }
-    
+
     public static void main(String[] args)
     {
-        ExternalSpikeSource es = new ExternalSpikeSource("ext-spike-input.txt");
-        
+        ExternalSpikeSource es = new ExternalSpikeSource(
+                (args.length > 0) ? args[0] : "ext-spike-input.txt");
+
         double clock = 0.0;
         double deltaT = 0.001;
         for(int i = 0; i < 100000; i++)
         {
-            final ArrayList<Double> spikes = es.getSpikes(deltaT, clock);
-            if (spikes.size() > 0)
+            int spikes = es.fillSpikes(deltaT, clock);
+            if (spikes > 0)
             {
-                System.out.printf("%.3f %s\n", clock,spikes);
+                System.out.printf("%.3f %s\n", clock,
+                        Arrays.toString(Arrays.copyOf(es.buffer, spikes)));
             }
             clock += deltaT;
         }
@@ -12,9 +12,12 @@ package edu.iisc.tdminercore.simulation;
 import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.IEpisode;
 import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventSink;
 import edu.iisc.tdminercore.reader.FileEventDataStream;
 import edu.iisc.tdminercore.reader.SimulatedEventDataStream;
+import edu.iisc.tdminercore.util.BinaryEventStreamSink;
 import edu.iisc.tdminercore.util.IObserver;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -47,7 +50,10 @@ public abstract class ISimulator
     {
         return eventStream;
     }
-    public abstract void simulate(IEventDataStream dataStream, IObserver observer) throws IOException;
+    /**
+     * Generate the events into the sink, which may be an event stream.
+     */
+    public abstract void simulate(IEventSink sink, IObserver observer) throws IOException;
     
     public void setEventFactor(EventFactor eventTypes)
     {
@@ -94,6 +100,24 @@ public abstract class ISimulator
     }
     
     
+    /**
+     * Simulate straight to a ".tdmb" file.
+     * The events are written as they are generated rather than gathered
+     * in memory, so the length of the run is bounded by the disk.
+     * The simulated events are instantaneous so no end times are written.
+     * The event stream of the simulator is left unchanged.
+     */
+    public void simulate(File file, IObserver observer) throws IOException
+    {
+        if (eventTypes != null) eventTypes.resetCounts();
+        BinaryEventStreamSink sink = new BinaryEventStreamSink(file, eventTypes);
+        try {
+            simulate(sink, observer);
+        } finally {
+            sink.close();
+        }
+    }
+
     /** 
      * Use this method when you are willing to wait for the result
      * @return the generate event data stream.
@@ -3,7 +3,7 @@ package edu.iisc.tdminercore.simulation;
 import edu.iisc.tdminercore.data.ComboEpisode;
 import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.IEpisode;
-import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventSink;
 import edu.iisc.tdminercore.util.IObserver;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -239,7 +239,7 @@ public class IzhikevichModel extends NetworkBasedSimulator implements Serializab
      * The clock starts at zero and advances to N.
      * At each tick of the clock a set of spikes are generated.
      */
-    public void simulate(IEventDataStream dataStream, IObserver observer) throws IOException
+    public void simulate(IEventSink sink, IObserver observer) throws IOException
     {
         NumberFormat nf = NumberFormat.getInstance();
         nf.setMaximumFractionDigits(3);
@@ -273,8 +273,7 @@ public class IzhikevichModel extends NetworkBasedSimulator implements Serializab
             // Externally driven source feeds input to receiver neurons
             for(ExternalStimulator estim : externalStimulatorList)
             {
-                List<Double> ftimes = estim.getExternalSource().getSpikes(deltaT, clock);
-                int nfired = ftimes.size();
+                int nfired = estim.getExternalSource().fillSpikes(deltaT, clock);
                 if (nfired > 0)
                 {
                     for (int i = 0; i < size; i++)
@@ -319,10 +318,11 @@ public class IzhikevichModel extends NetworkBasedSimulator implements Serializab
                 else
                 {
                     // Processing external input
-                    List<Double> ftimes = neuron.getExternalSource().getSpikes(deltaT, clock);
-                    for (int j = 0; j < ftimes.size(); j++)
+                    ExternalSpikeSource source = neuron.getExternalSource();
+                    int nspikes = source.fillSpikes(deltaT, clock);
+                    for (int j = 0; j < nspikes; j++)
                     {
-                        spikeTimes.add(new Spike(i, ftimes.get(i)));
+                        spikeTimes.add(new Spike(i, source.spikeAt(j)));
                         nfired ++;
                     }
                 }
@@ -342,7 +342,7 @@ public class IzhikevichModel extends NetworkBasedSimulator implements Serializab
                 }
                 Double start = new Double(t);
                 Double end = null;
-                dataStream.add(event, start, end);
+                sink.add(event, start, end);
                 count ++;
                 // Feed input to receiver neurons
                 for (int j = 0; j < size; j++)
@@ -12,7 +12,7 @@ package edu.iisc.tdminercore.simulation;
 import edu.iisc.tdminercore.data.ComboEpisode;
 import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.IEpisode;
-import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventSink;
 import edu.iisc.tdminercore.util.IObserver;
 import edu.iisc.tdminercore.util.RandomVariableGen;
 import java.io.BufferedReader;
@@ -192,7 +192,7 @@ public class PoissonSimulator2
      * At each tick of the clock a set of spikes are generated.
      */
     @Override
-    public void simulate(IEventDataStream dataStream, IObserver observer) throws IOException
+    public void simulate(IEventSink sink, IObserver observer) throws IOException
     {
         NumberFormat nf = NumberFormat.getInstance();
         nf.setMaximumFractionDigits(3);
@@ -255,7 +255,7 @@ public class PoissonSimulator2
                 }
                 Double start = new Double(t);
                 Double end = null;
-                dataStream.add(event, start, end);
+                sink.add(event, start, end);
                 count ++;
             }
 
@@ -5,8 +5,12 @@ import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.IEpisode;
 import edu.iisc.tdminercore.data.IEvent;
 import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.IEventSink;
+import edu.iisc.tdminercore.reader.SimulatedEventDataStream;
+import edu.iisc.tdminercore.util.BinaryEventStreamWriter;
 import edu.iisc.tdminercore.util.IObserver;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.NumberFormat;
@@ -84,8 +88,41 @@ public class RigatSimulator extends NetworkBasedSimulator
         }
     }
     
+    /**
+     * The voltages are computed from the events already generated,
+     * so the run is gathered in memory and then written.
+     */
     @Override
-    public void simulate(IEventDataStream dataStream, IObserver observer) throws IOException
+    public void simulate(File file, IObserver observer) throws IOException
+    {
+        if (eventTypes != null) eventTypes.resetCounts();
+        SimulatedEventDataStream dataStream = new SimulatedEventDataStream();
+        if (eventTypes != null) dataStream.setEventFactor(eventTypes);
+        run(dataStream, observer);
+        BinaryEventStreamWriter.instance().write(file, dataStream);
+    }
+
+    /**
+     * A sink which cannot be read back is given the events
+     * once the run is complete.
+     */
+    @Override
+    public void simulate(IEventSink sink, IObserver observer) throws IOException
+    {
+        if (sink instanceof IEventDataStream) {
+            run((IEventDataStream)sink, observer);
+            return;
+        }
+        SimulatedEventDataStream dataStream = new SimulatedEventDataStream();
+        run(dataStream, observer);
+        EventFactor factor = dataStream.getEventFactor();
+        for (int ix = 0; ix < dataStream.getSize(); ix++) {
+            IEvent event = dataStream.get(ix);
+            sink.add(factor.getName(event.getEventType()), event.getStartTime());
+        }
+    }
+
+    private void run(IEventDataStream dataStream, IObserver observer) throws IOException
     {
         NumberFormat nf = NumberFormat.getInstance();
         nf.setMaximumFractionDigits(3);
@@ -28,6 +28,7 @@ public abstract class AbstractObserver implements IObserver
     private boolean interruption;
     
     private CONSTRAINT_MODE constraintMode;
+    private IEventDataStream markedSequence = null;
     
     /** Creates a new instance of MarkingObserver */
     public AbstractObserver( ) {
@@ -55,17 +56,18 @@ public abstract class AbstractObserver implements IObserver
     public void startup() { this.value = 0; }
     public void shutdown() {}
     
-    protected void markEvents( List<IEvent> events ) {
-        for( IEvent event : events ) {
-            if (!event.hasActiveMarker()) {
-                event.setMarker(new Integer(1));
-                continue;
-            }
-            Object obj = event.getMarker();
-            if (!(obj instanceof Integer)) continue;
-            Integer marker = (Integer)obj;
-            marker++;
-        }
+    /**
+     * The stream whose events are marked as episode instances complete.
+     * When there is none the events are not marked.
+     * It is looked up each time events are marked.
+     */
+    public void setMarkedSequence(IEventDataStream sequence) { this.markedSequence = sequence; }
+    public IEventDataStream getMarkedSequence() { return this.markedSequence; }
+    
+    protected void markEvents( int episodeIndex, List<IEvent> events ) {
+        IEventDataStream sequence = getMarkedSequence();
+        if (sequence == null) return;
+        sequence.markEvents(events, episodeIndex);
     }
 
     public void taskStarted() { }
@@ -0,0 +1,189 @@
+/*
+ * BinaryEventStreamSink.java
+ *
+ */
+
+package edu.iisc.tdminercore.util;
+
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.IEventSink;
+import edu.iisc.tdminercore.reader.BinaryEventStreamReader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Events which go straight to a ".tdmb" file.
+ * The events are encoded into a large buffer as they are added and the
+ * buffer is written out through a file channel whenever it fills,
+ * so a simulation may be dumped without holding its events in memory
+ * and without formatting each event as text.
+ *
+ * Room is left for a header naming the event types of the factor,
+ * and the header is filled in when the sink is closed.
+ * Should more types be named along the way the records are moved up
+ * once to make room for them.
+ * Whether the records carry an end time is settled when the sink is
+ * opened, as for {@link BinaryEventStreamWriter} the times are
+ * shifted by {@link EventStreamWriter#offset}.
+ *
+ * @see edu.iisc.tdminercore.simulation.ISimulator#simulate(File, IObserver)
+ */
+public class BinaryEventStreamSink implements IEventSink, Closeable
+{
+    private final File file;
+    private final RandomAccessFile out;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final EventFactor eventTypes;
+    private final boolean durations;
+    private final int recordSize;
+    private final int reserved;
+    private final double offset = EventStreamWriter.offset;
+    private long[] counts = new long[16];
+    private int size = 0;
+    private int sourceid = 0;
+    private double sequenceStart = -1;
+    private double sequenceEnd = -1;
+    private boolean sorted = true;
+    private boolean closed = false;
+
+    public BinaryEventStreamSink(File file) throws IOException
+    {
+        this(file, null, false);
+    }
+
+    public BinaryEventStreamSink(File file, EventFactor factor) throws IOException
+    {
+        this(file, factor, false);
+    }
+
+    /**
+     * @param factor the event types, further types are added to it as they
+     *   are named; if null a new factor is begun
+     * @param durations true if the records carry an end time
+     */
+    public BinaryEventStreamSink(File file, EventFactor factor, boolean durations) throws IOException
+    {
+        this.file = file;
+        this.eventTypes = (factor == null) ? new EventFactor() : factor;
+        this.durations = durations;
+        int flags = durations ? BinaryEventStreamReader.FLAG_DURATIONS : 0;
+        this.recordSize = BinaryEventStreamReader.recordSize(flags);
+        this.reserved = BinaryEventStreamWriter.headerLength(eventTypes);
+        this.out = new RandomAccessFile(file, "rw");
+        this.out.setLength(0);
+        this.channel = out.getChannel();
+        this.channel.position(reserved);
+        this.buffer = ByteBuffer.allocateDirect(BinaryEventStreamWriter.BUFFER_SIZE);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * Write the header in front of the records.
+     * The sink may not be added to once it is closed.
+     */
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try {
+            BinaryEventStreamWriter.drain(channel, buffer);
+            long records = (long)size * recordSize;
+            int length = BinaryEventStreamWriter.headerLength(eventTypes);
+            if (length != reserved) {
+                move(reserved, length, records);
+                out.setLength(length + records);
+            }
+            int flags = BinaryEventStreamReader.FLAG_STATS;
+            if (durations) flags |= BinaryEventStreamReader.FLAG_DURATIONS;
+            if (sorted) flags |= BinaryEventStreamReader.FLAG_SORTED;
+            double statsOffset = (size > 0) ? offset : 0.0;
+            channel.position(0);
+            BinaryEventStreamWriter.putHeader(channel, buffer, eventTypes, flags,
+                    size, sequenceStart + statsOffset, sequenceEnd + statsOffset, counts);
+            BinaryEventStreamWriter.drain(channel, buffer);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Move the bytes [from, from + length) of the file to begin at 'to',
+     * copying from the far end first when moving them up.
+     */
+    private void move(long from, long to, long length) throws IOException
+    {
+        for (long done = 0; done < length; ) {
+            int chunk = (int)Math.min(buffer.capacity(), length - done);
+            long at = (to > from) ? length - done - chunk : done;
+            buffer.clear();
+            buffer.limit(chunk);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + at + buffer.position()) < 0) {
+                    throw new EOFException("the records of " + file + " are incomplete");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, to + at + buffer.position());
+            }
+            done += chunk;
+        }
+        buffer.clear();
+    }
+
+    private void append(int type, double start, double end, int key)
+    {
+        if (closed) throw new IllegalStateException("the event stream " + file + " is closed");
+        if (end >= 0 && !durations) {
+            throw new IllegalArgumentException("the event stream " + file + " has no end times");
+        }
+        if (size > 0 && start < sequenceEnd) sorted = false;
+        if (size == 0) sequenceStart = start;
+        sequenceEnd = start;
+        if (type >= counts.length) counts = Arrays.copyOf(counts, Math.max(type + 1, counts.length * 2));
+        if (type >= 0) counts[type]++;
+        eventTypes.incrById(type);
+        try {
+            if (buffer.remaining() < recordSize) BinaryEventStreamWriter.drain(channel, buffer);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write " + file
+                    + ": " + ex.getMessage(), ex);
+        }
+        buffer.putInt(type);
+        buffer.putDouble(start + offset);
+        if (durations) buffer.putDouble((end < 0) ? Double.NaN : end + offset);
+        buffer.putLong((key < 0) ? sourceid++ : key);
+        size++;
+    }
+
+    public void add(String eventName, Double start, Double end, Integer key)
+    {
+        int eventIndex = this.eventTypes.put(eventName);
+        append(eventIndex, start.doubleValue(),
+                (end == null) ? -1.0 : end.doubleValue(),
+                (key == null) ? -1 : key.intValue());
+    }
+    public void add(String event, Double start) { add(event, start, null, null); }
+    public void add(String event, Double start, Double end) { add(event, start, end, null); }
+
+    public int getSize() { return size; }
+    public EventFactor getEventFactor() { return eventTypes; }
+    public double getSequenceStart() { return sequenceStart; }
+    public double getSequenceEnd() { return sequenceEnd; }
+
+    /**
+     * @return true if the events have so far been added in time order.
+     */
+    public boolean isSorted() { return sorted; }
+}
@@ -0,0 +1,187 @@
+/*
+ * BinaryEventStreamWriter.java
+ *
+ */
+
+package edu.iisc.tdminercore.util;
+
+import edu.iisc.tdminercore.data.ColumnarEventStream;
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.IEventDataStream;
+import edu.iisc.tdminercore.data.InstEvent;
+import edu.iisc.tdminercore.reader.BinaryEventStreamReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an event stream in the ".tdmb" binary format.
+ * The format is described in {@link BinaryEventStreamReader}.
+ *
+ * @see EventStreamWriter
+ */
+public class BinaryEventStreamWriter
+{
+    private static BinaryEventStreamWriter instance = new BinaryEventStreamWriter();
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** Creates a new instance of BinaryEventStreamWriter */
+    private BinaryEventStreamWriter()
+    {
+    }
+
+    public static BinaryEventStreamWriter instance()
+    {
+        return instance;
+    }
+
+    public void write(File outfile, IEventDataStream sequence) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(outfile);
+        try {
+            write(out.getChannel(), sequence);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(FileChannel channel, IEventDataStream sequence) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        EventFactor factor = sequence.getEventFactor();
+        Stats stats = new Stats(sequence, factor);
+        boolean durations = stats.durations;
+        int flags = BinaryEventStreamReader.FLAG_STATS;
+        if (durations) flags |= BinaryEventStreamReader.FLAG_DURATIONS;
+        if (stats.sorted) flags |= BinaryEventStreamReader.FLAG_SORTED;
+        int recordSize = BinaryEventStreamReader.recordSize(flags);
+        double offset = EventStreamWriter.offset;
+
+        double statsOffset = (sequence.getSize() > 0) ? offset : 0.0;
+        putHeader(channel, buffer, factor, flags, sequence.getSize(),
+                stats.first + statsOffset, stats.last + statsOffset, stats.counts);
+
+        if (sequence instanceof ColumnarEventStream) {
+            ColumnarEventStream columns = (ColumnarEventStream)sequence;
+            for(int ix = 0; ix < columns.getSize(); ix++) {
+                if (buffer.remaining() < recordSize) drain(channel, buffer);
+                buffer.putInt(columns.typeAt(ix));
+                buffer.putDouble(columns.startAt(ix) + offset);
+                if (durations) {
+                    buffer.putDouble(columns.isInstantAt(ix)
+                            ? Double.NaN : columns.endAt(ix) + offset);
+                }
+                buffer.putLong(columns.sourceIdAt(ix));
+            }
+        }
+        else {
+            for(int ix = 0; ix < sequence.getSize(); ix++) {
+                IEvent event = sequence.get(ix);
+                if (buffer.remaining() < recordSize) drain(channel, buffer);
+                buffer.putInt(event.getEventType());
+                buffer.putDouble(event.getStartTime() + offset);
+                if (durations) {
+                    buffer.putDouble((event instanceof InstEvent)
+                            ? Double.NaN : event.getEndTime() + offset);
+                }
+                buffer.putLong(event.getSourceId());
+            }
+        }
+        drain(channel, buffer);
+    }
+
+    /**
+     * Encode the header, with statistics, into the buffer,
+     * draining the buffer to the channel as it fills.
+     * @param counts the number of occurrences indexed by event type id
+     */
+    static void putHeader(FileChannel channel, ByteBuffer buffer, EventFactor factor, int flags,
+            long size, double first, double last, long[] counts) throws IOException
+    {
+        buffer.putInt(BinaryEventStreamReader.MAGIC);
+        buffer.putInt(BinaryEventStreamReader.VERSION);
+        buffer.putInt(flags);
+        buffer.putInt(factor.getSize());
+        for(EventFactor.EventType type : factor) {
+            byte[] name = type.name.getBytes("UTF-8");
+            if (buffer.remaining() < name.length + 8) drain(channel, buffer);
+            buffer.putInt(type.id);
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+        if (buffer.remaining() < 24) drain(channel, buffer);
+        buffer.putLong(size);
+        buffer.putDouble(first);
+        buffer.putDouble(last);
+        for(EventFactor.EventType type : factor) {
+            if (buffer.remaining() < 8) drain(channel, buffer);
+            buffer.putLong(type.id >= 0 && type.id < counts.length ? counts[type.id] : 0);
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #putHeader} encodes for the factor.
+     */
+    static int headerLength(EventFactor factor) throws IOException
+    {
+        int length = 16;
+        for(EventFactor.EventType type : factor) {
+            length += 8 + type.name.getBytes("UTF-8").length;
+        }
+        return length + 24 + 8 * factor.getSize();
+    }
+
+    /**
+     * The statistics recorded in the header, gathered in one pass.
+     */
+    private static class Stats
+    {
+        boolean durations = false;
+        boolean sorted = true;
+        double first = -1;
+        double last = -1;
+        long[] counts;
+
+        Stats(IEventDataStream sequence, EventFactor factor)
+        {
+            this.counts = new long[factor.getMaximumId() + 1];
+            ColumnarEventStream columns = (sequence instanceof ColumnarEventStream)
+                    ? (ColumnarEventStream)sequence : null;
+            double prior = Double.NEGATIVE_INFINITY;
+            for(int ix = 0; ix < sequence.getSize(); ix++) {
+                int type;
+                double start;
+                if (columns != null) {
+                    type = columns.typeAt(ix);
+                    start = columns.startAt(ix);
+                    if (!columns.isInstantAt(ix)) durations = true;
+                } else {
+                    IEvent event = sequence.get(ix);
+                    type = event.getEventType();
+                    start = event.getStartTime();
+                    if (!(event instanceof InstEvent)) durations = true;
+                }
+                if (type >= 0 && type < counts.length) counts[type]++;
+                if (start < prior) sorted = false;
+                prior = start;
+                if (ix == 0) first = start;
+                last = start;
+            }
+        }
+    }
+
+    static void drain(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
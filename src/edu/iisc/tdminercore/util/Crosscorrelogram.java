@@ -9,7 +9,7 @@
 
 package edu.iisc.tdminercore.util;
 
-import edu.iisc.tdminercore.data.IEvent;
+import edu.iisc.tdminercore.data.EventTypeIndex;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import java.text.NumberFormat;
 
@@ -61,61 +61,43 @@ public class Crosscorrelogram
 	return ret;
     }
 
+    /**
+     * The histogram counts, for every time bin holding a reference event,
+     * the bins within bins/2 of it which hold a target event.
+     * The bins are visited through the stream's event type index so only
+     * the reference and target events are looked at.
+     */
     public int[] computeHist(final double binwidth, final int iTarget, final IEventDataStream sequence, 
             final int iRef, final int bins)
     {
         int[] hist = new int[bins];
         if (iRef > -1 && iTarget > -1)
         {
-            System.out.println("processing started");
-            int len = (int)((sequence.getSequenceEnd() - sequence.getSequenceStart())/binwidth) + 2;
-            int start = (int)(sequence.getSequenceStart()/binwidth);
+            EventTypeIndex index = sequence.getTypeIndex();
+            int half = bins/2;
+            int refCount = index.count(iRef);
+            int targetCount = index.count(iTarget);
             
-            System.out.println("iRef = " + iRef + " iTarget = " + iTarget +" Len = " + len + " Start = " + start);
-            char[] A = new char[len];
-            char[] B = new char[len];
-            
-            
-            System.out.println("Sequence opened");
-            for(IEvent event : sequence.iterable(null))
+            long lastRefBin = Long.MIN_VALUE;
+            for (int r = 0; r < refCount; r++)
             {
-                int E_i = 0, t_i = 0;
-                try
-                {
-                    E_i = event.getEventType();
-                    t_i = (int)(event.getStartTime()/binwidth);
-                    if (E_i == iRef) A[t_i - start] = 1;
-                    if (E_i == iTarget) B[t_i - start] = 1;
-                }
-                catch(ArrayIndexOutOfBoundsException e)
+                long i = (long)(index.timeAt(iRef, r)/binwidth);
+                if (i == lastRefBin) continue;
+                lastRefBin = i;
+                
+                // back off one bin so that rounding cannot skip a target
+                int t = index.lowerBound(iTarget, (i - half - 1) * binwidth);
+                long lastTargetBin = Long.MIN_VALUE;
+                for (; t < targetCount; t++)
                 {
-                    System.out.println("E_i = " + E_i);
-                    System.out.println("t_i = " + t_i);
-                    System.out.println("iRef = " + iRef);
-                    System.out.println("iTarget = " + iTarget);
-                    System.out.println("start = " + start);
-                    System.out.println("binwidth = " + binwidth);
-                    System.out.println("len = " + len);
-                    throw e;
+                    long j = (long)(index.timeAt(iTarget, t)/binwidth);
+                    if (j < i - half) continue;
+                    if (j > i + half) break;
+                    if (j == lastTargetBin) continue;
+                    lastTargetBin = j;
+                    hist[(int)(j - i) + half] ++;
                 }
             }
-            System.out.println("Sequence parsed");
-            
-            for (int i = 0; i < len; i++)
-            {
-        	if (A[i] == 1)
-        	{
-        	    int k = 0;
-        	    for (int j = i - bins/2; j <= i + bins/2; j++)
-        	    {
-        		if (j >= 0 && j < len)
-        		{
-        		    if (B[j] == 1) hist[k] ++;
-        		}
-        		k++;
-        	    }
-        	}
-            }
             System.out.println("Correlogram constructed");
         }
         else
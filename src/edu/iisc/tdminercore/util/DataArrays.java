@@ -0,0 +1,59 @@
+/*
+ * DataArrays.java
+ *
+ */
+
+package edu.iisc.tdminercore.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Arrays of primitives on binary data streams.
+ * An array is written as its length, -1 if null, and its elements.
+ */
+public class DataArrays
+{
+    private DataArrays()
+    {
+    }
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException
+    {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    public static int[] readInts(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) return null;
+        int[] values = new int[length];
+        for (int ix = 0; ix < length; ix++) values[ix] = in.readInt();
+        return values;
+    }
+
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException
+    {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (double value : values) out.writeDouble(value);
+    }
+
+    public static double[] readDoubles(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) return null;
+        double[] values = new double[length];
+        for (int ix = 0; ix < length; ix++) values[ix] = in.readDouble();
+        return values;
+    }
+}
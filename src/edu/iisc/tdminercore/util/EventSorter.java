@@ -0,0 +1,176 @@
+/*
+ * EventSorter.java
+ *
+ */
+
+package edu.iisc.tdminercore.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts events by their keys held in primitive arrays,
+ * the start time and then the end time.
+ * The result is the order in which the events are to be placed,
+ * so the caller moves each event only once.
+ * The sort is a stable merge sort, large inputs are sorted in parallel,
+ * the halves being sorted on a fork-join pool before they are merged.
+ * When a leading run of the keys is known to be in order only the
+ * remainder is sorted, it is then merged with the run in a linear pass.
+ *
+ * An end time which is NaN, or a missing end array, stands for an end
+ * equal to the start time.
+ */
+public class EventSorter
+{
+    /** below this size a range is sorted in the calling thread */
+    static final int THRESHOLD = 1 << 13;
+
+    private static ForkJoinPool pool = null;
+
+    private EventSorter()
+    {
+    }
+
+    private static synchronized ForkJoinPool pool()
+    {
+        if (pool == null) pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * Check, in a single pass, whether the keys are already in order.
+     */
+    public static boolean isSorted(double[] starts, double[] ends, int size)
+    {
+        for(int ix = 1; ix < size; ix++) {
+            if (compare(starts, ends, ix - 1, ix) > 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Extend a leading run of keys known to be in order.
+     * @param from the length of the run already known
+     * @return the length of the leading run of keys in order
+     */
+    public static int sortedPrefix(double[] starts, double[] ends, int from, int size)
+    {
+        for(int ix = Math.max(from, 1); ix < size; ix++) {
+            if (compare(starts, ends, ix - 1, ix) > 0) return ix;
+        }
+        return size;
+    }
+
+    /**
+     * @return the permutation which sorts the keys,
+     *   position 'ix' is to receive the event at position 'order[ix]'.
+     */
+    public static int[] order(double[] starts, double[] ends, int size)
+    {
+        return order(starts, ends, 0, size);
+    }
+
+    /**
+     * @param sortedTo the keys before this position are known to be in order
+     * @return the permutation which sorts the keys,
+     *   position 'ix' is to receive the event at position 'order[ix]'.
+     */
+    public static int[] order(double[] starts, double[] ends, int sortedTo, int size)
+    {
+        int tailSize = size - sortedTo;
+        int[] tail = new int[tailSize];
+        for(int ix = 0; ix < tailSize; ix++) tail[ix] = sortedTo + ix;
+        int[] work = new int[tailSize];
+        if (tailSize <= THRESHOLD || Runtime.getRuntime().availableProcessors() < 2) {
+            mergeSort(starts, ends, tail, work, 0, tailSize);
+        } else {
+            pool().invoke(new SortTask(starts, ends, tail, work, 0, tailSize));
+        }
+        if (sortedTo < 1) return tail;
+
+        // the leading run holds the positions 0 .. sortedTo-1 in order
+        int[] order = new int[size];
+        int lx = 0, rx = 0, ox = 0;
+        while (lx < sortedTo && rx < tailSize) {
+            order[ox++] = (compare(starts, ends, tail[rx], lx) < 0) ? tail[rx++] : lx++;
+        }
+        while (lx < sortedTo) order[ox++] = lx++;
+        while (rx < tailSize) order[ox++] = tail[rx++];
+        return order;
+    }
+
+    private static int compare(double[] starts, double[] ends, int lhs, int rhs)
+    {
+        if (starts[lhs] < starts[rhs]) return -1;
+        if (starts[lhs] > starts[rhs]) return 1;
+        if (ends == null) return 0;
+        double lend = Double.isNaN(ends[lhs]) ? starts[lhs] : ends[lhs];
+        double rend = Double.isNaN(ends[rhs]) ? starts[rhs] : ends[rhs];
+        if (lend < rend) return -1;
+        if (lend > rend) return 1;
+        return 0;
+    }
+
+    private static void mergeSort(double[] starts, double[] ends,
+            int[] order, int[] work, int low, int high)
+    {
+        if (high - low < 2) return;
+        int mid = (low + high) >>> 1;
+        mergeSort(starts, ends, order, work, low, mid);
+        mergeSort(starts, ends, order, work, mid, high);
+        merge(starts, ends, order, work, low, mid, high);
+    }
+
+    /**
+     * Merge the sorted runs [low, mid) and [mid, high),
+     * taking from the left run on ties to keep the sort stable.
+     */
+    private static void merge(double[] starts, double[] ends,
+            int[] order, int[] work, int low, int mid, int high)
+    {
+        if (compare(starts, ends, order[mid - 1], order[mid]) <= 0) return;
+
+        System.arraycopy(order, low, work, low, high - low);
+        int lx = low, rx = mid, ox = low;
+        while (lx < mid && rx < high) {
+            order[ox++] = (compare(starts, ends, work[rx], work[lx]) < 0)
+                    ? work[rx++] : work[lx++];
+        }
+        while (lx < mid) order[ox++] = work[lx++];
+        while (rx < high) order[ox++] = work[rx++];
+    }
+
+    private static class SortTask extends RecursiveAction
+    {
+        private final double[] starts;
+        private final double[] ends;
+        private final int[] order;
+        private final int[] work;
+        private final int low;
+        private final int high;
+
+        SortTask(double[] starts, double[] ends, int[] order, int[] work, int low, int high)
+        {
+            this.starts = starts;
+            this.ends = ends;
+            this.order = order;
+            this.work = work;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (high - low <= THRESHOLD) {
+                mergeSort(starts, ends, order, work, low, high);
+                return;
+            }
+            int mid = (low + high) >>> 1;
+            invokeAll(new SortTask(starts, ends, order, work, low, mid),
+                    new SortTask(starts, ends, order, work, mid, high));
+            merge(starts, ends, order, work, low, mid, high);
+        }
+    }
+}
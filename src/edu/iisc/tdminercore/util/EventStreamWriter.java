@@ -9,13 +9,19 @@
 
 package edu.iisc.tdminercore.util;
 
+import edu.iisc.tdminercore.data.ColumnarEventStream;
+import edu.iisc.tdminercore.data.EventFactor;
 import edu.iisc.tdminercore.data.GeneralEvent;
 import edu.iisc.tdminercore.data.IEvent;
 import edu.iisc.tdminercore.data.IEventDataStream;
 import edu.iisc.tdminercore.data.InstEvent;
+import edu.iisc.tdminercore.reader.BinaryEventStreamReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  *
@@ -25,6 +31,8 @@ public class EventStreamWriter
 {
     private static EventStreamWriter instance = new EventStreamWriter();
     public static double offset = 0;
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final String NEWLINE = System.getProperty("line.separator");
     /** Creates a new instance of EventStreamWriter */
     private EventStreamWriter()
     {
@@ -35,29 +43,79 @@ public class EventStreamWriter
         return instance;
     }
     
+    /**
+     * Write the events as text, one per line, or in the binary format
+     * when the file is named as a ".tdmb" file.
+     * The lines are built in a large buffer rather than formatted one by one.
+     */
     public void write(File outfile, IEventDataStream sequence) throws IOException
     {
-        PrintWriter out = new PrintWriter(outfile);
-        
-        if (sequence != null)
+        if (BinaryEventStreamReader.isBinary(outfile.getName())) {
+            BinaryEventStreamWriter.instance().write(outfile, sequence);
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(outfile)), BUFFER_SIZE);
+        try {
+            if (sequence != null) write(out, sequence);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write(Writer out, IEventDataStream sequence) throws IOException
+    {
+        EventFactor factor = sequence.getEventFactor();
+        String[] names = new String[Math.max(factor.getMaximumId() + 1, 0)];
+        for(EventFactor.EventType type : factor) {
+            if (type.id >= 0) names[type.id] = type.name;
+        }
+        if (sequence instanceof ColumnarEventStream)
+        {
+            ColumnarEventStream columns = (ColumnarEventStream)sequence;
+            for(int ix = 0; ix < columns.getSize(); ix++)
+            {
+                writeLine(out, names[columns.typeAt(ix)], columns.startAt(ix) + offset,
+                        columns.isInstantAt(ix) ? Double.NaN : columns.endAt(ix) + offset);
+            }
+            return;
+        }
+        for(IEvent event : sequence.iterable(null))
         {
-            for(IEvent event : sequence.iterable(null))
+            int E_i = event.getEventType();
+            double t_start = event.getStartTime() + offset;
+            double t_end = event.getEndTime() + offset;
+            if (event instanceof InstEvent)
+            {
+                writeLine(out, names[E_i], t_start, Double.NaN);
+            }
+            else if (event instanceof GeneralEvent)
+            {
+                writeLine(out, names[E_i], t_start, t_end);
+            }
+            else if (event instanceof ColumnarEventStream.EventView)
             {
-                int E_i = event.getEventType();
-                double t_start = event.getStartTime() + offset;
-                double t_end = event.getEndTime() + offset;
-                if (event instanceof InstEvent)
-                {
-                    out.println(sequence.getEventFactor().getName(E_i) + "," + t_start);
-                }
-                else if (event instanceof GeneralEvent)
-                {
-                    out.println(sequence.getEventFactor().getName(E_i) + "," + t_start + "," + t_end);
-                }
+                if (((ColumnarEventStream.EventView)event).isInstant())
+                    writeLine(out, names[E_i], t_start, Double.NaN);
+                else
+                    writeLine(out, names[E_i], t_start, t_end);
             }
         }
-        
-        out.close();
-        
+    }
+
+    /**
+     * @param end NaN for an instantaneous event
+     */
+    private static void writeLine(Writer out, String name, double start, double end)
+            throws IOException
+    {
+        out.write(String.valueOf(name));
+        out.write(',');
+        out.write(Double.toString(start));
+        if (!Double.isNaN(end)) {
+            out.write(',');
+            out.write(Double.toString(end));
+        }
+        out.write(NEWLINE);
     }
 }
@@ -42,6 +42,7 @@ public class Gleaner extends AbstractObserver
     
     public Gleaner(SessionInfo session, int level) {
          this.episodes = session.getEpisodes().getEpisodeList(level);
+         this.setMarkedSequence(session.getSequence());
     }
      
     public void setTitle(String title) {
@@ -91,7 +92,7 @@ public class Gleaner extends AbstractObserver
         throws IObserver.NotImplementedException
     {if (DEBUG) System.out.println("Gleaner: handle episode completion");
         episodes.get(episodeIndex).addInstance(events);
-        this.markEvents(events);
+        this.markEvents(episodeIndex, events);
     }
 
    
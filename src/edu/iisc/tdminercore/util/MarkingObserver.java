@@ -17,7 +17,8 @@ import java.util.List;
 /**
  * This observer is to be used with a counter to mark the events
  * in a stream as participating in an episode.
- * The "IEvent" has a "getMarker()" method that is used to associate a key field with each event.
+ * The stream keeps a marker for each event, see "IEventDataStream.getMarkers()",
+ * recording the episode which last visited the event.
  * This key field is used to associate the events with other objects.
  * Originally, the reference associated events representing neurological 
  * spikes with waveforms.
@@ -60,6 +61,12 @@ public class MarkingObserver extends AbstractObserver
         this.interruption = false;
     }
     
+    /** Creates a new instance of MarkingObserver marking the events of the stream */
+    public MarkingObserver( IEventDataStream sequence ) {
+        this();
+        this.setMarkedSequence(sequence);
+    }
+    
     public void setTitle(String title) { this.title = title; }
     public void setExtent(int range) { this.range = range; }
     
@@ -80,7 +87,7 @@ public class MarkingObserver extends AbstractObserver
     public void handleEpisodeCompletion(int episodeIndex, int eventTypes[], List<IEvent> events)
         throws IObserver.NotImplementedException
     {
-        this.markEvents(events);
+        this.markEvents(episodeIndex, events);
     }
 
     public void taskStarted() { }
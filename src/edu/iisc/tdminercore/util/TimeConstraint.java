@@ -11,6 +11,9 @@ import edu.iisc.tdminercore.data.Interval;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 
 /**
@@ -112,6 +115,114 @@ public class TimeConstraint<T extends Enum<T>>
         }
         return false;
     }
+    /**
+     * Order the intervals by their lower bound and fuse any that overlap.
+     * The result selects the same times as the original list, see check(),
+     * but may be searched in order.
+     */
+    public static List<Interval> merge(List<Interval> intervals) {
+        List<Interval> sorted = new ArrayList<Interval>(intervals);
+        Collections.sort(sorted, new Comparator<Interval>() {
+            public int compare(Interval lhs, Interval rhs) {
+                return Double.compare(lhs.getTLow(), rhs.getTLow());
+            }});
+        List<Interval> merged = new ArrayList<Interval>(sorted.size());
+        Interval wip = null;
+        for(Interval interval : sorted) {
+            if (wip != null && interval.getTLow() <= wip.getTHigh()) {
+                if (interval.getTHigh() > wip.getTHigh()) {
+                    wip = new Interval(wip.getTLow(), interval.getTHigh());
+                }
+                continue;
+            }
+            if (wip != null) merged.add(wip);
+            wip = interval;
+        }
+        if (wip != null) merged.add(wip);
+        return merged;
+    }
+    
+    /**
+     * The start times of the events of a stream, by position.
+     * The searches below require them to be in order.
+     */
+    public interface StartTimes {
+        public int getSize();
+        public double startAt(int ix);
+    }
+    
+    /**
+     * Resolve the intervals against the (sorted) start times.
+     * @return pairs of positions [low, high) holding the events whose
+     *   start time lies within one of the intervals.
+     */
+    public static int[] ranges(List<Interval> intervals, StartTimes times) {
+        List<Interval> merged = merge(intervals);
+        int[] ranges = new int[merged.size() * 2];
+        int count = 0;
+        int low = 0;
+        for (Interval interval : merged) {
+            low = searchStart(times, interval.getTLow(), false, low);
+            int high = searchStart(times, interval.getTHigh(), true, low);
+            if (high <= low) continue;
+            ranges[count++] = low;
+            ranges[count++] = high;
+            low = high;
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+    
+    /**
+     * @return the number of positions in the ranges, see ranges().
+     */
+    public static int count(int[] ranges) {
+        int total = 0;
+        for (int ix = 0; ix < ranges.length; ix += 2) {
+            total += ranges[ix + 1] - ranges[ix];
+        }
+        return total;
+    }
+    
+    /**
+     * @return the pairs of positions [low, high) lying in both of the ranges,
+     *   see ranges().
+     */
+    public static int[] intersect(int[] ranges, int[] others) {
+        int[] result = new int[ranges.length + others.length];
+        int count = 0;
+        int ix = 0;
+        int jx = 0;
+        while (ix < ranges.length && jx < others.length) {
+            int low = Math.max(ranges[ix], others[jx]);
+            int high = Math.min(ranges[ix + 1], others[jx + 1]);
+            if (low < high) {
+                result[count++] = low;
+                result[count++] = high;
+            }
+            if (ranges[ix + 1] < others[jx + 1]) ix += 2;
+            else jx += 2;
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * Binary search over the (sorted) start times from position 'from'.
+     * @param inclusive when true skip the events starting exactly at the time
+     * @return the first position whose start time is not before 
+     *   (inclusive: not at or before) the time.
+     */
+    public static int searchStart(StartTimes times, double time, boolean inclusive, int from) {
+        int low = from;
+        int high = times.getSize();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            double start = times.startAt(mid);
+            if (start < time || (inclusive && start == time)) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+    
     /**
      * This method is used by loaders of event streams.
      * It returns a set of constraints.
@@ -0,0 +1,25 @@
+/*
+ * ILevelWriter.java
+ *
+ */
+
+package edu.iisc.tdminercore.writer;
+
+import edu.iisc.tdminercore.data.EventFactor;
+import edu.iisc.tdminercore.data.IEpisode;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A writer which is given the episodes a level at a time,
+ * as the miner finds them, rather than the whole episode set at the end.
+ * Each level is written out before the next is begun.
+ *
+ * @see edu.iisc.tdminercore.miner.SessionInfo#setLevelWriter(ILevelWriter)
+ */
+public interface ILevelWriter {
+     public void startLevels(EventFactor factor) throws IOException;
+     public void writeLevel(int level, List<IEpisode> episodes) throws IOException;
+     public void endLevels() throws IOException;
+}
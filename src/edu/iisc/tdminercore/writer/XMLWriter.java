@@ -16,20 +16,19 @@ import edu.iisc.tdminercore.data.EpisodeSet;
 import edu.iisc.tdminercore.data.IEvent;
 import edu.iisc.tdminercore.data.EpisodeInstanceSet;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
-import org.xml.sax.helpers.AttributesImpl;
-import org.xml.sax.SAXException;
 
-//JAXP 1.1
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.sax.TransformerHandler;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.TransformerConfigurationException;
-import org.w3c.dom.Comment;
+//StAX
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 //W3C DOM
+import org.w3c.dom.Comment;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
@@ -37,25 +36,34 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
 
-import org.w3c.dom.traversal.DocumentTraversal;
-import org.w3c.dom.traversal.NodeFilter;
-import org.w3c.dom.traversal.TreeWalker;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
-
 
 /**
+ * Writes the episodes, along with the configuration which produced them,
+ * as an XML document.
+ * The document is written with a StAX stream writer through a buffer of
+ * a configurable size, nothing is held but the buffer.
+ * The episode set may be written whole, {@link #write(IEpisodeSet)},
+ * or the writer may be given to the miner to be written a level at a time
+ * as each level is found (see {@link ILevelWriter}).
+ * Each level is flushed to the file once it is written.
  *
  * @author phreed@gmail.com
  */
-public class XMLWriter implements IWriter 
+public class XMLWriter implements IWriter, ILevelWriter
 {
-    StreamResult stream = null;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    final static String ENCODING = "ISO-8859-1";
+
     String fileName;
     final static String ns0 = "urn:neural-code.org:tdminer/2007-03-01";
     final static String ns1 = "urn:neural-code.org:tdminer/2007-03-01/control";
     final static String ns2 = "urn:neural-code.org:tdminer/2007-03-01/product";
-    
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private OutputStream out = null;
+    private XMLStreamWriter xml = null;
+    private EventFactor factor = null;
+
     /** Creates a new instance of XMLWriter */
     public XMLWriter(String fileName) {
         this.fileName = fileName;
@@ -66,172 +74,187 @@ public class XMLWriter implements IWriter
     {
         this.configDoc = configDoc;
     }
-     
-    /** 
-     * a general function for serializing a DOM using SAX
+
+    /**
+     * The number of bytes held before they are written to the file.
      */
-    private void serializeConfig(TransformerHandler hd, Node node) 
+    public void setBufferSize(int bufferSize)
     {
-        AttributesImpl atts = new AttributesImpl();
-        Document doc = node.getOwnerDocument();
-        try {
-            DocumentTraversal traversal = (DocumentTraversal)doc;
-
-            TreeWalker walker = traversal.createTreeWalker(
-                    node, NodeFilter.SHOW_ALL, null, true);
-
-            traverseLevel(hd, walker, 1);
-            
-        } catch (Exception ex) {
-            System.out.println("could not write the DOM "+ex.getMessage());
-            ex.printStackTrace();
-        }
+        this.bufferSize = Math.max(bufferSize, 1 << 12);
     }
+    public int getBufferSize() { return bufferSize; }
+     
     /** 
-     * a helper method for serializeConfig
+     * Copy a node of the configuration, the product elements are left out.
      */
-    private static final void traverseLevel(TransformerHandler hd, TreeWalker walker, int level) 
+    private void serializeConfig(Node node) throws XMLStreamException
     {
-        try {
-            Node baseNode = walker.getCurrentNode();
-            switch (baseNode.getNodeType()) {
-                case Node.TEXT_NODE: {
-                    String sometext = ((Text)baseNode).getData();
-                    // System.out.println("TEXT NODE: "+ sometext);
-                    hd.characters(sometext.toCharArray(),0,sometext.length());
-                }
+        switch (node.getNodeType()) {
+            case Node.TEXT_NODE:
+                xml.writeCharacters(((Text)node).getData());
                 break;
-                case Node.ELEMENT_NODE: {
-                    Element anElement = (Element)baseNode;
-                    
-                    String nsName = anElement.getNamespaceURI();
-                    if (nsName.compareTo(ns2) == 0) {
-                        break;
-                    }
-                    String elementName = anElement.getLocalName();
-                    String tagName = anElement.getTagName();
-                    
-                    AttributesImpl attrs = new AttributesImpl();
-                    NamedNodeMap nodeMap = anElement.getAttributes();
-                    for( int ix=0; ix < nodeMap.getLength(); ix++ ) {
-                        Node anAttr = nodeMap.item(ix);
-                        String attrName = anAttr.getNodeName();
-                        String attrValue = anAttr.getNodeValue();
-                        attrs.addAttribute("","",attrName,"CDATA",attrValue);
-                    }
-                    hd.startElement(nsName,elementName,tagName,attrs);
+            case Node.ELEMENT_NODE: {
+                Element anElement = (Element)node;
+                if (ns2.equals(anElement.getNamespaceURI())) break;
 
-                    // traverse children:
-                    for (Node child = walker.firstChild();
-                        child != null; 
-                        child = walker.nextSibling()) 
-                    {
-                        traverseLevel(hd, walker, level+1);
-                    }
-                    hd.endElement(nsName,elementName,tagName);
+                xml.writeStartElement(anElement.getTagName());
+                NamedNodeMap nodeMap = anElement.getAttributes();
+                for( int ix=0; ix < nodeMap.getLength(); ix++ ) {
+                    Node anAttr = nodeMap.item(ix);
+                    xml.writeAttribute(anAttr.getNodeName(), anAttr.getNodeValue());
                 }
-                break;
-                case Node.COMMENT_NODE: {
-                    String sometext = ((Comment)baseNode).getData();
-                    // System.out.println("COMMENT NODE: "+ sometext);
-                    hd.comment(sometext.toCharArray(),0,sometext.length());
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    serializeConfig(child);
                 }
-                break;
-                default:
-                    System.out.println("Unhandled type " + baseNode.getNodeType());
+                xml.writeEndElement();
             }
-            // return position to the current (level up):
-            walker.setCurrentNode(baseNode);
-        } 
-        catch (SAXException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
+            break;
+            case Node.COMMENT_NODE:
+                xml.writeComment(((Comment)node).getData());
+                break;
+            default:
+                System.out.println("Unhandled type " + node.getNodeType());
         }
     }
     
-    private void serializeFactor(TransformerHandler hd, EventFactor factor) 
+    private void serializeFactor(EventFactor factor) throws XMLStreamException
     {
-        AttributesImpl atts = new AttributesImpl();
-        try {
-            hd.startElement(ns2,"factor","r:factor",atts);
-            for( EventFactor.EventType type : factor ) {
-                atts.clear();
-                atts.addAttribute("","","name","CDATA",
-                            (type.name == null ? "null" : type.name));
-
-                if (type.alias != null) atts.addAttribute("","","alias","CDATA",type.alias);
-                hd.startElement(ns2,"type","r:type",atts);
-                hd.endElement(ns2,"type","r:type");
-            }
-            hd.endElement(ns2,"factor","r:factor");
-        } catch (SAXException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
+        xml.writeStartElement("r", "factor", ns2);
+        for( EventFactor.EventType type : factor ) {
+            xml.writeEmptyElement("r", "type", ns2);
+            xml.writeAttribute("name", (type.name == null ? "null" : type.name));
+            if (type.alias != null) xml.writeAttribute("alias", type.alias);
         }
+        xml.writeEndElement();
     }
     
-    private void serializeEpisodeExpiry(TransformerHandler hd)
+    private void serializeEpisodeSignature(IEpisode episode, EventFactor factor) 
+        throws XMLStreamException
     {
-        return;
-        /*
-        AttributesImpl atts = new AttributesImpl();
-        try {
-            atts.clear();
-            atts.addAttribute("","","min","CDATA", "0.0");
-            hd.startElement(ns2,"expiry","r:expiry",atts);
-            hd.endElement(ns2,"expiry","r:expiry");
-        } catch (SAXException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
+        xml.writeStartElement("r", "signature", ns2);
+        for( int index : episode.getEventTypeIndices() ) {
+            xml.writeEmptyElement("r", "event", ns2);
+            xml.writeAttribute("refid", factor.get(index).name);
         }
-         */
+        xml.writeEndElement();
     }
     
-    private void serializeEpisodeSignature(TransformerHandler hd, IEpisode episode, EventFactor factor) 
+    private void serializeEpisodeInstances(IEpisode episode) throws XMLStreamException
     {
-        AttributesImpl atts = new AttributesImpl();
-        try {
-            atts.clear();
-            hd.startElement(ns2,"signature","r:signature",atts);
-            for( int index : episode.getEventTypeIndices() ) {
-                atts.clear();
-                atts.addAttribute("","","refid","CDATA", 
-                        factor.get(index).name);
-                //atts.addAttribute("","","min","CDATA", "0.0");
-                //atts.addAttribute("","","max","CDATA", "+Inf");
-                hd.startElement(ns2,"event","r:event",atts);
-                hd.endElement(ns2,"event","r:event");
+        xml.writeStartElement("r", "instance-list", ns2);
+        xml.writeAttribute("count", String.valueOf(episode.getInstanceCount()));
+        for( IEpisode.EpisodeInstance instance : episode ) {
+            xml.writeStartElement("r", "instance", ns2);
+            for( IEvent event : instance.eventList ) {
+                xml.writeEmptyElement("r", "event", ns2);
+                xml.writeAttribute("source", String.valueOf(event.getSourceId()));
+                xml.writeAttribute("time", String.valueOf(event.getStartTime()));
             }
-            hd.endElement(ns2,"signature","r:signature");
-        } catch (SAXException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
+            xml.writeEndElement();
         }
+        xml.writeEndElement();
     }
-    
-    private void serializeEpisodeInstances(TransformerHandler hd, IEpisode episode)
+
+    /**
+     * Open the file and write everything which precedes the episodes:
+     * the configuration and the event types.
+     */
+    public void startLevels(EventFactor factor) throws IOException
     {
-        AttributesImpl atts = new AttributesImpl();
+        if (this.xml != null) throw new IOException("the episodes are already being written");
+        this.factor = factor;
+        this.out = new BufferedOutputStream(new FileOutputStream(this.fileName), this.bufferSize);
         try {
-            atts.clear();
-            atts.addAttribute("","","count","CDATA", 
-                   String.valueOf(episode.getInstanceCount()).toString());
-            hd.startElement(ns2,"instance-list","r:signature",atts);
-            for( IEpisode.EpisodeInstance instance : episode ) {
-                atts.clear();
-                hd.startElement(ns2,"instance","r:instance",atts);
-                for( IEvent event : instance.eventList ) {
-                    atts.addAttribute("","","source","CDATA", 
-                            String.valueOf(event.getSourceId()).toString());
-                    atts.addAttribute("","","time","CDATA", 
-                            String.valueOf(event.getStartTime()).toString());
-                    hd.startElement(ns2,"event","r:event",atts);
-                    hd.endElement(ns2,"event","r:event");
+            this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(this.out, ENCODING);
+            xml.writeStartDocument(ENCODING, "1.0");
+            xml.setPrefix("r", ns2);
+            xml.writeStartElement("tdminer");
+            xml.writeNamespace("r", ns2);
+
+            if (this.configDoc != null) {
+                Element root = configDoc.getDocumentElement();
+                // the configuration's namespaces are declared on the root
+                NamedNodeMap nodeMap = root.getAttributes();
+                for( int ix=0; ix < nodeMap.getLength(); ix++ ) {
+                    String attrName = nodeMap.item(ix).getNodeName();
+                    if (!attrName.startsWith("xmlns") || attrName.equals("xmlns:r")) continue;
+                    xml.writeAttribute(attrName, nodeMap.item(ix).getNodeValue());
+                }
+                NodeList nodelist = root.getChildNodes();
+                for( int ix = 0; ix < nodelist.getLength(); ix++ ) {
+                    serializeConfig(nodelist.item(ix));
                 }
-                hd.endElement(ns2,"instance","r:instance");
             }
-            hd.endElement(ns2,"instance-list","r:instance-list");
-        } catch (SAXException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
+            serializeFactor(factor);
+            xml.writeCharacters("\n");
+            flush();
+        } catch (XMLStreamException ex) {
+            throw failed(ex);
         }
     }
-    
+
+    /**
+     * Write the episodes of a level and flush them to the file.
+     */
+    public void writeLevel(int level, List<IEpisode> episodeList) throws IOException
+    {
+        if (this.xml == null) throw new IOException("the episode file is not open");
+        try {
+            xml.writeStartElement("r", "episode-list", ns2);
+            xml.writeAttribute("level", String.valueOf(level));
+            for( IEpisode episode : episodeList ) {
+                xml.writeStartElement("r", "episode", ns2);
+                xml.writeAttribute("card", String.valueOf(episode.size()));
+                serializeEpisodeSignature(episode, this.factor);
+                if (episode.isHarvested()) serializeEpisodeInstances(episode);
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            flush();
+        } catch (XMLStreamException ex) {
+            throw failed(ex);
+        }
+    }
+
+    /**
+     * Complete the document and close the file.
+     */
+    public void endLevels() throws IOException
+    {
+        if (this.xml == null) return;
+        try {
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.close();
+            this.xml = null;
+            this.out.close();
+            this.out = null;
+        } catch (XMLStreamException ex) {
+            throw failed(ex);
+        }
+    }
+
+    private void flush() throws XMLStreamException, IOException
+    {
+        xml.flush();
+        out.flush();
+    }
+
+    /**
+     * Abandon the document, the file is closed.
+     */
+    private IOException failed(XMLStreamException ex)
+    {
+        this.xml = null;
+        try {
+            this.out.close();
+        } catch (IOException iox) {
+        }
+        this.out = null;
+        return new IOException(ex.getMessage(), ex);
+    }
     
     /**
      * create an output stream of the episode set.
@@ -247,79 +270,19 @@ public class XMLWriter implements IWriter
         if (factor.getSize() < 1) return false;
         
         try {
-            StreamResult stream = new StreamResult(this.fileName); 
-
-            SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
-           
-            // SAX2.0 ContentHandler.
-            TransformerHandler hd = tf.newTransformerHandler();
-            Transformer serializer = hd.getTransformer();
-            
-            serializer.setOutputProperty(OutputKeys.ENCODING,"ISO-8859-1");
-            // serializer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM,"users.dtd");
-            serializer.setOutputProperty(OutputKeys.INDENT,"yes");
-           
-            hd.setResult(stream);
-
-            hd.startDocument();
-            AttributesImpl atts = new AttributesImpl();
-           
-            // root element.
-            hd.startPrefixMapping("r",ns2);
-            
-            hd.startElement(ns0,"tdminer","tdminer",atts);
-            
-            if (this.configDoc != null) {
-                Element root = configDoc.getDocumentElement();
-                NodeList nodelist = root.getChildNodes();
-                for( int ix = 0; ix < nodelist.getLength(); ix++ ) {
-                    Node anode = nodelist.item(ix);
-                    serializeConfig(hd, anode);
-                }
-            }
-
-            serializeFactor(hd, factor);
-
+            startLevels(factor);
             int episodeLevel = 0;
             for( List<IEpisode> episodeList : prospect.levels()) {
                 episodeLevel++;
-            
-                int episodeIx = 0;
                 if (episodeList == null) continue;
-                
-                hd.startElement(ns2,"episode-list","r:episode-list",atts);
-                for( IEpisode episode : episodeList ) {
-                    atts.clear();
-                    
-                    //atts.addAttribute("","","name","CDATA", String.valueOf(episode.getIndex()).toString());
-                    
-                    atts.addAttribute("","","card","CDATA",
-                            String.valueOf(episode.size()).toString());
-                    hd.startElement(ns2,"episode","r:episode",atts);
-                    
-                    serializeEpisodeExpiry(hd);
-                    serializeEpisodeSignature(hd, episode, factor);
-                    serializeEpisodeInstances(hd, episode);
-                   
-                    hd.endElement(ns2,"episode","r:episode");
-                    episodeIx++;
-                }
-                hd.endElement(ns2,"episode-list","r:episode-list");
+                writeLevel(episodeLevel, episodeList);
             }
-           
-            hd.endElement(ns0,"tdminer","tdminer");
-            hd.startPrefixMapping("r",ns2);
-            
-            hd.endDocument();
+            endLevels();
         } 
-        catch (TransformerConfigurationException ex) {
-            System.out.println("Problem writing XML: " + ex.getMessage());
-        }
-        catch (SAXException ex) {
+        catch (IOException ex) {
             System.out.println("Problem writing XML: " + ex.getMessage());
+            return false;
         }
         return true;
     }
-    
-    
 }